@@ -0,0 +1,31 @@
+package no.ez.crowd.customattributes;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+
+
+/** Converter of a single LDAP value for the {@link AttributeType#CUSTOM} attributes.
+ *  Created once per attribute by an {@link AttributeConverterProvider}, when the
+ *  configuration is loaded.<br><br>
+ *
+ *  Implementations must be thread-safe.
+ */
+public interface AttributeConverter {
+	
+	
+	/** Converts a single LDAP value.
+	 *
+	 *  @param value
+	 *  	the raw value as returned by the directory. Usually a {@link String}
+	 *  	or a <code>byte[]</code> for the binary attributes.
+	 *  @return
+	 *  	<code>null</code>, if the value cannot be converted.
+	 *  @throws Exception
+	 *  	if the value cannot be converted. Handled like <code>null</code>, but
+	 *  	the message is logged.
+	 */
+	@CheckForNull
+	String convert(@Nonnull Object value) throws Exception;
+	
+}
@@ -0,0 +1,45 @@
+package no.ez.crowd.customattributes;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+
+
+/** Service provider of the {@link AttributeConverter}s for the site-specific
+ *  conversions, configured as {@link AttributeType#CUSTOM} attributes:
+ *  <pre>
+ *  &lt;attribute key="..." type="CUSTOM" converter="my-converter"&gt;
+ *  	&lt;ldap-name&gt;...&lt;/ldap-name&gt;
+ *  	&lt;parameter name="..." value="..."/&gt;
+ *  &lt;/attribute&gt;
+ *  </pre>
+ *
+ *  The providers are discovered using {@link java.util.ServiceLoader}. An implementation
+ *  must be listed in the file
+ *  <code>META-INF/services/no.ez.crowd.customattributes.AttributeConverterProvider</code>
+ *  of the plugin or of a jar visible to the context class loader. It must have
+ *  a public no-arg constructor.
+ *
+ *  @see ConverterRegistry
+ */
+public interface AttributeConverterProvider {
+	
+	
+	/** Returns the name used in the <code>converter</code> attribute of the configuration. */
+	@Nonnull
+	String getName();
+	
+	
+	/** Creates a converter for a single attribute. Called once per attribute, when
+	 *  the configuration is loaded, so the parameters can be parsed and compiled here.
+	 *
+	 *  @param parameters
+	 *  	values of the <code>parameter</code> tags by name. Never <code>null</code>.
+	 *  @throws IllegalArgumentException
+	 *  	if the parameters are invalid. The configuration is rejected then.
+	 */
+	@Nonnull
+	AttributeConverter create(@Nonnull Map<String, String> parameters);
+	
+}
@@ -9,8 +9,11 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -48,6 +51,8 @@ class AttributeMapperCreater {
 	
 	private static final String PROPERTIES_FILE_NAME_DEFAULT = "ldap.custom-attributes.xml";
 	
+	private static final String STORE_DIRECTORY_NAME = "ldap.custom-attributes.store";
+	
 	
 	private String propertiesFileName = PROPERTIES_FILE_NAME_DEFAULT;
 	
@@ -55,6 +60,9 @@ class AttributeMapperCreater {
 	private ConfigurationReader configuration;
 	
 	
+	private File crowdHome;
+	
+	
 	/** Creates a mapper using the specified Crowd init configuration 
 	 * 
 	 *  @param
@@ -123,7 +131,7 @@ class AttributeMapperCreater {
 		
 		logger.info("Crowd home directory found [" + crowdHomeStr + "].");
 		
-		File crowdHome = new File(crowdHomeStr);
+		crowdHome = new File(crowdHomeStr);
 		
 		if (! crowdHome.isDirectory()) {
 			throw new IOException(
@@ -144,11 +152,31 @@ class AttributeMapperCreater {
 
 	@Nonnull
     public List<? extends AttributeMapper> createUserAttributeMappers(long directoryId, @Nullable String directoryUrl) {
+		return createUserAttributeMappers(directoryId, directoryUrl, null);
+	}
+	
+	
+	/** Like {@link #createUserAttributeMappers(long, String)}, but the mappers use the services of the directory.
+	 * 
+	 *  @param context
+	 *  	services of the directory, usually created once by the connector.
+	 */
+	@Nonnull
+	public List<? extends AttributeMapper> createUserAttributeMappers(long directoryId, @Nullable String directoryUrl, @Nullable MapperContext context) {
 		
 		Collection<CustomAttribute> attrs = configuration.readUserAttributes(directoryId, directoryUrl);
 		
-		List<? extends AttributeMapper> result = CustomAttributeMapper.createList(attrs);
-		return result;
+		logStatistics(attrs);
+		if (context != null) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Directory [" + directoryId + "] " + context + ".");
+			}
+			context.updateChangeMarkerCache(configuration.readEntryCache(directoryId, directoryUrl), getStoreDirectory(directoryId));
+			updateBatchConverter(context, directoryId, directoryUrl);
+		}
+		
+		List<CustomAttributeMapper> mappers = CustomAttributeMapper.createList(attrs, context);
+		return withDigest(mappers, directoryId, directoryUrl);
 	}
     
 	
@@ -164,8 +192,8 @@ class AttributeMapperCreater {
 		Collection<CustomAttribute> groupAttrs = configuration.readGroupAttributes(directoryId, directoryUrl);
 		
 		Set<String> result = new HashSet<String>();
-		result.addAll(CustomAttribute.unwrapLdapNames(CustomAttribute.filterOperationalOnly(userAttrs)));
-		result.addAll(CustomAttribute.unwrapLdapNames(CustomAttribute.filterOperationalOnly(groupAttrs)));
+		result.addAll(CustomAttribute.unwrapLdapNames(CustomAttribute.filterOperationalOnly(CustomAttribute.withFields(userAttrs))));
+		result.addAll(CustomAttribute.unwrapLdapNames(CustomAttribute.filterOperationalOnly(CustomAttribute.withFields(groupAttrs))));
 		
 		return result;
 	}
@@ -195,14 +223,158 @@ class AttributeMapperCreater {
     
 	@Nonnull
     public List<? extends AttributeMapper> createGroupAttributeMappers(long directoryId, @Nullable String directoryUrl) {
+		return createGroupAttributeMappers(directoryId, directoryUrl, null);
+	}
+	
+	
+	/** Like {@link #createGroupAttributeMappers(long, String)}, but the mappers use the services of the directory.
+	 * 
+	 *  @param context
+	 *  	services of the directory, usually created once by the connector.
+	 */
+	@Nonnull
+	public List<? extends AttributeMapper> createGroupAttributeMappers(long directoryId, @Nullable String directoryUrl, @Nullable MapperContext context) {
 		
 		Collection<CustomAttribute> attrs = configuration.readGroupAttributes(directoryId, directoryUrl);
 		
-		List<? extends AttributeMapper> result = CustomAttributeMapper.createList(attrs);
+		logStatistics(attrs);
+		if (context != null) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Directory [" + directoryId + "] " + context + ".");
+			}
+			context.updateChangeMarkerCache(configuration.readEntryCache(directoryId, directoryUrl), getStoreDirectory(directoryId));
+			updateBatchConverter(context, directoryId, directoryUrl);
+		}
+		
+		List<CustomAttributeMapper> mappers = CustomAttributeMapper.createList(attrs, context);
+		return withDigest(mappers, directoryId, directoryUrl);
+	}
+	
+	
+	/** Converts the changed user attributes back to LDAP values. See {@link AttributeWriteBack}.
+	 * 
+	 *  @param attributes
+	 *  	values by key, as stored by Crowd. An empty set removes the attribute.
+	 *  @return
+	 *  	LDAP values by LDAP name. The keys, which are not configured or not writable, are skipped.
+	 *  @throws IllegalArgumentException
+	 *  	if a value is invalid or two keys are written to the same LDAP attribute.
+	 */
+	@Nonnull
+	public Map<String, Object[]> createUserModifications(long directoryId, @Nullable String directoryUrl, @Nonnull Map<String, ? extends Collection<String>> attributes) {
+		return createUserModifications(directoryId, directoryUrl, attributes, null);
+	}
+	
+	
+	/** Like {@link #createUserModifications(long, String, Map)}, but also collects the keys of the writable 
+	 *  attributes. The other keys are left for Crowd to store.
+	 * 
+	 *  @param writableKeys
+	 *  	receives the keys of the configured writable attributes found in <code>attributes</code>. 
+	 *  	<code>null</code> to skip.
+	 */
+	@Nonnull
+	public Map<String, Object[]> createUserModifications(
+			long directoryId, @Nullable String directoryUrl, @Nonnull Map<String, ? extends Collection<String>> attributes, @Nullable Set<String> writableKeys) {
+		return createModifications(configuration.readUserAttributes(directoryId, directoryUrl), attributes, writableKeys);
+	}
+	
+	
+	/** Like {@link #createUserModifications(long, String, Map)}, but for the group attributes. */
+	@Nonnull
+	public Map<String, Object[]> createGroupModifications(long directoryId, @Nullable String directoryUrl, @Nonnull Map<String, ? extends Collection<String>> attributes) {
+		return createGroupModifications(directoryId, directoryUrl, attributes, null);
+	}
+	
+	
+	/** Like {@link #createUserModifications(long, String, Map, Set)}, but for the group attributes. */
+	@Nonnull
+	public Map<String, Object[]> createGroupModifications(
+			long directoryId, @Nullable String directoryUrl, @Nonnull Map<String, ? extends Collection<String>> attributes, @Nullable Set<String> writableKeys) {
+		return createModifications(configuration.readGroupAttributes(directoryId, directoryUrl), attributes, writableKeys);
+	}
+	
+	
+	@Nonnull
+	private Map<String, Object[]> createModifications(
+			@Nonnull Collection<CustomAttribute> attrs, @Nonnull Map<String, ? extends Collection<String>> attributes, @Nullable Set<String> writableKeys) {
+		Map<String, Object[]> result = new LinkedHashMap<String, Object[]>();
+		Map<String, String> keys = new HashMap<String, String>(); // by lower case LDAP name
+		for (CustomAttribute attr : attrs) {
+			Collection<String> values = attributes.get(attr.getKey());
+			if (values == null) {
+				continue;
+			}
+			CustomAttributeMapper mapper = CustomAttributeMapper.create(attr);
+			if ( ! mapper.isWritable()) {
+				logger.debug("Custom attribute key [" + attr.getKey() + "] of type " + attr.getType() + " is read-only. Not written to LDAP.");
+				continue;
+			}
+			String other = keys.put(attr.getLdapName().toLowerCase(Locale.ENGLISH), attr.getKey());
+			if (other != null) {
+				throw new IllegalArgumentException(
+						"The custom attribute keys [" + other + "] and [" + attr.getKey() + "] cannot be written together, " +
+						"both are stored in the LDAP attribute [" + attr.getLdapName() + "].");
+			}
+			result.put(attr.getLdapName(), mapper.toLdapValues(values));
+			if (writableKeys != null) {
+				writableKeys.add(attr.getKey());
+			}
+		}
 		return result;
 	}
 	
 	
+	/** Appends the {@link DigestAttributeMapper}, if configured for the directory. */
+	@Nonnull
+	private List<? extends AttributeMapper> withDigest(@Nonnull List<CustomAttributeMapper> mappers, long directoryId, @Nullable String directoryUrl) {
+		
+		Digest digest = configuration.readDigest(directoryId, directoryUrl);
+		if (digest == null || mappers.isEmpty()) {
+			return mappers;
+		}
+		
+		return DigestAttributeMapper.append(digest.getKey(), mappers);
+	}
+	
+	
+	/** Applies the {@link Batch} configuration of the directory, so the reloaded configuration 
+	 *  takes effect with the next search. */
+	private void updateBatchConverter(@Nonnull MapperContext context, long directoryId, @Nullable String directoryUrl) {
+		Batch batch = configuration.readBatch(directoryId, directoryUrl);
+		context.getBatchConverter().setThreads(batch != null ? batch.getThreads() : 1);
+	}
+	
+	
+	/** Returns the directory of the {@link EntryStore} of the LDAP directory. 
+	 *  Located in the Crowd home directory. */
+	@Nonnull
+	protected File getStoreDirectory(long directoryId) {
+		return new File(new File(crowdHome, STORE_DIRECTORY_NAME), String.valueOf(directoryId));
+	}
+	
+	
+	/** Logs the statistics of the intern pools, conversion caches and lazy values to tune the configuration. */
+	private void logStatistics(@Nonnull Collection<CustomAttribute> attrs) {
+		if ( ! logger.isDebugEnabled()) {
+			return;
+		}
+		for (CustomAttribute attr : attrs) {
+			InternPool pool = attr.getInternPool();
+			if (pool != null) {
+				logger.debug("Custom attribute [" + attr.getKey() + "] " + pool + ".");
+			}
+			ConversionCache cache = attr.getConversionCache();
+			if (cache != null) {
+				logger.debug("Custom attribute [" + attr.getKey() + "] " + cache + ".");
+			}
+			if (attr.isLazy()) {
+				logger.debug("Custom attribute [" + attr.getKey() + "] " + attr.getLazyStatistics() + ".");
+			}
+		}
+	}
+	
+	
 	/** Adds all the binary attribute names to the property 
 	 *  {@value LDAPPropertiesMapperImpl#CONNECTION_BINARY_ATTRIBUTES}
 	 *  as defined in {@linkplain "http://docs.oracle.com/javase/jndi/tutorial/ldap/misc/attrs.html"}  
@@ -232,6 +404,34 @@ class AttributeMapperCreater {
     	
     	env.put(LDAPPropertiesMapperImpl.CONNECTION_BINARY_ATTRIBUTES, binProperty);
     }
+	
+	
+	/** Merges the {@link ConnectionSettings} of the directory into the environment. The settings
+	 *  configured in the file override the ones of Crowd.
+	 */
+	public void putConnectionSettings(@Nonnull Map<String, String> env, long directoryId, @Nullable String directoryUrl) {
+		
+		ConnectionSettings settings = configuration.readConnection(directoryId, directoryUrl);
+		if (settings == null) {
+			return;
+		}
+		
+		putSetting(env, ConnectionSettings.CONNECT_TIMEOUT, settings.getConnectTimeout());
+		putSetting(env, ConnectionSettings.READ_TIMEOUT, settings.getReadTimeout());
+		putSetting(env, ConnectionSettings.BATCH_SIZE, settings.getBatchSize());
+		putSetting(env, ConnectionSettings.POOL, settings.getPool());
+	}
+	
+	
+	private void putSetting(@Nonnull Map<String, String> env, @Nonnull String name, @Nullable Object value) {
+		if (value == null) {
+			return;
+		}
+		String previous = env.put(name, value.toString());
+		if (logger.isDebugEnabled() && previous != null && ! previous.equals(value.toString())) {
+			logger.debug("Connection setting [" + name + "] = [" + previous + "] overridden with [" + value + "].");
+		}
+	}
     
 }
 
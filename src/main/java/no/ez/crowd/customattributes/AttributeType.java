@@ -12,7 +12,35 @@ package no.ez.crowd.customattributes;
  */
 public enum AttributeType {
 	
-	STRING(false), BINARY(true), INTEGER(false), DOUBLE(false), DATETIME(false), LOCAL_DATETIME(false);
+	STRING(false), BINARY(true), INTEGER(false), LONG(false), DOUBLE(false), BOOLEAN(false), DATETIME(false), LOCAL_DATETIME(false),
+	
+	/** Bitmask attribute (like <code>userAccountControl</code>) decoded using the configured {@link Flag}s.
+	 *  Emits the names of all the flags set. If only one flag without a name is configured,
+	 *  emits <code>true</code> or <code>false</code> instead. */
+	FLAGS(false),
+	
+	/** DER encoded X.509 certificate (like <code>userCertificate;binary</code>). Emits the 
+	 *  configured {@link CertificateField} instead of the whole certificate. */
+	CERTIFICATE(true),
+	
+	/** Converted by the {@link AttributeConverter} configured by name. 
+	 *  @see AttributeConverterProvider */
+	CUSTOM(false),
+	
+	/** Like {@link #CUSTOM}, but the values are read from LDAP as <code>byte[]</code>. */
+	CUSTOM_BINARY(true),
+	
+	/** DN of another entry (like <code>manager</code>). Emits the value of the naming attribute 
+	 *  of the referenced entry. @see DnReferenceResolver */
+	DN_REFERENCE(false),
+	
+	/** Composed from other attributes of the entry using a template. Has no LDAP name. 
+	 *  @see ValueTemplate */
+	COMPUTED(false),
+	
+	/** Several nested attributes written as a single JSON object. Has no LDAP name. 
+	 *  @see JsonAttributeMapper */
+	JSON(false);
 	
 	private final boolean binary;
 
@@ -0,0 +1,166 @@
+package no.ez.crowd.customattributes;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+
+/** Writes the changed custom attributes back to LDAP. Thread-safe.<br><br>
+ *
+ *  The changes are written synchronously in the calling thread. The changes of an entry made
+ *  by other threads while a request for the entry is being sent are collected and sent together
+ *  as a single <code>ModifyAttributes</code> request replacing all the changed attributes,
+ *  once the running request completes. A later value of an attribute replaces the earlier one.
+ *  An attribute without values is removed.<br><br>
+ *
+ *  Every caller waits for the request containing its changes. If the request fails, the
+ *  error is thrown to all the callers whose changes it contained.
+ *
+ *  @see AttributeMapperCreater#createUserModifications(long, String, Map, java.util.Set)
+ */
+final class AttributeWriteBack {
+	
+	private final Logger logger = LoggerFactory.getLogger(AttributeWriteBack.class);
+	
+	
+	/** Sends the modifications to LDAP. */
+	public static interface Writer {
+	
+		/** Sends all the modifications of the entry as a single request. */
+		void modify(@Nonnull String dn, @Nonnull ModificationItem[] items) throws NamingException;
+	}
+	
+	
+	/** Number of the locks serializing the requests for the same entry. */
+	private static final int LOCKS = 16;
+	
+	
+	private final Writer writer;
+	
+	
+	/** Changes not sent yet by DN. Guarded by itself. */
+	private final Map<String, PendingChanges> pending = new LinkedHashMap<String, PendingChanges>();
+	
+	
+	/** The requests for the same entry are sent one after another. */
+	private final Object[] locks = new Object[LOCKS];
+	
+	
+	private final AtomicLong changes = new AtomicLong();
+	
+	private final AtomicLong requests = new AtomicLong();
+	
+	private final AtomicLong failures = new AtomicLong();
+	
+	
+	public AttributeWriteBack(@Nonnull Writer writer) {
+		this.writer = writer;
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+	
+	
+	/** Writes the new values of the attributes of the entry. Returns when the values are written.
+	 *
+	 *  @param values
+	 *  	LDAP values by LDAP name. Empty to remove the attribute.
+	 *  @throws NamingException
+	 *  	if the request containing the values has failed.
+	 */
+	public void write(@Nonnull String dn, @Nonnull Map<String, Object[]> values) throws NamingException {
+		if (values.isEmpty()) {
+			return;
+		}
+		PendingChanges entry;
+		synchronized (pending) {
+			entry = pending.get(dn);
+			if (entry == null) {
+				entry = new PendingChanges();
+				pending.put(dn, entry);
+			}
+			for (Map.Entry<String, Object[]> e : values.entrySet()) {
+				BasicAttribute attr = new BasicAttribute(e.getKey());
+				for (Object value : e.getValue()) {
+					attr.add(value);
+				}
+				entry.attributes.put(e.getKey().toLowerCase(Locale.ENGLISH), attr);
+			}
+		}
+		changes.addAndGet(values.size());
+	
+		synchronized (locks[(dn.hashCode() & Integer.MAX_VALUE) % locks.length]) {
+			if ( ! entry.sent) {
+				synchronized (pending) {
+					pending.remove(dn);
+				}
+				entry.sent = true;
+				send(dn, entry);
+			}
+			if (entry.failure instanceof NamingException) {
+				throw (NamingException) entry.failure;
+			} else if (entry.failure != null) {
+				throw (RuntimeException) entry.failure;
+			}
+		}
+	}
+	
+	
+	private void send(String dn, PendingChanges entry) {
+		ModificationItem[] items = new ModificationItem[entry.attributes.size()];
+		int i = 0;
+		for (BasicAttribute attr : entry.attributes.values()) {
+			items[i++] = new ModificationItem(DirContext.REPLACE_ATTRIBUTE, attr);
+		}
+	
+		requests.incrementAndGet();
+		try {
+			writer.modify(dn, items);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Wrote custom attributes " + entry.attributes.keySet() + " of [" + dn + "].");
+			}
+		} catch (NamingException e) {
+			failures.incrementAndGet();
+			entry.failure = e;
+		} catch (RuntimeException e) {
+			failures.incrementAndGet();
+			entry.failure = e;
+		}
+	}
+	
+	
+	/** Changes of an entry sent with one request. The changes are added while pending,
+	 *  the other fields are guarded by the lock of the entry. */
+	private static final class PendingChanges {
+	
+		/** Changed attributes by lower case LDAP name. */
+		final Map<String, BasicAttribute> attributes = new LinkedHashMap<String, BasicAttribute>();
+	
+		boolean sent;
+	
+		/** The error of the request, if failed. */
+		Exception failure;
+	}
+	
+	
+	@Override
+	public String toString() {
+		int size;
+		synchronized (pending) {
+			size = pending.size();
+		}
+		return "AttributeWriteBack{pending=" + size + ", changes=" + changes + ", requests=" + requests + ", failures=" + failures + "}";
+	}
+	
+}
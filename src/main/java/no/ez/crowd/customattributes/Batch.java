@@ -0,0 +1,41 @@
+package no.ez.crowd.customattributes;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+
+
+/** A batch tag of a directory. Makes the {@link BatchConverter} map the entries of every
+ *  result page in parallel.
+ */
+@XmlType(name="batch")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class Batch {
+	
+	
+	public static final int DEFAULT_THREADS = 4;
+	
+	
+	@XmlAttribute(name="threads", required=false)
+	private int threads = DEFAULT_THREADS;
+	
+	
+	/** For JAX. Do not delete! */
+	protected Batch() {
+		// nothing
+	}
+	
+	
+	public Batch(int threads) {
+		this.threads = threads;
+	}
+	
+	
+	/** Number of the threads mapping the entries of a page, including the searching one. */
+	public int getThreads() {
+		return threads;
+	}
+	
+}
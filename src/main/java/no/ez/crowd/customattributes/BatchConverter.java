@@ -0,0 +1,176 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.naming.NameClassPair;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.CollectingNameClassPairCallbackHandler;
+
+import com.atlassian.crowd.directory.ldap.mapper.attribute.AttributeMapper;
+
+
+
+/** Maps the entries of a search result page in parallel. Shared by all the searches of a directory. 
+ *  Thread-safe.<br><br>
+ *
+ *  Crowd maps the found entries one by one and calls {@link AttributeMapper#getValues(org.springframework.ldap.core.DirContextAdapter)} 
+ *  one entry and one mapper at a time. The {@link BatchLdapTemplate} of the connector collects the entries 
+ *  of every page and hands them to {@link #map(List, CollectingNameClassPairCallbackHandler)}, which maps 
+ *  them with the searching thread and up to <code>threads - 1</code> threads of a pool. All the mappers 
+ *  of an entry are called by one thread one after another, so the state the mappers keep for the last 
+ *  entry of the thread (see {@link SharedConversion}) stays valid.<br><br>
+ *  
+ *  The pool is shared by all the directories and its threads stop, when idle. So no threads are
+ *  left behind, if Crowd recreates the connector.
+ *
+ *  @see Batch
+ */
+final class BatchConverter {
+	
+	private final Logger logger = LoggerFactory.getLogger(BatchConverter.class);
+	
+	
+	/** Maximum number of the threads of the shared pool. */
+	static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+	
+	
+	private static final long IDLE_SECONDS = 60;
+	
+	
+	/** Created with the first page mapped in parallel. */
+	private static ExecutorService pool;
+	
+	
+	/** Number of the threads mapping a page, including the searching one. */
+	private volatile int threads = 1;
+	
+	
+	/** @param threads
+	 *  	number of the threads mapping a page, including the searching one. <code>1</code> 
+	 *  	to map the entries one by one.
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+	
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	
+	/** Returns <code>true</code>, if the pages must be collected and handed to this converter. */
+	public boolean isEnabled() {
+		return threads > 1;
+	}
+	
+	
+	/** Maps the entries of the page with the handler. Blocks until all the entries are mapped.
+	 * 
+	 *  @return
+	 *  	mapped objects in the order of the entries. The handler itself is not changed.
+	 *  @throws RuntimeException
+	 *  	thrown by the mapping of some entry. The remaining entries are not mapped then.
+	 */
+	@Nonnull
+	public List<Object> map(@Nonnull final List<? extends NameClassPair> page, @Nonnull final CollectingNameClassPairCallbackHandler handler) {
+		
+		final Object[] result = new Object[page.size()];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Semaphore finished = new Semaphore(0);
+		
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int i;
+				while (failure.get() == null && (i = next.getAndIncrement()) < result.length) {
+					try {
+						result[i] = handler.getObjectFromNameClassPair(page.get(i));
+					} catch (RuntimeException e) {
+						failure.compareAndSet(null, e);
+					} catch (Error e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						finished.release();
+					}
+				}
+			}
+		};
+		
+		int helpers = Math.min(Math.min(threads, POOL_SIZE + 1), result.length) - 1;
+		List<Future<?>> futures = new ArrayList<Future<?>>(Math.max(0, helpers));
+		for (int i = 0; i < helpers; i++) {
+			futures.add(getPool().submit(worker));
+		}
+		
+		worker.run();
+		
+		// no entries are taken any more, waiting for the ones being mapped by the pool.
+		int taken = Math.min(next.getAndSet(result.length), result.length);
+		finished.acquireUninterruptibly(taken);
+		for (Future<?> future : futures) {
+			future.cancel(false); // not started yet, nothing to do.
+		}
+		
+		Throwable error = failure.get();
+		if (error instanceof RuntimeException) {
+			throw (RuntimeException)error;
+		} else if (error instanceof Error) {
+			throw (Error)error;
+		}
+		
+		if (logger.isDebugEnabled()) {
+			logger.debug("Mapped a page of " + result.length + " entries with up to " + (futures.size() + 1) + " threads.");
+		}
+		
+		return Arrays.asList(result);
+	}
+	
+	
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(
+					POOL_SIZE, POOL_SIZE, IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), createThreadFactory("custom-attributes-batch-"));
+			executor.allowCoreThreadTimeOut(true);
+			pool = executor;
+		}
+		return pool;
+	}
+	
+	
+	/** Creates a factory of the daemon threads named with the prefix and a number. */
+	@Nonnull
+	static ThreadFactory createThreadFactory(@Nonnull final String prefix) {
+		final AtomicInteger counter = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	
+	
+	@Override
+	public String toString() {
+		return "BatchConverter{threads=" + threads + "}";
+	}
+	
+}
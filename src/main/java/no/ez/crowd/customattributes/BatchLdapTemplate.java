@@ -0,0 +1,94 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.naming.Binding;
+import javax.naming.NameClassPair;
+
+import org.springframework.ldap.core.CollectingNameClassPairCallbackHandler;
+import org.springframework.ldap.core.ContextMapperCallbackHandler;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.DirContextProcessor;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
+import org.springframework.ldap.core.SearchExecutor;
+
+
+
+/** {@link LdapTemplate} of a connector, which hands the entries of every result page to the 
+ *  {@link BatchConverter} of the directory and registers them with its {@link ConstructedAttributeLoader},
+ *  so their constructed attributes are read in batches.<br><br>
+ *  
+ *  Crowd searches the entries page by page, every page with one call of 
+ *  {@link #search(SearchExecutor, NameClassPairCallbackHandler, DirContextProcessor)}, which all 
+ *  the other search methods end up with. The searches are executed by the template created by 
+ *  Crowd, so its settings (like ignoring the referrals) apply. All the other operations use the 
+ *  same context source.<br><br>
+ *  
+ *  If the converter is enabled or the directory has a loader, the entries of a page are held in 
+ *  memory until the whole page is read. With the paged results disabled in Crowd, the whole result 
+ *  is one page.
+ */
+final class BatchLdapTemplate extends LdapTemplate {
+	
+	
+	private final LdapTemplate delegate;
+	
+	
+	private final BatchConverter converter;
+	
+	
+	@Nullable
+	private final ConstructedAttributeLoader loader;
+	
+	
+	public BatchLdapTemplate(@Nonnull LdapTemplate delegate, @Nonnull MapperContext context) {
+		super(delegate.getContextSource());
+		this.delegate = delegate;
+		this.converter = context.getBatchConverter();
+		this.loader = context.getConstructedLoader();
+	}
+	
+	
+	@Override
+	public void search(SearchExecutor se, NameClassPairCallbackHandler handler, DirContextProcessor processor) {
+		
+		if ( ! (handler instanceof ContextMapperCallbackHandler) || ( ! converter.isEnabled() && loader == null)) {
+			delegate.search(se, handler, processor);
+			return;
+		}
+		
+		final List<NameClassPair> page = new ArrayList<NameClassPair>();
+		delegate.search(se, new NameClassPairCallbackHandler() {
+			@Override
+			public void handleNameClassPair(NameClassPair pair) {
+				page.add(pair);
+			}
+		}, processor);
+		
+		List<DirContextAdapter> entries = new ArrayList<DirContextAdapter>(page.size());
+		if (loader != null) {
+			for (NameClassPair pair : page) {
+				if (pair instanceof Binding && ((Binding)pair).getObject() instanceof DirContextAdapter) {
+					entries.add((DirContextAdapter)((Binding)pair).getObject());
+				}
+			}
+			loader.startPage(entries);
+		}
+		
+		CollectingNameClassPairCallbackHandler collecting = (CollectingNameClassPairCallbackHandler)handler;
+		try {
+			@SuppressWarnings("unchecked")
+			List<Object> list = collecting.getList();
+			list.addAll(converter.map(page, collecting));
+		} finally {
+			if (loader != null) {
+				loader.endPage(entries);
+			}
+		}
+	}
+	
+}
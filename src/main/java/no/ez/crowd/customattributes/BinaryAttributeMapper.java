@@ -0,0 +1,47 @@
+package no.ez.crowd.customattributes;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Mapper for the {@link AttributeType#BINARY} attributes. Encodes the values with Base64.
+ * 
+ *  @see CustomAttributeMapper#create(CustomAttribute)
+ */
+final class BinaryAttributeMapper extends CustomAttributeMapper {
+	
+	
+	public BinaryAttributeMapper(@Nonnull CustomAttribute attribute) {
+		super(attribute);
+	}
+	
+	
+	@Override
+	@Nonnull
+	Set<String> convertAll(@Nonnull DirContextAdapter ctx, @Nullable Object[] attrs) {
+		
+		Set<String> result = new LinkedHashSet<String>();
+		
+		if (attrs == null) {
+			return result;
+		}
+		
+		for (Object attr : attrs) {
+			if (attr != null) {
+				String value = readAsBinary(ctx, attr);
+				if (value != null) {
+					result.add(value);
+				}
+			}
+		}
+		
+		return complete(ctx, result);
+	}
+	
+}
@@ -0,0 +1,37 @@
+package no.ez.crowd.customattributes;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+
+
+/** A cache tag. Enables the {@link ConversionCache} for the numeric, boolean, custom and
+ *  datetime attributes. Ignored for other types.
+ */
+@XmlType(name="cache")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class Cache {
+	
+	
+	@XmlAttribute(name="size", required=false)
+	private int size = 10000;
+	
+	
+	/** For JAX. Do not delete! */
+	protected Cache() {
+		// nothing
+	}
+	
+
+	public Cache(int size) {
+		this.size = size;
+	}
+
+
+	public int getSize() {
+		return size;
+	}
+
+}
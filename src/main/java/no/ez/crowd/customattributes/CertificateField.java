@@ -0,0 +1,12 @@
+package no.ez.crowd.customattributes;
+
+
+
+/** Field of a X.509 certificate emitted by the {@link AttributeType#CERTIFICATE}
+ *  attribute. The dates are printed as ISO datetime in UTC.
+ */
+public enum CertificateField {
+	
+	SUBJECT, ISSUER, SERIAL, NOT_BEFORE, NOT_AFTER;
+
+}
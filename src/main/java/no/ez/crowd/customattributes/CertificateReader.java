@@ -0,0 +1,121 @@
+package no.ez.crowd.customattributes;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.commons.codec.binary.Hex;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+
+
+/** Parses DER encoded X.509 certificates and extracts the fields listed
+ *  in {@link CertificateField}.<br><br>
+ * 
+ *  The extracted fields are cached by the SHA-1 hash of the certificate, so 
+ *  unchanged certificates are not parsed again on every synchronisation. The
+ *  cache is shared by all the attributes, so several attribute keys reading
+ *  different fields of the same certificate cause only one parsing.
+ */
+final class CertificateReader {
+	
+	
+	private static final int CACHE_SIZE = 1000;
+	
+	
+	private static final LruCache<String, CertificateInfo> cache = new LruCache<String, CertificateInfo>(CACHE_SIZE);
+	
+	
+	private static final DateTimeFormatter DATE_OUTPUT = ISODateTimeFormat.dateTime().withZone(DateTimeZone.UTC);
+	
+	
+	private CertificateReader() {
+		// static methods only
+	}
+	
+	
+	/** Returns the fields of the specified certificate.
+	 * 
+	 *  @param der
+	 *  	DER encoded X.509 certificate.
+	 *  @throws CertificateException
+	 *  	if the certificate cannot be parsed.
+	 */
+	@Nonnull
+	public static CertificateInfo read(@Nonnull byte[] der) throws CertificateException {
+		
+		String hash = hash(der);
+		
+		CertificateInfo result = cache.get(hash);
+		
+		if (result == null) {
+			CertificateFactory factory = CertificateFactory.getInstance("X.509"); // not thread-safe.
+			X509Certificate cert = (X509Certificate)factory.generateCertificate(new ByteArrayInputStream(der));
+			
+			result = new CertificateInfo(cert);
+			cache.put(hash, result);
+		}
+		
+		return result;
+	}
+	
+	
+	private static String hash(byte[] der) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return new String(Hex.encodeHex(digest.digest(der)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Unexpected. SHA-1 is not supported by this JVM.", e);
+		}
+	}
+	
+	
+	/** Fields of a single certificate. Immutable.
+	 */
+	static class CertificateInfo {
+		
+		private final String subject;
+		private final String issuer;
+		private final String serial;
+		private final String notBefore;
+		private final String notAfter;
+		
+		
+		CertificateInfo(X509Certificate cert) {
+			subject   = cert.getSubjectX500Principal().getName(X500Principal.RFC2253);
+			issuer    = cert.getIssuerX500Principal().getName(X500Principal.RFC2253);
+			serial    = cert.getSerialNumber().toString(16).toUpperCase();
+			notBefore = DATE_OUTPUT.print(cert.getNotBefore().getTime());
+			notAfter  = DATE_OUTPUT.print(cert.getNotAfter().getTime());
+		}
+		
+		
+		@CheckForNull
+		public String get(@Nonnull CertificateField field) {
+			switch (field) {
+				case SUBJECT:
+					return subject;
+				case ISSUER:
+					return issuer;
+				case SERIAL:
+					return serial;
+				case NOT_BEFORE:
+					return notBefore;
+				case NOT_AFTER:
+					return notAfter;
+				default:
+					return null; // unreachable
+			}
+		}
+	}
+
+}
@@ -0,0 +1,222 @@
+package no.ez.crowd.customattributes;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Converted custom attribute values by entry DN, valid as long as the change marker 
+ *  of the entry (like <code>modifyTimestamp</code> or <code>uSNChanged</code>) is the same.
+ *  An unchanged entry is served from the cache without reading and converting its attributes
+ *  again. Shared by all the mappers of a directory. Thread-safe.<br><br>
+ *  
+ *  The entries without the marker attribute are not cached. Neither are the entries changed within
+ *  the last {@link #UNSETTLED_MILLIS}, if the marker is a timestamp like <code>modifyTimestamp</code>:
+ *  it has a resolution of one second, so another change in the same second keeps the marker.
+ *  The attributes, which change without changing the entry, are not cached at all, see
+ *  {@link CustomAttributeMapper#createList(java.util.Collection, MapperContext)}. A new cache is created every 
+ *  time the configuration is reloaded, see {@link MapperContext#updateChangeMarkerCache(EntryCache, java.io.File)}.
+ *  Optionally backed by an {@link EntryStore}.
+ *  
+ *  @see EntryCache
+ */
+final class ChangeMarkerCache {
+	
+	
+	/** Time after the change of the entry, the values are not cached for. */
+	static final long UNSETTLED_MILLIS = 2000;
+	
+	
+	/** The seconds of the timestamp markers like <code>20140101000000Z</code>. */
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormat.forPattern("yyyyMMddHHmmss").withZone(DateTimeZone.UTC);
+	
+	
+	private final String markerAttribute;
+	
+	
+	private final LruCache<String, Entry> entries;
+	
+	
+	@Nullable
+	private final EntryStore store;
+	
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	private final AtomicLong unmarked = new AtomicLong();
+	
+	private final AtomicLong unsettled = new AtomicLong();
+	
+	
+	/** @param maxSize
+	 *  	maximum number of the cached entries. Must be positive.
+	 */
+	public ChangeMarkerCache(@Nonnull String markerAttribute, int maxSize) {
+		this(markerAttribute, maxSize, null);
+	}
+	
+	
+	/** Like {@link #ChangeMarkerCache(String, int)}, but loads the entries from the store
+	 *  and appends the new ones to it. The entries evicted from the cache are pruned, 
+	 *  when the store merges its segments.
+	 * 
+	 *  @param store
+	 *  	<code>null</code> for a memory-only cache.
+	 */
+	public ChangeMarkerCache(@Nonnull String markerAttribute, int maxSize, @Nullable EntryStore store) {
+		this.markerAttribute = markerAttribute;
+		this.entries = new LruCache<String, Entry>(maxSize, 8);
+		this.store = store;
+		
+		if (store != null) {
+			store.load(new EntryStore.Loader() {
+				@Override
+				public void restore(String dn, String marker, String key, Set<String> values) {
+					entry(dn, marker).values.put(key, Collections.unmodifiableSet(values));
+				}
+			}, new EntryStore.Retention() {
+				@Override
+				public boolean retain(String dn) {
+					return entries.containsKey(dn); // evicted entries are deleted or not used for long.
+				}
+			});
+		}
+	}
+	
+	
+	@Nonnull
+	public String getMarkerAttribute() {
+		return markerAttribute;
+	}
+	
+	
+	/** Returns the cached values of the mapper, if the entry has not changed since they were 
+	 *  cached. Otherwise converts them using {@link CustomAttributeMapper#convertEntry(DirContextAdapter)} 
+	 *  and caches the result.
+	 *  
+	 *  @return
+	 *  	read-only set.
+	 */
+	@Nonnull
+	public Set<String> getValues(@Nonnull DirContextAdapter ctx, @Nonnull CustomAttributeMapper mapper) {
+		
+		String marker = readMarker(ctx);
+		
+		if (marker == null) {
+			unmarked.incrementAndGet();
+			return mapper.convertEntry(ctx);
+		}
+		
+		if (isUnsettled(marker, System.currentTimeMillis())) {
+			unsettled.incrementAndGet();
+			return mapper.convertEntry(ctx);
+		}
+		
+		String dn = ctx.getNameInNamespace().toLowerCase(Locale.ENGLISH);
+		
+		Entry entry = entry(dn, marker);
+		
+		Set<String> result = entry.values.get(mapper.getKey());
+		if (result != null) {
+			hits.incrementAndGet();
+			return result;
+		}
+		
+		misses.incrementAndGet();
+		result = Collections.unmodifiableSet(mapper.convertEntry(ctx));
+		entry.values.put(mapper.getKey(), result);
+		if (store != null) {
+			store.append(dn, marker, mapper.getKey(), result);
+		}
+		return result;
+	}
+	
+	
+	/** Returns the entry with the specified marker, replaces the entry with another marker. */
+	private Entry entry(String dn, String marker) {
+		Entry result = entries.get(dn);
+		if (result == null || ! result.marker.equals(marker)) {
+			result = new Entry(marker);
+			entries.put(dn, result);
+		}
+		return result;
+	}
+	
+	
+	/** Flushes the store, if there is one. The cache remains usable. */
+	public void close() {
+		if (store != null) {
+			store.close();
+		}
+	}
+	
+	
+	@CheckForNull
+	private String readMarker(DirContextAdapter ctx) {
+		Object[] values = ctx.getObjectAttributes(markerAttribute);
+		if (values != null) {
+			for (Object value : values) {
+				if (value != null) {
+					return value.toString();
+				}
+			}
+		}
+		return null;
+	}
+	
+	
+	/** Returns <code>true</code>, if the marker is a timestamp within the last {@link #UNSETTLED_MILLIS}
+	 *  or in the future. Other markers (like <code>uSNChanged</code>) are always settled. */
+	static boolean isUnsettled(@Nonnull String marker, long now) {
+		if (marker.length() < 15 || marker.charAt(marker.length() - 1) != 'Z') {
+			return false;
+		}
+		for (int i = 0; i < 14; i++) {
+			if (marker.charAt(i) < '0' || marker.charAt(i) > '9') {
+				return false;
+			}
+		}
+		try {
+			return TIMESTAMP.parseMillis(marker.substring(0, 14)) > now - UNSETTLED_MILLIS;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+	
+	
+	@Override
+	public String toString() {
+		return 
+			"ChangeMarkerCache{marker=" + markerAttribute + ", entries=" + entries.size() + "/" + entries.getMaxSize() + 
+			", hits=" + hits + ", misses=" + misses + ", unmarked=" + unmarked + ", unsettled=" + unsettled + "}";
+	}
+	
+	
+	private static final class Entry {
+	
+		final String marker;
+	
+		/** Converted values by attribute key. */
+		final Map<String, Set<String>> values = new ConcurrentHashMap<String, Set<String>>();
+	
+		Entry(String marker) {
+			this.marker = marker;
+		}
+	}
+	
+}
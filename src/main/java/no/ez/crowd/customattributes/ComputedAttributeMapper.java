@@ -0,0 +1,56 @@
+package no.ez.crowd.customattributes;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Mapper for the {@link AttributeType#COMPUTED} attributes. Evaluates the precompiled
+ *  {@link ValueTemplate} against the already fetched entry, no extra LDAP reads.
+ * 
+ *  @see CustomAttributeMapper#create(CustomAttribute)
+ */
+final class ComputedAttributeMapper extends CustomAttributeMapper {
+	
+	
+	private final ValueTemplate template;
+	
+	
+	public ComputedAttributeMapper(@Nonnull CustomAttribute attribute) {
+		super(attribute);
+		this.template = attribute.getValueTemplate();
+		if (template == null) {
+			throw new IllegalArgumentException("Computed attribute [" + attribute.getKey() + "] has no template.");
+		}
+	}
+	
+	
+	/** The raw values are ignored, the attribute has no LDAP names. */
+	@Override
+	@Nonnull
+	Set<String> convertAll(@Nonnull DirContextAdapter ctx, @Nullable Object[] attrs) {
+		
+		Set<String> result = new LinkedHashSet<String>();
+		
+		String value = template.evaluate(ctx);
+		if (value != null) {
+			result.add(value);
+		}
+		
+		return complete(ctx, result);
+	}
+	
+	
+	@Override
+	public Set<String> getRequiredLdapAttributes() {
+		Set<String> result = super.getRequiredLdapAttributes();
+		template.collectAttributes(result);
+		return result;
+	}
+	
+}
@@ -0,0 +1,89 @@
+package no.ez.crowd.customattributes;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+
+
+/** A condition tag. The attribute is mapped only for the entries, which have
+ *  the specified object class and match the filter (if both are specified,
+ *  both must match). Evaluated against the already fetched entry.
+ * 
+ *  @see LdapFilter
+ */
+@XmlType(name="condition")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class Condition {
+	
+	
+	@XmlAttribute(name="object-class", required=false)
+	@CheckForNull
+	private String objectClass;
+	
+	
+	@XmlAttribute(name="filter", required=false)
+	@CheckForNull
+	private String filter;
+	
+	
+	/** For JAX. Do not delete! */
+	protected Condition() {
+		// nothing
+	}
+	
+
+	public Condition(@CheckForNull String objectClass, @CheckForNull String filter) {
+		this.objectClass = objectClass;
+		this.filter = filter;
+	}
+
+
+	@CheckForNull
+	public String getObjectClass() {
+		return objectClass;
+	}
+
+
+	@CheckForNull
+	public String getFilter() {
+		return filter;
+	}
+	
+	
+	/** Compiles the condition to a single filter.
+	 * 
+	 *  @throws IllegalArgumentException
+	 *  	if the filter is invalid or neither object class nor filter is specified.
+	 */
+	@Nonnull
+	public LdapFilter compile() {
+		if (objectClass == null && filter == null) {
+			throw new IllegalArgumentException("Condition must specify an object class, a filter or both.");
+		}
+		StringBuilder result = new StringBuilder();
+		if (objectClass != null && filter != null) {
+			result.append("(&");
+		}
+		if (objectClass != null) {
+			result.append("(objectClass=").append(objectClass.trim()).append(')');
+		}
+		if (filter != null) {
+			result.append(filter.trim());
+		}
+		if (objectClass != null && filter != null) {
+			result.append(')');
+		}
+		return LdapFilter.parse(result.toString());
+	}
+	
+	
+	@Override
+	public String toString() {
+		return (objectClass != null ? "objectClass=" + objectClass : "") + (filter != null ? filter : "");
+	}
+
+}
@@ -3,6 +3,10 @@ package no.ez.crowd.customattributes;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -10,6 +14,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBContext;
@@ -88,7 +93,8 @@ class ConfigurationReader {
 		Set<CustomAttribute> bin = new HashSet<CustomAttribute>();
 		Set<CustomAttribute> nonbin = new HashSet<CustomAttribute>();
 		
-		Iterator<CustomAttribute> it = Iterators.concat(attrs.userAttrs.iterator(), attrs.groupAttrs.iterator());
+		Iterator<CustomAttribute> it = Iterators.concat(
+				CustomAttribute.withFields(attrs.userAttrs).iterator(), CustomAttribute.withFields(attrs.groupAttrs).iterator());
 		
 		while (it.hasNext()) {
 			CustomAttribute attr = it.next();
@@ -115,6 +121,74 @@ class ConfigurationReader {
 	}
 	
 
+	/** Returns the entry cache configuration of the first directory matching the ID or URL.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if the cache is not configured.
+	 */
+	@CheckForNull
+	public EntryCache readEntryCache(long directoryId, String directoryUrl) {
+		Directory dir = findDirectory(directoryId, directoryUrl);
+		return dir != null ? dir.getEntryCache() : null;
+	}
+	
+	
+	/** Returns the digest configuration of the first directory matching the ID or URL.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if the digest is not configured.
+	 */
+	@CheckForNull
+	public Digest readDigest(long directoryId, String directoryUrl) {
+		Directory dir = findDirectory(directoryId, directoryUrl);
+		return dir != null ? dir.getDigest() : null;
+	}
+	
+	
+	/** Returns the batch configuration of the first directory matching the ID or URL.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if the batch conversion is not configured.
+	 */
+	@CheckForNull
+	public Batch readBatch(long directoryId, String directoryUrl) {
+		Directory dir = findDirectory(directoryId, directoryUrl);
+		return dir != null ? dir.getBatch() : null;
+	}
+	
+	
+	/** Returns the connection settings of the first directory matching the ID or URL.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if the connection settings are not configured.
+	 */
+	@CheckForNull
+	public ConnectionSettings readConnection(long directoryId, String directoryUrl) {
+		Directory dir = findDirectory(directoryId, directoryUrl);
+		return dir != null ? dir.getConnection() : null;
+	}
+	
+	
+	/** Returns the first directory matching the ID or URL.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if no directory matches.
+	 */
+	@CheckForNull
+	private Directory findDirectory(long directoryId, String directoryUrl) {
+		try {
+			for (Directory dir : loadConfig().getDirectories()) {
+				if (dir.isServer(directoryId, directoryUrl)) {
+					return dir;
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading custom attribute configuration for directory [" + directoryId + "; " + directoryUrl + "].", e);
+		}
+	}
+	
+	
 	protected DoubleList readAttributes(long directoryId, String directoryUrl) {
 
 		try {
@@ -199,6 +273,8 @@ class ConfigurationReader {
 						Source xmlsource = new SAXSource(xmlreader, new InputSource(xmlsourceFile));
 					
 						Configuration result = (Configuration)um.unmarshal(xmlsource);
+						
+						compile(result);
 					
 						config = result; // updating cache.
 						configLastLoad = new DateTime();
@@ -235,6 +311,83 @@ class ConfigurationReader {
 	}
 
 	
+	/** Compiles the conditions, transforms and creates the converters of the {@link AttributeType#CUSTOM} 
+	 *  attributes once per configuration load. The configuration is rejected, if some condition,
+	 *  transform, template or flag mask is invalid or some converter cannot be created.
+	 */
+	private void compile(@Nonnull Configuration cfg) throws JAXBException {
+		
+		ConverterRegistry registry = null; // loaded only if needed
+		
+		for (Directory dir : cfg.getDirectories()) {
+			if (dir.getEntryCache() != null) {
+				dir.getEntryCache().setFingerprint(fingerprint(dir));
+			}
+			Iterator<CustomAttribute> it = Iterators.concat(
+					CustomAttribute.withFields(dir.getUserAttributes()).iterator(), CustomAttribute.withFields(dir.getGroupAttributes()).iterator());
+			while (it.hasNext()) {
+				CustomAttribute attr = it.next();
+				try {
+					attr.getConditionFilter();
+					attr.getTransformers();
+					attr.getValueTemplate();
+					attr.getRefreshMillis();
+					for (Flag flag : attr.getFlags()) {
+						flag.getMaskValue();
+					}
+				} catch (IllegalArgumentException e) {
+					throw new JAXBException(
+							"Invalid condition, transform, template, refresh-every or flag mask of the attribute key [" + attr.getKey() + "] in directory [" + dir.getName() + "]. " + e.getMessage(), e);
+				}
+				if ((attr.getType() == AttributeType.COMPUTED) != (attr.getTemplate() != null)) {
+					throw new JAXBException(
+							"Attribute key [" + attr.getKey() + "] in directory [" + dir.getName() + "] must have a template, if and only if it is COMPUTED.");
+				}
+				if ((attr.getType() == AttributeType.JSON) != ! attr.getFields().isEmpty()) {
+					throw new JAXBException(
+							"Attribute key [" + attr.getKey() + "] in directory [" + dir.getName() + "] must have nested attributes, if and only if it is JSON.");
+				}
+				if (attr.getType() != AttributeType.COMPUTED && attr.getType() != AttributeType.JSON && attr.getLdapNames().isEmpty()) {
+					throw new JAXBException(
+							"Attribute key [" + attr.getKey() + "] in directory [" + dir.getName() + "] must have an ldap-name.");
+				}
+				if (attr.getType() == AttributeType.CUSTOM || attr.getType() == AttributeType.CUSTOM_BINARY) {
+					if (registry == null) {
+						registry = new ConverterRegistry();
+					}
+					try {
+						attr.compileConverter(registry);
+					} catch (IllegalArgumentException e) {
+						throw new JAXBException("Error creating the converter in directory [" + dir.getName() + "]. " + e.getMessage(), e);
+					}
+				}
+			}
+		}
+	}
+	
+	
+	/** Returns the MD5 digest of the user and group attributes of the directory
+	 *  as they are converted. */
+	@Nonnull
+	private static String fingerprint(@Nonnull Directory dir) {
+		StringBuilder text = new StringBuilder();
+		text.append("user");
+		for (CustomAttribute attr : dir.getUserAttributes()) {
+			text.append('\n').append(attr.getKey()).append('=').append(SharedConversion.signature(attr));
+		}
+		text.append("\ngroup");
+		for (CustomAttribute attr : dir.getGroupAttributes()) {
+			text.append('\n').append(attr.getKey()).append('=').append(SharedConversion.signature(attr));
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(text.toString().getBytes(Charset.forName("UTF-8")));
+			return new BigInteger(1, digest).toString(16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not supported by the JVM.", e);
+		}
+	}
+	
+	
 	/** User and group attributes in a single object.
 	 */
 	protected static class DoubleList {
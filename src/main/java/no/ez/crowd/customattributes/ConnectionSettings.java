@@ -0,0 +1,97 @@
+package no.ez.crowd.customattributes;
+
+import javax.annotation.CheckForNull;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+
+
+/** A connection tag of a directory. Tunes the JNDI connections of the directory, 
+ *  which cannot be configured in the Crowd UI. The settings not specified are left
+ *  as configured by Crowd.<br><br>
+ *  
+ *  The timeouts, the batch size and the pooling are set in the environment of the directory.
+ *  The pool sizes, the pool timeout and the pooled protocols are not supported: they are JVM-wide 
+ *  system properties of the JNDI LDAP provider (<code>com.sun.jndi.ldap.connect.pool.*</code>),
+ *  read once, when the pool is created. Set them on the command line of Crowd instead.
+ * 
+ *  @see AttributeMapperCreater#putConnectionSettings(java.util.Map, long, String)
+ */
+@XmlType(name="connection")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ConnectionSettings {
+	
+	
+	public static final String CONNECT_TIMEOUT = "com.sun.jndi.ldap.connect.timeout";
+	
+	public static final String READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
+	
+	public static final String BATCH_SIZE = "java.naming.batchsize";
+	
+	public static final String POOL = "com.sun.jndi.ldap.connect.pool";
+	
+	
+	@XmlAttribute(name="connect-timeout", required=false)
+	@CheckForNull
+	private Long connectTimeout;
+	
+	
+	@XmlAttribute(name="read-timeout", required=false)
+	@CheckForNull
+	private Long readTimeout;
+	
+	
+	@XmlAttribute(name="batch-size", required=false)
+	@CheckForNull
+	private Integer batchSize;
+	
+	
+	@XmlAttribute(name="pool", required=false)
+	@CheckForNull
+	private Boolean pool;
+	
+	
+	/** For JAX. Do not delete! */
+	protected ConnectionSettings() {
+		// nothing
+	}
+	
+	
+	/** This class should by created by JAXB. This constructor is for testing. */
+	public ConnectionSettings(@CheckForNull Long connectTimeout, @CheckForNull Long readTimeout, @CheckForNull Boolean pool) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.pool = pool;
+	}
+	
+	
+	/** Milliseconds to wait for a new connection. */
+	@CheckForNull
+	public Long getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	
+	/** Milliseconds to wait for a response. */
+	@CheckForNull
+	public Long getReadTimeout() {
+		return readTimeout;
+	}
+	
+	
+	/** Number of the search results returned by the server at once. */
+	@CheckForNull
+	public Integer getBatchSize() {
+		return batchSize;
+	}
+	
+	
+	/** <code>true</code> to take the connections of the directory from the JNDI pool. */
+	@CheckForNull
+	public Boolean getPool() {
+		return pool;
+	}
+	
+}
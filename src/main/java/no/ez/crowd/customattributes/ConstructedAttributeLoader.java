@@ -0,0 +1,238 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Reads the constructed attributes (see {@link CustomAttribute#isConstructed()}) with base-object
+ *  lookups and puts them into the entries found by the subtree search, so the regular mappers convert
+ *  them like any other attribute. Shared by all the mappers of a directory. Thread-safe.<br><br>
+ *
+ *  Active Directory computes attributes like <code>msDS-UserPasswordExpiryTimeComputed</code> or
+ *  <code>tokenGroups</code> only for base-object searches. The loader reads all the constructed
+ *  attributes of an entry with one lookup, when the first mapper needs them. The entries of a result 
+ *  page (registered by the {@link BatchLdapTemplate} with {@link #startPage(List)}) are read in batches 
+ *  instead: the first entry of a batch needed by a mapper reads the whole batch with one pooled connection.
+ *  The batches of a page are read by the threads mapping the page, no threads are created. The number 
+ *  of connections used at once is limited.
+ */
+final class ConstructedAttributeLoader {
+	
+	private final Logger logger = LoggerFactory.getLogger(ConstructedAttributeLoader.class);
+	
+	
+	/** Reads the attributes of the entries from LDAP. */
+	public static interface Lookup {
+	
+		/** Reads the specified attributes of the entries with base-object lookups.
+		 *
+		 *  @return
+		 *  	attributes by DN as specified. The entries not found are missing.
+		 */
+		@Nonnull
+		Map<String, Attributes> lookup(@Nonnull Collection<String> dns, @Nonnull String[] ldapNames) throws NamingException;
+	}
+	
+	
+	/** Maximum number of the connections used for the lookups at once. */
+	static final int DEFAULT_CONCURRENCY = 2;
+	
+	
+	/** Maximum number of the entries read with one connection. */
+	static final int DEFAULT_BATCH_SIZE = 50;
+	
+	
+	private final Lookup lookup;
+	
+	
+	private final int concurrency;
+	
+	
+	private final int batchSize;
+	
+	
+	/** Limits the connections used at once. */
+	private final Semaphore connections;
+	
+	
+	/** The entry read last by {@link #load(DirContextAdapter, String[])} in every thread. The mappers
+	 *  of an entry are called one after another, so it is read once for all of them. */
+	private final ThreadLocal<DirContextAdapter> lastEntry = new ThreadLocal<DirContextAdapter>();
+	
+	
+	/** The batches of the pages being mapped by entry. See {@link #startPage(List)}. */
+	private final Map<DirContextAdapter, Batch> pages = Collections.synchronizedMap(new IdentityHashMap<DirContextAdapter, Batch>());
+	
+	
+	private final AtomicLong entries = new AtomicLong();
+	
+	private final AtomicLong lookups = new AtomicLong();
+	
+	private final AtomicLong failures = new AtomicLong();
+	
+	
+	public ConstructedAttributeLoader(@Nonnull Lookup lookup) {
+		this(lookup, DEFAULT_CONCURRENCY, DEFAULT_BATCH_SIZE);
+	}
+	
+	
+	/** @param concurrency
+	 *  	maximum number of the connections used at once. Must be positive.
+	 *  @param batchSize
+	 *  	maximum number of the entries read with one connection. Must be positive.
+	 */
+	public ConstructedAttributeLoader(@Nonnull Lookup lookup, int concurrency, int batchSize) {
+		if (concurrency <= 0 || batchSize <= 0) {
+			throw new IllegalArgumentException("Concurrency [" + concurrency + "] and batch size [" + batchSize + "] must be positive.");
+		}
+		this.lookup = lookup;
+		this.concurrency = concurrency;
+		this.batchSize = batchSize;
+		this.connections = new Semaphore(concurrency, true);
+	}
+	
+	
+	/** Reads the constructed attributes of the entry, unless already read. Reads the whole batch,
+	 *  if the entry belongs to a page being mapped. */
+	public void load(@Nonnull DirContextAdapter ctx, @Nonnull String[] ldapNames) {
+		if (ldapNames.length == 0 || ctx == lastEntry.get()) {
+			return;
+		}
+		lastEntry.set(ctx);
+		Batch batch = pages.get(ctx);
+		if (batch == null || ! batch.load(ldapNames)) {
+			loadBatch(Collections.singletonList(ctx), ldapNames);
+		}
+	}
+	
+	
+	/** Registers the entries of a result page before they are mapped, so they are read in batches. */
+	public void startPage(@Nonnull List<DirContextAdapter> entries) {
+		for (int from = 0; from < entries.size(); from += batchSize) {
+			Batch batch = new Batch(entries.subList(from, Math.min(from + batchSize, entries.size())));
+			for (DirContextAdapter ctx : batch.entries) {
+				pages.put(ctx, batch);
+			}
+		}
+	}
+	
+	
+	/** Forgets the entries of a page registered by {@link #startPage(List)}. Must be called after mapping. */
+	public void endPage(@Nonnull List<DirContextAdapter> entries) {
+		for (DirContextAdapter ctx : entries) {
+			pages.remove(ctx);
+		}
+	}
+	
+	
+	/** @return
+	 *  	<code>false</code>, if the lookup has failed.
+	 */
+	private boolean loadBatch(List<DirContextAdapter> batch, String[] ldapNames) {
+	
+		Map<String, DirContextAdapter> byDn = new HashMap<String, DirContextAdapter>();
+		for (DirContextAdapter ctx : batch) {
+			byDn.put(ctx.getNameInNamespace(), ctx);
+		}
+	
+		Map<String, Attributes> found;
+		connections.acquireUninterruptibly();
+		try {
+			found = lookup.lookup(byDn.keySet(), ldapNames);
+		} catch (NamingException e) {
+			failures.incrementAndGet();
+			logger.warn("Error reading constructed attributes " + Arrays.toString(ldapNames) + " of " + byDn.size() + " entries. " + e.getMessage());
+			return false;
+		} finally {
+			connections.release();
+		}
+	
+		lookups.incrementAndGet();
+		entries.addAndGet(batch.size());
+	
+		for (Map.Entry<String, Attributes> e : found.entrySet()) {
+			DirContextAdapter ctx = byDn.get(e.getKey());
+			if (ctx != null) {
+				copy(e.getValue(), ctx);
+			}
+		}
+		return true;
+	}
+	
+	
+	private void copy(Attributes attrs, DirContextAdapter ctx) {
+		try {
+			NamingEnumeration<? extends Attribute> it = attrs.getAll();
+			try {
+				while (it.hasMore()) {
+					Attribute attr = it.next();
+					List<Object> values = new ArrayList<Object>(attr.size());
+					RangedAttributeReader.addAll(attr, values);
+					ctx.setAttributeValues(attr.getID(), values.toArray());
+				}
+			} finally {
+				it.close();
+			}
+		} catch (NamingException e) {
+			logger.warn("Error copying constructed attributes to [" + ctx.getDn() + "]. " + e.getMessage());
+		}
+	}
+	
+	
+	/** Entries of a page read with one lookup. */
+	private final class Batch {
+	
+		final List<DirContextAdapter> entries;
+	
+		/** Guarded by this. */
+		private boolean read;
+	
+		/** Guarded by this. */
+		private boolean failed;
+	
+		Batch(List<DirContextAdapter> entries) {
+			this.entries = entries;
+		}
+	
+		/** Reads the batch, unless already read. Waits, if another thread reads it. 
+		 *  
+		 *  @return
+		 *  	<code>false</code>, if the lookup has failed, so the entry is read alone.
+		 */
+		synchronized boolean load(String[] ldapNames) {
+			if ( ! read) {
+				read = true;
+				failed = ! loadBatch(entries, ldapNames);
+			}
+			return ! failed;
+		}
+	}
+	
+	
+	@Override
+	public String toString() {
+		return
+			"ConstructedAttributeLoader{entries=" + entries + ", lookups=" + lookups + ", failures=" + failures +
+			", connections=" + (concurrency - connections.availablePermits()) + "/" + concurrency + "}";
+	}
+	
+}
@@ -0,0 +1,102 @@
+package no.ez.crowd.customattributes;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+
+
+/** Bounded concurrent cache of the converted attribute values. Maps the raw
+ *  LDAP value to the converted value.<br><br>
+ * 
+ *  The values, which cannot be converted, are cached as {@link #UNPARSEABLE},
+ *  so the repeated broken values are not parsed with all the formats again and
+ *  again.
+ * 
+ *  @see Cache
+ */
+final class ConversionCache {
+	
+	
+	/** Marker for the values which cannot be converted. Compare by identity only! */
+	static final String UNPARSEABLE = new String("<unparseable>"); // new instance is required.
+	
+	
+	private static final int CONCURRENCY = 8;
+	
+	
+	private final LruCache<String, String> cache;
+	
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	
+	/** @param maxSize
+	 *  	maximum number of cached values. Must be positive.
+	 */
+	public ConversionCache(int maxSize) {
+		cache = new LruCache<String, String>(maxSize, CONCURRENCY);
+	}
+	
+	
+	/** @return
+	 *  	the converted value, {@link #UNPARSEABLE}, or <code>null</code> if the
+	 *  	value is not cached.
+	 */
+	@CheckForNull
+	public String get(@Nonnull String raw) {
+		String result = cache.get(raw);
+		if (result == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return result;
+	}
+	
+	
+	/** @param converted
+	 *  	converted value or <code>null</code>, if the raw value cannot be converted.
+	 */
+	public void put(@Nonnull String raw, @Nullable String converted) {
+		cache.put(raw, converted != null ? converted : UNPARSEABLE);
+	}
+	
+	
+	public int size() {
+		return cache.size();
+	}
+	
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	
+	/** Returns the ratio of the hits to all the lookups, or <code>0</code> if
+	 *  there were no lookups yet. */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double)h / total;
+	}
+	
+	
+	@Override
+	public String toString() {
+		return 
+			"ConversionCache{size=" + cache.size() + "/" + cache.getMaxSize() + 
+			", hits=" + hits + ", misses=" + misses + ", hitRate=" + Math.round(getHitRate() * 100) + "%}";
+	}
+
+}
@@ -0,0 +1,82 @@
+package no.ez.crowd.customattributes;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+
+/** Finds the {@link AttributeConverterProvider}s using {@link ServiceLoader}.<br><br>
+ *
+ *  The providers are searched with the class loader of the plugin first and then
+ *  with the context class loader of the current thread. In the OSGi bundle only
+ *  the first one sees the plugin classes, while the providers from other jars
+ *  may be visible to the second one only. The first provider found wins, if
+ *  several have the same name.
+ */
+final class ConverterRegistry {
+	
+	private final Logger logger = LoggerFactory.getLogger(ConverterRegistry.class);
+	
+	
+	private final Map<String, AttributeConverterProvider> providers = new LinkedHashMap<String, AttributeConverterProvider>();
+	
+	
+	/** Loads all the providers visible at the moment. */
+	public ConverterRegistry() {
+		load(AttributeConverterProvider.class.getClassLoader());
+	
+		ClassLoader context = Thread.currentThread().getContextClassLoader();
+		if (context != null && context != AttributeConverterProvider.class.getClassLoader()) {
+			load(context);
+		}
+	}
+	
+	
+	private void load(ClassLoader classLoader) {
+		Iterator<AttributeConverterProvider> it = ServiceLoader.load(AttributeConverterProvider.class, classLoader).iterator();
+		while (true) {
+			AttributeConverterProvider provider;
+			try {
+				if ( ! it.hasNext()) {
+					break;
+				}
+				provider = it.next();
+			} catch (ServiceConfigurationError e) {
+				logger.error("Error loading a custom attribute converter provider. " + e.getMessage());
+				continue;
+			}
+	
+			String name = provider.getName();
+			if ( ! providers.containsKey(name)) {
+				providers.put(name, provider);
+				logger.info("Custom attribute converter [" + name + "] found (" + provider.getClass().getName() + ").");
+			}
+		}
+	}
+	
+	
+	/** @return
+	 *  	<code>null</code>, if not found.
+	 */
+	@CheckForNull
+	public AttributeConverterProvider find(@Nonnull String name) {
+		return providers.get(name);
+	}
+	
+	
+	@Nonnull
+	public Set<String> getNames() {
+		return providers.keySet();
+	}
+	
+}
@@ -1,8 +1,12 @@
 package no.ez.crowd.customattributes;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.CheckForNull;
@@ -13,6 +17,7 @@ import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.bind.annotation.XmlType;
 
 import com.google.common.base.Objects;
@@ -20,8 +25,9 @@ import com.google.common.base.Objects;
 
 /** Configuration for a single attribute.<br><br>
  * 
- *  An LDAP attribute {@link #ldapName} must be converted to 
- *  the Crowd custom attribute {@link #key}.
+ *  An LDAP attribute {@link #ldapNames} must be converted to 
+ *  the Crowd custom attribute {@link #key}. If several LDAP names are
+ *  specified, the first one having a value is used.
  * 
  *  @author rodion.alukhanov
  */
@@ -42,15 +48,144 @@ public class CustomAttribute {
 	private boolean operational = false;
 	
 
+	/** @see #getCertificateField() */
+	@XmlAttribute(name="certificate-field", required=false)
+	@CheckForNull
+	private CertificateField certificateField;
+	
+
+	/** @see #getOutputFormat() */
+	@XmlAttribute(name="output", required=false)
+	@CheckForNull
+	private OutputFormat outputFormat;
+	
+	
+	@XmlAttribute(name="output-pattern", required=false)
+	@CheckForNull
+	private String outputPattern;
+	
+	
+	/** @see #getNamingAttribute() */
+	@XmlAttribute(name="naming-attribute", required=false)
+	@CheckForNull
+	private String namingAttribute;
+	
+	
+	/** @see #getTemplate() */
+	@XmlAttribute(name="template", required=false)
+	@CheckForNull
+	private String template;
+	
+	
+	/** @see #getConverterName() */
+	@XmlAttribute(name="converter", required=false)
+	@CheckForNull
+	private String converterName;
+	
+	
+	/** @see #getRefreshMillis() */
+	@XmlAttribute(name="refresh-every", required=false)
+	@CheckForNull
+	private String refreshEvery;
+	
+	
+	/** @see #isConstructed() */
+	@XmlAttribute(name="constructed", required=false)
+	private boolean constructed = false;
+	
+	
+	/** @see #isLazy() */
+	@XmlAttribute(name="lazy", required=false)
+	private boolean lazy = false;
+	
+
+	/** Fallback chain. The first LDAP attribute having a value is used. */
 	@XmlElement(name="ldap-name")
-	private String ldapName;
+	private List<String> ldapNames;
 
 	
+	@XmlElement(name="condition")
+	@CheckForNull
+	private Condition condition;
+	
+	
 	@XmlElement(name="format")
 	@CheckForNull
 	private List<Format> formats; 
 	
 	
+	@XmlElement(name="flag")
+	@CheckForNull
+	private List<Flag> flags; 
+	
+	
+	@XmlElement(name="intern")
+	@CheckForNull
+	private Intern intern;
+	
+	
+	@XmlElement(name="cache")
+	@CheckForNull
+	private Cache cache;
+	
+	
+	@XmlElement(name="parameter")
+	@CheckForNull
+	private List<Parameter> parameters;
+	
+	
+	@XmlElement(name="transform")
+	@CheckForNull
+	private List<Transform> transforms;
+	
+	
+	/** @see #getFields() */
+	@XmlElement(name="attribute")
+	@CheckForNull
+	private List<CustomAttribute> fields;
+	
+	
+	/** Runtime state. Created on demand and lives as long as the configuration is not reloaded. */
+	@XmlTransient
+	@CheckForNull
+	private InternPool internPool;
+	
+	
+	/** Runtime state like {@link #internPool}. */
+	@XmlTransient
+	@CheckForNull
+	private ConversionCache conversionCache;
+	
+	
+	/** Runtime state like {@link #internPool}. */
+	@XmlTransient
+	private final LazyValueSet.Statistics lazyStatistics = new LazyValueSet.Statistics();
+	
+	
+	/** Compiled {@link #transforms}. See {@link #getTransformers()}. */
+	@XmlTransient
+	@CheckForNull
+	private List<ValueTransformer> transformers;
+	
+	
+	/** Compiled {@link #condition}. See {@link #getConditionFilter()}. */
+	@XmlTransient
+	@CheckForNull
+	private LdapFilter conditionFilter;
+	
+	
+	/** Compiled {@link #template}. See {@link #getValueTemplate()}. */
+	@XmlTransient
+	@CheckForNull
+	private ValueTemplate valueTemplate;
+	
+	
+	/** Compiled when the configuration is loaded. See {@link #compileConverter(ConverterRegistry)}. */
+	@XmlTransient
+	@CheckForNull
+	private AttributeConverter converter;
+	
+	
 	/** Do not delete. JAXB needs it! */
 	protected CustomAttribute() {
 		// nothing
@@ -62,20 +197,76 @@ public class CustomAttribute {
 	public CustomAttribute(String key, AttributeType type, String ldapName) {
 		this.key = key;
 		this.type = type;
-		this.ldapName = ldapName;
+		this.ldapNames = Collections.singletonList(ldapName);
 	}
 	
 	
 	/** This class should by created by JAXB. This constructor is for testing.
 	 */
-	public CustomAttribute(String key, AttributeType type, String ldapName, List<Format> formats) {
+	public CustomAttribute(String key, AttributeType type, List<String> ldapNames) {
 		this.key = key;
 		this.type = type;
-		this.ldapName = ldapName;
+		this.ldapNames = ldapNames;
+	}
+	
+	
+	/** This class should by created by JAXB. This constructor is for testing.
+	 */
+	public CustomAttribute(String key, AttributeType type, String ldapName, List<Format> formats) {
+		this(key, type, ldapName);
 		this.formats = formats;
 	}
 
 
+	/** This class should by created by JAXB. This constructor is for testing.
+	 */
+	public CustomAttribute(String key, AttributeType type, String ldapName, List<Format> formats, List<Flag> flags) {
+		this(key, type, ldapName, formats);
+		this.flags = flags;
+	}
+
+
+	/** This class should by created by JAXB. This constructor is for testing.
+	 */
+	public CustomAttribute(String key, AttributeType type, String ldapName, boolean lazy) {
+		this(key, type, ldapName);
+		this.lazy = lazy;
+	}
+
+
+	/** This class should by created by JAXB. This constructor is for testing.
+	 */
+	public CustomAttribute(String key, AttributeType type, String ldapName, String refreshEvery) {
+		this(key, type, ldapName);
+		this.refreshEvery = refreshEvery;
+	}
+
+
+	/** This class should by created by JAXB. This constructor is for testing.
+	 */
+	public CustomAttribute(String key, AttributeType type, String ldapName, Condition condition) {
+		this(key, type, ldapName);
+		this.condition = condition;
+	}
+
+
+	/** This class should by created by JAXB. This constructor is for testing.
+	 */
+	public CustomAttribute(String key, AttributeType type, String ldapName, Transform... transforms) {
+		this(key, type, ldapName);
+		this.transforms = Arrays.asList(transforms);
+	}
+
+
+	/** This class should by created by JAXB. This constructor is for testing.
+	 */
+	public CustomAttribute(String key, String ldapName, String converterName, List<Parameter> parameters) {
+		this(key, AttributeType.CUSTOM, ldapName);
+		this.converterName = converterName;
+		this.parameters = parameters;
+	}
+
+
 	public String getKey() {
 		return key;
 	}
@@ -91,13 +282,344 @@ public class CustomAttribute {
 	}
 	
 	
+	@Nonnull
+	public List<Flag> getFlags() {
+		List<Flag> result = flags;
+		if (result == null) {
+			result = new ArrayList<Flag>();
+		}
+		return result;
+	}
+	
+	
+	/** Field emitted by the {@link AttributeType#CERTIFICATE} attributes. 
+	 *  {@link CertificateField#SUBJECT} by default.
+	 */
+	@Nonnull
+	public CertificateField getCertificateField() {
+		CertificateField result = certificateField;
+		if (result == null) {
+			result = CertificateField.SUBJECT;
+		}
+		return result;
+	}
+	
+	
+	/** Output format for the datetime attributes. {@link OutputFormat#ISO} by default. 
+	 */
+	@Nonnull
+	public OutputFormat getOutputFormat() {
+		OutputFormat result = outputFormat;
+		if (result == null) {
+			result = OutputFormat.ISO;
+		}
+		return result;
+	}
+	
+	
+	/** Joda time pattern used for the {@link OutputFormat#PATTERN} output. */
+	@CheckForNull
+	public String getOutputPattern() {
+		return outputPattern;
+	}
+	
+	
+	@CheckForNull
+	public Condition getCondition() {
+		return condition;
+	}
+	
+	
+	/** Returns the compiled {@link Condition}. Compiled once, when the configuration
+	 *  is loaded (or on the first call).
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if no condition is configured.
+	 *  @throws IllegalArgumentException
+	 *  	if the condition is invalid.
+	 */
+	@CheckForNull
+	public synchronized LdapFilter getConditionFilter() {
+		if (condition == null) {
+			return null;
+		}
+		if (conditionFilter == null) {
+			conditionFilter = condition.compile();
+		}
+		return conditionFilter;
+	}
+	
+	
+	@Nonnull
+	public List<Transform> getTransforms() {
+		List<Transform> result = transforms;
+		if (result == null) {
+			result = new ArrayList<Transform>();
+		}
+		return result;
+	}
+	
+	
+	/** Returns the compiled {@link Transform}s in the configured order. Compiled once,
+	 *  when the configuration is loaded (or on the first call).
+	 * 
+	 *  @throws IllegalArgumentException
+	 *  	if some transform is invalid.
+	 */
+	@Nonnull
+	public synchronized List<ValueTransformer> getTransformers() {
+		if (transformers == null) {
+			List<ValueTransformer> result = new ArrayList<ValueTransformer>();
+			for (Transform transform : getTransforms()) {
+				result.add(transform.compile());
+			}
+			transformers = Collections.unmodifiableList(result);
+		}
+		return transformers;
+	}
+	
+	
+	@CheckForNull
+	public Intern getIntern() {
+		return intern;
+	}
+	
+	
+	/** Returns the pool for the attribute values, which is shared by all the mappers
+	 *  created for this attribute.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if no {@link Intern} is configured.
+	 */
+	@CheckForNull
+	public synchronized InternPool getInternPool() {
+		if (intern == null) {
+			return null;
+		}
+		if (internPool == null) {
+			internPool = new InternPool(intern.getSize(), intern.getEviction(), intern.isWeakReferences());
+		}
+		return internPool;
+	}
+	
+	
+	@CheckForNull
+	public Cache getCache() {
+		return cache;
+	}
+	
+	
+	/** Returns the cache of converted values, which is shared by all the mappers
+	 *  created for this attribute.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if no {@link Cache} is configured.
+	 */
+	@CheckForNull
+	public synchronized ConversionCache getConversionCache() {
+		if (cache == null) {
+			return null;
+		}
+		if (conversionCache == null) {
+			conversionCache = new ConversionCache(cache.getSize());
+		}
+		return conversionCache;
+	}
+	
+	
+	/** Returns <code>true</code>, if the values must be converted only when
+	 *  they are accessed for the first time.
+	 * 
+	 *  @see LazyValueSet
+	 */
+	public boolean isLazy() {
+		return lazy;
+	}
+	
+	
+	/** Returns <code>true</code> for the attributes, which the directory computes for
+	 *  base-object lookups only, like <code>msDS-UserPasswordExpiryTimeComputed</code> or 
+	 *  <code>tokenGroups</code> of Active Directory. Such attributes are not requested by the
+	 *  search, but read for the found entries separately.
+	 *  
+	 *  @see ConstructedAttributeLoader
+	 */
+	public boolean isConstructed() {
+		return constructed;
+	}
+	
+	
+	/** Minimum age of the values of a slow-changing attribute (like <code>jpegPhoto</code>), 
+	 *  before it is read from LDAP again. Configured like <code>90s</code>, <code>15m</code>, 
+	 *  <code>24h</code> or <code>7d</code>, a number without unit means seconds.
+	 *  
+	 *  @return
+	 *  	milliseconds, <code>0</code>, if the attribute is read by every search.
+	 *  @throws IllegalArgumentException
+	 *  	if the value is invalid.
+	 *  @see RefreshSchedule
+	 */
+	public long getRefreshMillis() {
+		if (refreshEvery == null) {
+			return 0;
+		}
+		String value = refreshEvery.trim();
+		long unit = 1000;
+		if (value.length() > 0) {
+			switch (value.charAt(value.length() - 1)) {
+				case 's': unit = 1000L; break;
+				case 'm': unit = 60 * 1000L; break;
+				case 'h': unit = 60 * 60 * 1000L; break;
+				case 'd': unit = 24 * 60 * 60 * 1000L; break;
+				default: unit = 0;
+			}
+		}
+		Long amount = ValueParser.parseLong(unit != 0 ? value.substring(0, value.length() - 1) : value);
+		if (amount == null || amount.longValue() < 0 || value.charAt(0) == '+' || value.charAt(0) == '-') {
+			throw new IllegalArgumentException("Invalid refresh-every [" + refreshEvery + "] of the attribute key [" + key + "].");
+		}
+		return amount.longValue() * (unit != 0 ? unit : 1000L);
+	}
+	
+	
+	/** Counters of the lazy value sets, shared by all the mappers created for this attribute. */
+	@Nonnull
+	public LazyValueSet.Statistics getLazyStatistics() {
+		return lazyStatistics;
+	}
+	
+	
+	/** Attribute of the referenced entries emitted by the {@link AttributeType#DN_REFERENCE} 
+	 *  attributes. 
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if the user name attribute of the directory must be used.
+	 */
+	@CheckForNull
+	public String getNamingAttribute() {
+		return namingAttribute;
+	}
+	
+	
+	/** Nested attributes of the {@link AttributeType#JSON} attributes. Their keys are
+	 *  the names of the JSON members. */
+	@Nonnull
+	public List<CustomAttribute> getFields() {
+		List<CustomAttribute> result = fields;
+		if (result == null) {
+			result = new ArrayList<CustomAttribute>();
+		}
+		return result;
+	}
+	
+	
+	/** Template of the {@link AttributeType#COMPUTED} attributes, like 
+	 *  <code>{givenName} {sn} &lt;{mail}&gt;</code>.
+	 * 
+	 *  @see ValueTemplate
+	 */
+	@CheckForNull
+	public String getTemplate() {
+		return template;
+	}
+	
+	
+	/** Returns the compiled {@link #getTemplate()}. Compiled once, when the configuration 
+	 *  is loaded (or on the first call).
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if no template is configured.
+	 *  @throws IllegalArgumentException
+	 *  	if the template is invalid.
+	 */
+	@CheckForNull
+	public synchronized ValueTemplate getValueTemplate() {
+		if (template == null) {
+			return null;
+		}
+		if (valueTemplate == null) {
+			valueTemplate = ValueTemplate.parse(template);
+		}
+		return valueTemplate;
+	}
+	
+	
+	/** Name of the {@link AttributeConverterProvider} for the {@link AttributeType#CUSTOM} attributes. */
+	@CheckForNull
+	public String getConverterName() {
+		return converterName;
+	}
+	
+	
+	/** Returns the values of the <code>parameter</code> tags by name. */
+	@Nonnull
+	public Map<String, String> getParameters() {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		if (parameters != null) {
+			for (Parameter parameter : parameters) {
+				result.put(parameter.getName(), parameter.getValue());
+			}
+		}
+		return Collections.unmodifiableMap(result);
+	}
+	
+	
+	/** Creates the converter of the {@link AttributeType#CUSTOM} attributes. Called once,
+	 *  when the configuration is loaded. Does nothing for other types.
+	 * 
+	 *  @throws IllegalArgumentException
+	 *  	if the converter is not found or the parameters are invalid.
+	 */
+	public synchronized void compileConverter(@Nonnull ConverterRegistry registry) {
+		if (type != AttributeType.CUSTOM && type != AttributeType.CUSTOM_BINARY) {
+			return;
+		}
+		if (converterName == null) {
+			throw new IllegalArgumentException("No converter specified for the custom attribute key [" + key + "] of type " + type + ".");
+		}
+		AttributeConverterProvider provider = registry.find(converterName);
+		if (provider == null) {
+			throw new IllegalArgumentException(
+					"Unknown converter [" + converterName + "] for the custom attribute key [" + key + "]. " + 
+					"Available converters: " + registry.getNames() + ".");
+		}
+		converter = provider.create(getParameters());
+	}
+	
+	
+	/** @return
+	 *  	<code>null</code>, if not compiled yet or not a {@link AttributeType#CUSTOM} attribute.
+	 */
+	@CheckForNull
+	public synchronized AttributeConverter getConverter() {
+		return converter;
+	}
+	
+	
 	public AttributeType getType() {
 		return type;
 	}
 
 	
+	/** Returns the first of the {@link #getLdapNames()}. 
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if none is configured.
+	 */
+	@CheckForNull
 	public String getLdapName() {
-		return ldapName;
+		return ldapNames != null && ! ldapNames.isEmpty() ? ldapNames.get(0) : null;
+	}
+	
+	
+	/** Returns the LDAP names in the order they must be tried. */
+	@Nonnull
+	public List<String> getLdapNames() {
+		List<String> result = ldapNames;
+		if (result == null) {
+			result = new ArrayList<String>();
+		}
+		return result;
 	}
 	
 	
@@ -119,7 +641,7 @@ public class CustomAttribute {
 
 	@Override
 	public String toString() {
-		return key + "<-" + ldapName;
+		return key + "<-" + (ldapNames != null && ldapNames.size() == 1 ? ldapNames.get(0) : ldapNames);
 	}
 
 
@@ -149,15 +671,28 @@ public class CustomAttribute {
 	}
 	
 	
-	/** Unwraps values of the field {@link CustomAttribute#ldapName} from all the specified
-	 *  attribute objects. 
+	/** Unwraps values of the field {@link CustomAttribute#ldapNames} from all the specified
+	 *  attribute objects. All the names of the fallback chains are included.
 	 *  
 	 *  @see #unwrapKeys(Collection)
 	 *  */
 	public static List<String> unwrapLdapNames(Collection<CustomAttribute> attrs) {
 		List<String> result = new ArrayList<String>(attrs.size());
 		for (CustomAttribute attr : attrs) {
-			result.add(attr.getLdapName());	
+			result.addAll(attr.getLdapNames());	
+		}
+		return result;
+	}
+	
+	
+	/** Returns the specified attributes and all their nested {@link #getFields()}, 
+	 *  recursively. */
+	@Nonnull
+	public static List<CustomAttribute> withFields(Collection<CustomAttribute> attrs) {
+		List<CustomAttribute> result = new ArrayList<CustomAttribute>(attrs.size());
+		for (CustomAttribute attr : attrs) {
+			result.add(attr);
+			result.addAll(withFields(attr.getFields()));
 		}
 		return result;
 	}
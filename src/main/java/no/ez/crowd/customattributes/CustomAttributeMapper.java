@@ -1,12 +1,14 @@
 package no.ez.crowd.customattributes;
 
+import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nonnull;
@@ -42,28 +44,292 @@ class CustomAttributeMapper implements AttributeMapper {
 	private final Logger logger = LoggerFactory.getLogger(CustomAttributeMapper.class);
 	
 	
+	/** Shared by the {@link AttributeType#DN_REFERENCE} mappers created without a {@link MapperContext}. */
+	private static final DnReferenceResolver WITHOUT_LOOKUP = new DnReferenceResolver(null);
+	
+	
 	private final CustomAttribute attribute;
 	
+	
+	/** Bitmasks of the {@link AttributeType#FLAGS} attribute, decoded once. */
+	private final long[] flagMasks;
+	
+	
+	/** Names of the flags from {@link #flagMasks} (same order). <code>null</code> 
+	 *  for the single unnamed flag, which is emitted as boolean. */
+	private final String[] flagNames;
+	
+	
+	private final OutputFormat outputFormat;
+	
+	
+	/** Compiled output format for datetime attributes. <code>null</code> for the numeric output formats. */
+	private final DateTimeFormatter outputFormatter;
+	
+	
+	/** The effective input formats, resolved once. See {@link #getEffectiveFormats()}. */
+	private final List<Format> formats;
+	
+	
+	/** The {@link #formats} compiled once. <code>null</code> for an invalid pattern. */
+	private final DateTimeFormatter[] parsers;
+	
+	
+	/** The time zones of the {@link #formats}. <code>null</code> for an invalid time zone. */
+	private final DateTimeZone[] zones;
+	
+	
+	/** The runtime state of the attribute resolved once, as its getters are synchronized. */
+	private final List<ValueTransformer> transformers;
+	
+	@Nullable
+	private final InternPool internPool;
+	
+	@Nullable
+	private final ConversionCache conversionCache;
+	
+	
+	/** Set, if other mappers convert the same LDAP attribute the same way. */
+	@Nullable
+	private SharedConversion shared;
+	
+	
+	/** Set, if the values of the unchanged entries must be served from the cache of the directory. */
+	@Nullable
+	private ChangeMarkerCache changes;
+	
+	
+	/** Set, if the values must be reported to the digest. See {@link #attachDigest(DigestAttributeMapper, int)}. */
+	@Nullable
+	private DigestAttributeMapper digest;
+	
+	
+	private int digestIndex;
+	
+	
+	/** Set for the slow-changing attributes. See {@link CustomAttribute#getRefreshMillis()}. */
+	@Nullable
+	private RefreshSchedule refresh;
+	
+	
+	/** <code>true</code>, if this mapper must read the slow-changing attribute from LDAP. */
+	private boolean refreshing = true;
+	
+	
+	/** Maximum age of the remembered values. See {@link CustomAttribute#getRefreshMillis()}. */
+	private long refreshMillis;
+	
+	
+	/** Set, if the directory returns the large attributes in ranges. */
+	@Nullable
+	private RangedAttributeReader ranges;
+	
+	
+	/** Set for the constructed attributes, if the directory computes them for base-object lookups only. */
+	@Nullable
+	private ConstructedAttributeLoader constructed;
+	
+	
+	/** All the constructed attributes of the mapper list, read with one lookup. */
+	private String[] constructedNames;
+	
 
 	/** Create a mapper for the specified attribute. */
 	public CustomAttributeMapper(@Nonnull CustomAttribute attribute) {
 		this.attribute = attribute;
+		
+		List<Flag> flags = attribute.getFlags();
+		flagMasks = new long[flags.size()];
+		flagNames = new String[flags.size()];
+		for (int i = 0; i < flags.size(); i++) {
+			Flag flag = flags.get(i);
+			flagMasks[i] = flag.getMaskValue();
+			flagNames[i] = flag.getName() != null || flags.size() == 1 ? flag.getName() : flag.getMask();
+		}
+		
+		OutputFormat output = attribute.getOutputFormat();
+		DateTimeFormatter formatter = null;
+		switch (output) {
+			case ISO:
+				formatter = ISODateTimeFormat.dateTime();
+				break;
+			case PATTERN:
+				try {
+					formatter = DateTimeFormat.forPattern(attribute.getOutputPattern());
+				} catch (IllegalArgumentException e) {
+					logger.error(
+							"Invalid output pattern [" + attribute.getOutputPattern() + "] for the custom attribute key [" + attribute.getKey() + "]. " + 
+							"Falling back to ISO output format. " + e.getMessage());
+					output = OutputFormat.ISO;
+					formatter = ISODateTimeFormat.dateTime();
+				}
+				break;
+			default:
+				// numeric output, no formatter needed.
+		}
+		outputFormat = output;
+		outputFormatter = formatter;
+		
+		formats = getEffectiveFormats();
+		parsers = new DateTimeFormatter[formats.size()];
+		zones = new DateTimeZone[formats.size()];
+		for (int i = 0; i < formats.size(); i++) {
+			Format format = formats.get(i);
+			try {
+				parsers[i] = DateTimeFormat.forPattern(format.getPattern());
+				zones[i] = format.getTimezone() != null ? DateTimeZone.forID(format.getTimezone()) : DateTimeZone.UTC;
+			} catch (IllegalArgumentException e) {
+				parsers[i] = null;
+				logger.error(
+						"Invalid input format [" + format.getPattern() + "] or time zone [" + format.getTimezone() + "] " +
+						"for the custom attribute key [" + attribute.getKey() + "]. The format is skipped. " + e.getMessage());
+			}
+		}
+		
+		transformers = attribute.getTransformers();
+		internPool = attribute.getInternPool();
+		conversionCache = attribute.getConversionCache();
 	}
 	
 	
-	/** Create a list of mappers for the specified attributes. */
+	/** Create a list of mappers for the specified attributes. The mappers reading the
+	 *  same LDAP attribute with the same conversion settings share one conversion per entry.
+	 *  
+	 *  @see SharedConversion
+	 */
 	@Nonnull
 	public static List<CustomAttributeMapper> createList(Collection<CustomAttribute> attrs) {
+		return createList(attrs, null);
+	}
+	
+	
+	/** Like {@link #createList(Collection)}, but uses the services of the directory.
+	 * 
+	 *  @param context
+	 *  	<code>null</code>, if the mappers are not created by a connector.
+	 */
+	@Nonnull
+	public static List<CustomAttributeMapper> createList(Collection<CustomAttribute> attrs, @Nullable MapperContext context) {
 		
 		List<CustomAttributeMapper> result = new ArrayList<CustomAttributeMapper>();
 		
+		Map<String, CustomAttributeMapper> first = new HashMap<String, CustomAttributeMapper>();
+		
+		ChangeMarkerCache changes = context != null ? context.getChangeMarkerCache() : null;
+		
 		for (CustomAttribute attr : attrs) {
-			CustomAttributeMapper cam = new CustomAttributeMapper(attr);
+			CustomAttributeMapper cam = create(attr, context);
 			result.add(cam);
+			
+			if (attr.isLazy()) {
+				continue; // converted on demand, nothing to share or cache.
+			}
+			
+			if (isChangeMarked(attr)) {
+				cam.changes = changes;
+			}
+			
+			if (context != null && attr.getRefreshMillis() > 0) {
+				cam.refresh = context.getRefreshSchedule();
+				cam.refreshing = cam.refresh.startRefresh(attr);
+				cam.refreshMillis = attr.getRefreshMillis();
+			}
+			
+			String signature = SharedConversion.signature(attr);
+			CustomAttributeMapper other = first.get(signature);
+			if (other == null) {
+				first.put(signature, cam);
+			} else {
+				if (other.shared == null) {
+					other.shared = new SharedConversion(other);
+				}
+				cam.shared = other.shared;
+			}
+		}
+		
+		String[] constructedNames = collectConstructedNames(result);
+		for (CustomAttributeMapper cam : result) {
+			if (cam.constructed != null) {
+				cam.constructedNames = constructedNames;
+			}
 		}
 		
 		return result;
 	}
+	
+	
+	/** Returns the LDAP names of all the constructed attributes read by the mappers. 
+	 *  See {@link CustomAttribute#isConstructed()}. */
+	@Nonnull
+	static String[] collectConstructedNames(@Nonnull Collection<? extends AttributeMapper> mappers) {
+		Set<String> result = new LinkedHashSet<String>();
+		for (AttributeMapper mapper : mappers) {
+			if (mapper instanceof CustomAttributeMapper && ((CustomAttributeMapper)mapper).constructed != null) {
+				result.addAll(((CustomAttributeMapper)mapper).attribute.getLdapNames());
+			}
+		}
+		return result.toArray(new String[result.size()]);
+	}
+	
+	
+	/** Creates a mapper specialised for the attribute type, if there is one.
+	 *  Such mappers convert the values in their own loop without switching on the
+	 *  type for every value. Other types are converted by the generic mapper.
+	 */
+	@Nonnull
+	public static CustomAttributeMapper create(@Nonnull CustomAttribute attr) {
+		return create(attr, null);
+	}
+	
+	
+	/** Like {@link #create(CustomAttribute)}, but uses the services of the directory.
+	 * 
+	 *  @param context
+	 *  	<code>null</code>, if the mapper is not created by a connector. The DNs of the 
+	 *  	{@link AttributeType#DN_REFERENCE} attributes are not looked up in LDAP then.
+	 */
+	@Nonnull
+	public static CustomAttributeMapper create(@Nonnull CustomAttribute attr, @Nullable MapperContext context) {
+		CustomAttributeMapper result = createForType(attr, context);
+		if (context != null) {
+			result.ranges = context.getRangeReader();
+			if (attr.isConstructed() && context.getConstructedLoader() != null) {
+				result.constructed = context.getConstructedLoader();
+				result.constructedNames = attr.getLdapNames().toArray(new String[0]);
+			}
+		}
+		return result;
+	}
+	
+	
+	@Nonnull
+	private static CustomAttributeMapper createForType(@Nonnull CustomAttribute attr, @Nullable MapperContext context) {
+		switch (attr.getType()) {
+			case STRING:
+				return new StringAttributeMapper(attr);
+			case BINARY:
+				return new BinaryAttributeMapper(attr);
+			case INTEGER:
+				return new IntegerAttributeMapper(attr);
+			case DOUBLE:
+				return new DoubleAttributeMapper(attr);
+			case DATETIME:
+				return new DateTimeAttributeMapper(attr);
+			case LOCAL_DATETIME:
+				return new LocalDateTimeAttributeMapper(attr);
+			case CUSTOM:
+			case CUSTOM_BINARY:
+				return new ConverterAttributeMapper(attr);
+			case COMPUTED:
+				return new ComputedAttributeMapper(attr);
+			case JSON:
+				return new JsonAttributeMapper(attr, context);
+			case DN_REFERENCE:
+				return new DnReferenceAttributeMapper(attr, context != null ? context.getDnResolver() : WITHOUT_LOOKUP);
+			default:
+				return new CustomAttributeMapper(attr);
+		}
+	}
 
 	
 	@Override
@@ -72,6 +338,19 @@ class CustomAttributeMapper implements AttributeMapper {
 	}
 	
 	
+	@Nonnull
+	CustomAttribute getAttribute() {
+		return attribute;
+	}
+	
+	
+	/** The cache of the attribute, resolved once. See {@link CustomAttribute#getConversionCache()}. */
+	@Nullable
+	final ConversionCache getConversionCache() {
+		return conversionCache;
+	}
+	
+	
 	private List<Format> DEFAULT_DATE_FORMAT = Collections.unmodifiableList(Lists.newArrayList(
 				new Format("yyyyMMddHHmmssZ", "UTC"),
 				new Format("yyyyMMddHHmmss.SSSZ", "UTC")
@@ -86,16 +365,118 @@ class CustomAttributeMapper implements AttributeMapper {
 
 	@Override
 	public Set<String> getValues(DirContextAdapter ctx) {
+		Set<String> result = changes != null ? changes.getValues(ctx, this) : convertEntry(ctx);
+		if (digest != null) {
+			digest.update(ctx, digestIndex, getKey(), result);
+		}
+		return result;
+	}
+	
+	
+	/** Makes this mapper report the converted values to the digest.
+	 * 
+	 *  @param index
+	 *  	position of this mapper in the digest.
+	 */
+	void attachDigest(@Nonnull DigestAttributeMapper digest, int index) {
+		this.digest = digest;
+		this.digestIndex = index;
+	}
+	
+	
+	/** Reads and converts the values ignoring the {@link ChangeMarkerCache}. */
+	@Nonnull
+	Set<String> convertEntry(@Nonnull DirContextAdapter ctx) {
 		
-		Set<String> result = new LinkedHashSet<String>();
+		if (refresh == null) {
+			return shared != null ? shared.getValues(ctx) : read(ctx);
+		}
 		
-		AttributeType type = attribute.getType();
+		boolean loaded = false;
+		if ( ! refreshing) {
+			Set<String> result = refresh.recall(ctx, getKey(), refreshMillis);
+			if (result != null) {
+				return result;
+			}
+			// nothing remembered or too old: reading the attribute omitted from the search for this entry.
+			loaded = refresh.load(ctx, getRefreshedLdapAttributes());
+			if ( ! loaded) {
+				Set<String> expired = refresh.recallExpired(ctx, getKey());
+				if (expired != null) {
+					refresh.requestRefresh(attribute);
+					return expired; // better than nothing until the next refresh.
+				}
+			}
+		}
 		
-		String ldapName = attribute.getLdapName();
+		Set<String> result = shared != null ? shared.getValues(ctx) : read(ctx);
+		if (refreshing || loaded || ! result.isEmpty()) {
+			refresh.remember(ctx, getKey(), result);
+		} else {
+			refresh.requestRefresh(attribute);
+		}
+		return result;
+	}
+	
+	
+	/** Reads and converts the values of this mapper's attribute. */
+	@Nonnull
+	Set<String> read(@Nonnull DirContextAdapter ctx) {
 		
-		Object[] attrs = ctx.getObjectAttributes(ldapName);
+		if (constructed != null) {
+			constructed.load(ctx, constructedNames);
+		}
 		
-		List<Format> formats = attribute.getFormats();
+		LdapFilter condition = attribute.getConditionFilter();
+		if (condition != null && ! condition.matches(ctx)) {
+			return new LinkedHashSet<String>();
+		}
+		
+		Object[] attrs = null;
+		
+		for (String ldapName : attribute.getLdapNames()) { // fallback chain, first non-empty wins.
+			attrs = ctx.getObjectAttributes(ldapName);
+			if (attrs == null && ranges != null) { // too many values, returned in ranges.
+				attrs = ranges.read(ctx, ldapName);
+			}
+			if (hasValue(attrs)) {
+				break;
+			}
+		}
+		
+		if (attribute.isLazy() && attrs != null && attrs.length != 0) {
+			return new LazyValueSet(this, ctx, attrs, attribute.getLazyStatistics());
+		}
+		
+		return convertAll(ctx, attrs);
+	}
+	
+	
+	private static boolean hasValue(@Nullable Object[] attrs) {
+		if (attrs != null) {
+			for (Object attr : attrs) {
+				if (attr != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	
+	/** Converts all the raw LDAP values of the attribute. 
+	 * 
+	 *  @param attrs
+	 *  	values returned by {@link DirContextAdapter#getObjectAttributes(String)}.
+	 */
+	@Nonnull
+	Set<String> convertAll(@Nonnull DirContextAdapter ctx, @Nullable Object[] attrs) {
+		
+		Set<String> result = new LinkedHashSet<String>();
+		
+		AttributeType type = attribute.getType();
+		
+		ConversionCache cache = isCacheable(type) ? conversionCache : null;
 
 		if (attrs != null) { // bit unusual, but possible.
 			for (Object attr : attrs) {
@@ -103,184 +484,588 @@ class CustomAttributeMapper implements AttributeMapper {
 					continue;
 				}
 				
-				switch (type) {
-					case BINARY:
-						readAsBinary(ctx, attr, result);
-						break;
-					case STRING:
-						String attrStr = attr.toString();
-						result.add(attrStr);
-						break;
-					case INTEGER:
-						readAsInteger(ctx, attr, result);
-						break;
-					case DOUBLE:
-						readAsDouble(ctx, attr, result);
-						break;
-					case DATETIME:
-						if (formats.isEmpty()) {
-							formats = DEFAULT_DATE_FORMAT;
-						}
-						readAsDateTime(ctx, attr, result, formats);
-						break;
-					case LOCAL_DATETIME:
-						if (formats.isEmpty()) {
-							formats = DEFAULT_LOCAL_DATE_FORMAT;
-						}
-						readAsLocalDateTime(ctx, attr, result, formats);
-						break;						
-					default:
-						// unreachable
-						logger.error("Unsupported custom attribute type [" + type + "] for attribute key [" + attribute.getKey() + "].");
+				if (type == AttributeType.FLAGS) { // the only multi-valued conversion
+					readAsFlags(ctx, attr, result);
+					continue;
+				}
+				
+				String value;
+				if (cache != null && attr instanceof String) {
+					value = readCached(ctx, (String)attr, cache);
+				} else {
+					value = convert(ctx, attr);
+				}
+				
+				if (value != null) {
+					result.add(value);
 				}
 			}
 		}
+		
+		return complete(ctx, result);
+	}
+	
+	
+	/** Applies the {@link Transform}s to the converted values and replaces them with 
+	 *  the pooled instances, if an {@link Intern} pool is configured. 
+	 */
+	@Nonnull
+	final Set<String> complete(@Nonnull DirContextAdapter ctx, @Nonnull Set<String> values) {
+		InternPool pool = internPool;
+		if (values.isEmpty() || (transformers.isEmpty() && pool == null)) {
+			return values;
+		}
+		Set<String> result = new LinkedHashSet<String>();
+		for (String value : values) {
+			String transformed = transform(ctx, value);
+			if (transformed != null && transformed.length() != 0) {
+				result.add(pool != null ? pool.intern(transformed) : transformed);
+			}
+		}
+		return result;
+	}
+	
+	
+	@Nullable
+	private String transform(DirContextAdapter ctx, String value) {
+		String result = value;
+		for (ValueTransformer transformer : transformers) {
+			try {
+				result = transformer.apply(result);
+			} catch (ValueTransformer.LimitExceededException e) {
+				logger.warn(
+						"Error converting a custom attribute [" + attribute.getLdapName() + "] = [" + attrValue(value) + "] from the LDAP context [" + ctx.getDn() + "]. " +
+						e.getMessage() + " The value is skipped.");
+				return null;
+			}
+		}
+		return result;
+	}
+	
 
+	/** Converts a single LDAP value according to the attribute type.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if the value cannot be converted.
+	 */
+	@Nullable
+	private String convert(DirContextAdapter ctx, Object attr) {
+		
+		AttributeType type = attribute.getType();
+		
+		switch (type) {
+			case BINARY:
+				return readAsBinary(ctx, attr);
+			case STRING:
+				return attr.toString();
+			case INTEGER:
+				return readAsInteger(ctx, attr);
+			case LONG:
+				return readAsLong(ctx, attr);
+			case DOUBLE:
+				return readAsDouble(ctx, attr);
+			case BOOLEAN:
+				return readAsBoolean(ctx, attr);
+			case CERTIFICATE:
+				return readAsCertificate(ctx, attr);
+			case DATETIME:
+				return readAsDateTime(ctx, attr);
+			case LOCAL_DATETIME:
+				return readAsLocalDateTime(ctx, attr);
+			case CUSTOM:
+			case CUSTOM_BINARY:
+				return readWithConverter(ctx, attr);
+			case DN_REFERENCE:
+				// resolved by DnReferenceAttributeMapper for all the values at once.
+				return attr.toString();
+			default:
+				// unreachable
+				logger.error("Unsupported custom attribute type [" + type + "] for attribute key [" + attribute.getKey() + "].");
+				return null;
+		}
+	}
+	
+	
+	/** Like {@link #convert(DirContextAdapter, Object)}, but looks up the cache first.
+	 *  Values which cannot be converted are cached too, so they fail only once. */
+	@Nullable
+	final String readCached(DirContextAdapter ctx, String attr, ConversionCache cache) {
+		
+		String cached = cache.get(attr);
+		
+		if (cached == null) {
+			String value = convert(ctx, attr);
+			cache.put(attr, value);
+			return value;
+			
+		} else if (cached == ConversionCache.UNPARSEABLE) {
+			if (logger.isDebugEnabled()) {
+				logger.debug(
+						"Skipping a custom attribute [" + attribute.getLdapName() + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
+						"The value is known to be unparseable.");
+			}
+			return null;
+			
+		} else {
+			return cached;
+		}
+	}
+	
+	
+	/** The DN references, the constructed and the operational attributes (like <code>tokenGroups</code> or
+	 *  <code>memberOf</code>) can change without changing the entry itself, so they are not served by the
+	 *  {@link ChangeMarkerCache}. */
+	private static boolean isChangeMarked(CustomAttribute attr) {
+		return attr.getType() != AttributeType.DN_REFERENCE && ! attr.isConstructed() && ! attr.isOperational();
+	}
+	
+	
+	/** Only the conversions, which are more expensive than a cache lookup and
+	 *  produce a single value are cached. */
+	private static boolean isCacheable(AttributeType type) {
+		switch (type) {
+			case INTEGER:
+			case LONG:
+			case DOUBLE:
+			case BOOLEAN:
+			case DATETIME:
+			case LOCAL_DATETIME:
+			case CUSTOM:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	
+	@Nonnull
+	final List<Format> getEffectiveFormats() {
+		List<Format> formats = attribute.getFormats();
+		if (formats.isEmpty()) {
+			if (attribute.getType() == AttributeType.DATETIME) {
+				return DEFAULT_DATE_FORMAT;
+			}
+			if (attribute.getType() == AttributeType.LOCAL_DATETIME) {
+				return DEFAULT_LOCAL_DATE_FORMAT;
+			}
+		}
+		return formats;
+	}
+	
+	
+	/** Returns <code>true</code>, if the values can be converted back to LDAP. Only the plain 
+	 *  types without transforms are writable. See {@link #toLdapValues(Collection)}. */
+	public boolean isWritable() {
+		if (attribute.getLdapNames().isEmpty() || ! transformers.isEmpty() 
+				|| attribute.isConstructed() || attribute.isOperational()) {
+			return false;
+		}
+		switch (attribute.getType()) {
+			case STRING:
+			case BINARY:
+			case INTEGER:
+			case LONG:
+			case DOUBLE:
+			case BOOLEAN:
+			case DATETIME:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	
+	/** Converts the values as returned by this mapper back to the LDAP values of the first
+	 *  LDAP name of the attribute (reverse conversion). The datetimes are written using the
+	 *  first input format.
+	 * 
+	 *  @throws IllegalArgumentException
+	 *  	if the attribute is not writable or a value cannot be converted.
+	 */
+	@Nonnull
+	public Object[] toLdapValues(@Nonnull Collection<String> values) {
+		if ( ! isWritable()) {
+			throw new IllegalArgumentException(
+					"The custom attribute key [" + attribute.getKey() + "] of type " + attribute.getType() + " cannot be written to LDAP.");
+		}
+		Object[] result = new Object[values.size()];
+		int i = 0;
+		for (String value : values) {
+			Object converted = value != null ? toLdapValue(value.trim()) : null;
+			if (converted == null) {
+				throw new IllegalArgumentException(
+						"Invalid value [" + attrValue(value) + "] of the custom attribute key [" + attribute.getKey() + "] of type " + attribute.getType() + ".");
+			}
+			result[i++] = converted;
+		}
 		return result;
 	}
 	
+	
+	@Nullable
+	private Object toLdapValue(@Nonnull String value) {
+		switch (attribute.getType()) {
+			case BINARY:
+				return Base64.decodeBase64(value);
+			case INTEGER:
+				Long integer = ValueParser.parseLong(value);
+				return integer != null && integer.intValue() == integer.longValue() ? integer.toString() : null;
+			case LONG:
+				Long number = ValueParser.parseLong(value);
+				return number != null ? number.toString() : null;
+			case DOUBLE:
+				try {
+					return Double.valueOf(value).toString();
+				} catch (NumberFormatException e) {
+					return null;
+				}
+			case BOOLEAN:
+				Boolean bool = ValueParser.parseBoolean(value);
+				return bool != null ? (bool.booleanValue() ? "TRUE" : "FALSE") : null;
+			case DATETIME:
+				Long millis = parseOutput(value);
+				if (millis == null) {
+					return null;
+				}
+				if (parsers.length == 0 || parsers[0] == null) {
+					return null;
+				}
+				return parsers[0].withZone(zones[0]).print(millis.longValue());
+			default:
+				return value;
+		}
+	}
+	
+	
+	/** Parses a datetime printed according to the configured {@link OutputFormat}. 
+	 *  Reverse of {@link #print(long, DateTime)}.
+	 * 
+	 *  @return
+	 *  	milliseconds since epoch, <code>null</code> if the value cannot be parsed.
+	 */
+	@Nullable
+	private Long parseOutput(@Nonnull String value) {
+		switch (outputFormat) {
+			case EPOCH_MILLIS:
+				return ValueParser.parseLong(value);
+			case EPOCH_SECONDS:
+				Long seconds = ValueParser.parseLong(value);
+				return seconds != null ? seconds.longValue() * 1000 : null;
+			default:
+				try {
+					return outputFormatter.parseMillis(value);
+				} catch (IllegalArgumentException e) {
+					return null;
+				}
+		}
+	}
+	
 
 	@Override
 	public Set<String> getRequiredLdapAttributes() {
 		Set<String> result = new HashSet<String>();
-		result.add(attribute.getLdapName());
+		if ( ! refreshing) {
+			// served from the RefreshSchedule, omitted from the search.
+			if (changes != null) {
+				result.add(changes.getMarkerAttribute());
+			}
+			return result;
+		}
+		result.addAll(getRefreshedLdapAttributes());
+		if (changes != null) {
+			result.add(changes.getMarkerAttribute()); // operational, must be requested explicitly.
+		}
+		return result;
+	}
+	
+	
+	/** The attributes read by the refreshing mapper: the attribute itself and the ones of the condition. */
+	private Set<String> getRefreshedLdapAttributes() {
+		Set<String> result = new HashSet<String>();
+		if (constructed == null) {
+			result.addAll(attribute.getLdapNames());
+		} // else read by the ConstructedAttributeLoader, the search does not return them.
+		LdapFilter condition = attribute.getConditionFilter();
+		if (condition != null) {
+			condition.collectAttributes(result);
+		}
 		return result;
 	}
 	
 	
-	private void readAsBinary(DirContextAdapter ctx, Object attr, Set<String> result) {
+	@Nullable
+	final String readAsBinary(DirContextAdapter ctx, Object attr) {
 		String ldapName = attribute.getLdapName();
 		
 		if (attr instanceof byte[]) {
-			String attrStr = Base64.encodeBase64String((byte[])attr);
-			result.add(attrStr);	
+			return Base64.encodeBase64String((byte[])attr);
 		} else {
 			logger.warn(
 					"Error reading a custom attribute [" + ldapName + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
 					"Unable to cast from type " + attr.getClass() + " to byte[].");
+			return null;
 		}
 	}
 	
 	
-	private void readAsInteger(DirContextAdapter ctx, Object attr, Set<String> result) {
+	@Nullable
+	final String readAsInteger(DirContextAdapter ctx, Object attr) {
 		String ldapName = attribute.getLdapName();
 		
 		if (attr instanceof Number) {
-			String attrStr = ((Number)attr).intValue() + "";
-			result.add(attrStr);
+			return ((Number)attr).intValue() + "";
 		} else {
-			try {
-				String attrStr = new Integer(attr.toString()) + "";
-				result.add(attrStr);
-			} catch (NumberFormatException e) {
+			Long value = ValueParser.parseLong(attr.toString());
+			if (value != null && value.longValue() >= Integer.MIN_VALUE && value.longValue() <= Integer.MAX_VALUE) {
+				return value.toString();
+			} else {
 				logger.warn(
 						"Error reading a custom attribute [" + ldapName + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
 						"Unable to cast from type " + attr.getClass() + " to Number.");
+				return null;
+			}
+		}
+	}
+	
+	
+	@Nullable
+	private String readAsLong(DirContextAdapter ctx, Object attr) {
+		String ldapName = attribute.getLdapName();
+		
+		if (attr instanceof Number) {
+			return ((Number)attr).longValue() + "";
+		} else {
+			Long value = ValueParser.parseLong(attr.toString());
+			if (value != null) {
+				return value.toString();
+			} else {
+				logger.warn(
+						"Error reading a custom attribute [" + ldapName + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
+						"Unable to cast from type " + attr.getClass() + " to Long.");
+				return null;
 			}
 		}
 	}
 	
 	
-	private void readAsDouble(DirContextAdapter ctx, Object attr, Set<String> result) {
+	@Nullable
+	final String readAsDouble(DirContextAdapter ctx, Object attr) {
 		String ldapName = attribute.getLdapName();
 		
 		if (attr instanceof Number) {
-			String attrStr = ((Number)attr).doubleValue() + "";
-			result.add(attrStr);
+			return ((Number)attr).doubleValue() + "";
 		} else {
 			try {
-				String attrStr = new Double(attr.toString()) + "";
-				result.add(attrStr);
+				return new Double(attr.toString()) + "";
 			} catch (NumberFormatException e) {
 				logger.warn(
 						"Error reading a custom attribute [" + ldapName + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
 						"Unable to cast from type " + attr.getClass() + " to Double.");
+				return null;
+			}
+		}
+	}
+	
+	
+	@Nullable
+	private String readAsBoolean(DirContextAdapter ctx, Object attr) {
+		String ldapName = attribute.getLdapName();
+		
+		Boolean value;
+		if (attr instanceof Boolean) {
+			value = (Boolean)attr;
+		} else {
+			value = ValueParser.parseBoolean(attr.toString());
+		}
+		
+		if (value != null) {
+			return value.toString();
+		} else {
+			logger.warn(
+					"Error reading a custom attribute [" + ldapName + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
+					"Unable to cast from type " + attr.getClass() + " to Boolean.");
+			return null;
+		}
+	}
+	
+	
+	@Nullable
+	final String readWithConverter(DirContextAdapter ctx, Object attr) {
+		String ldapName = attribute.getLdapName();
+		
+		AttributeConverter converter = attribute.getConverter();
+		if (converter == null) {
+			logger.error("Converter [" + attribute.getConverterName() + "] was not created for the custom attribute key [" + attribute.getKey() + "].");
+			return null;
+		}
+		
+		try {
+			String result = converter.convert(attr);
+			if (result == null) {
+				logger.warn(
+						"Error converting a custom attribute [" + ldapName + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
+						"Rejected by the converter [" + attribute.getConverterName() + "].");
 			}
+			return result;
+		} catch (Exception e) {
+			logger.warn(
+					"Error converting a custom attribute [" + ldapName + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
+					"Converter [" + attribute.getConverterName() + "] failed. " + e.getMessage());
+			return null;
 		}
 	}
 	
 	
-	protected void readAsDateTime(DirContextAdapter ctx, Object attr, Set<String> result, List<Format> formats) {
+	private void readAsFlags(DirContextAdapter ctx, Object attr, Set<String> result) {
+		String ldapName = attribute.getLdapName();
+		
+		Long value;
+		if (attr instanceof Number) {
+			value = ((Number)attr).longValue();
+		} else {
+			value = ValueParser.parseLong(attr.toString());
+		}
+		
+		if (value == null) {
+			logger.warn(
+					"Error reading a custom attribute [" + ldapName + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
+					"Unable to cast from type " + attr.getClass() + " to bitmask.");
+			return;
+		}
+		
+		long bits = value.longValue();
+		
+		if (flagMasks.length == 1 && flagNames[0] == null) {
+			result.add(Boolean.toString((bits & flagMasks[0]) == flagMasks[0]));
+			return;
+		}
+		
+		for (int i = 0; i < flagMasks.length; i++) {
+			if ((bits & flagMasks[i]) == flagMasks[i]) {
+				result.add(flagNames[i]);
+			}
+		}
+	}
+	
+	
+	@Nullable
+	private String readAsCertificate(DirContextAdapter ctx, Object attr) {
+		String ldapName = attribute.getLdapName();
+		
+		if ( ! (attr instanceof byte[])) {
+			logger.warn(
+					"Error reading a custom attribute [" + ldapName + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
+					"Unable to cast from type " + attr.getClass() + " to byte[].");
+			return null;
+		}
+		
+		try {
+			return CertificateReader.read((byte[])attr).get(attribute.getCertificateField());
+		} catch (CertificateException e) {
+			logger.warn(
+					"Error converting a custom attribute [" + ldapName + "] from the LDAP context [" + ctx.getDn() + "]. " +
+					"Unable to parse the X.509 certificate. " + e.getMessage());
+			return null;
+		}
+	}
+	
+	
+	@Nullable
+	protected String readAsDateTime(DirContextAdapter ctx, Object attr) {
 		String ldapName = attribute.getLdapName();
 		
 		String attrStr = attr.toString();
 
-		Iterator<Format> it = formats.iterator();
-		
-		while (it.hasNext()) {
+		for (int i = 0; i < parsers.length; i++) {
 			
-			Format format = it.next();
+			DateTimeFormatter fmt = parsers[i];
+			if (fmt == null) {
+				continue; // invalid, logged when created.
+			}
 			
 			try {
-				DateTimeFormatter fmt = DateTimeFormat.forPattern(format.getPattern());
-				
 				DateTime r = fmt.parseDateTime(attrStr);
 				
-				String timeZone = format.getTimezone();
+				r = r.withZone(zones[i]);
 				
-				DateTimeZone zone;
-				if (timeZone != null) {
-					zone = DateTimeZone.forID(timeZone);
-				} else {
-					zone = DateTimeZone.UTC;
-				}
-				r = r.withZone(zone);
-				
-				DateTimeFormatter output = ISODateTimeFormat.dateTime();
-				
-				result.add(output.print(r));
-				
-				return; // fine parsing successful			
+				return print(r.getMillis(), r); // fine parsing successful
 				
 			} catch (IllegalArgumentException e) {
 				String msg = 
 						"Error converting a custom attribute [" + ldapName + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
-						"Unable to cast to the datetime using pattern [" + format.getPattern() +"]."; 
+						"Unable to cast to the datetime using pattern [" + formats.get(i).getPattern() +"]."; 
 				
-				if (it.hasNext()) {
+				if (i + 1 < parsers.length) {
 					logger.debug(msg + " " + e.getMessage() + " Lets try the next format...");	
 				} else {
 					logger.warn(msg);
 				}
 			}
 		}
+		
+		return null;
 	}
 	
 	
-	protected void readAsLocalDateTime(DirContextAdapter ctx, Object attr, Set<String> result, List<Format> formats) {
+	@Nullable
+	protected String readAsLocalDateTime(DirContextAdapter ctx, Object attr) {
 		String ldapName = attribute.getLdapName();
 		
 		String attrStr = attr.toString();
 
-		Iterator<Format> it = formats.iterator();
-		
-		while (it.hasNext()) {
+		for (int i = 0; i < parsers.length; i++) {
 			
-			Format format = it.next();
+			DateTimeFormatter fmt = parsers[i];
+			if (fmt == null) {
+				continue; // invalid, logged when created.
+			}
 			
 			try {
-				DateTimeFormatter fmt = DateTimeFormat.forPattern(format.getPattern());
-				
 				LocalDateTime r = fmt.parseLocalDateTime(attrStr);
 				
-				DateTimeFormatter output = ISODateTimeFormat.dateTime();
-				
-				result.add(output.print(r));
-				
-				return; // fine parsing successful			
+				if (outputFormatter != null) {
+					return outputFormatter.print(r); // fine parsing successful
+				} else {
+					return print(r.toDateTime(DateTimeZone.UTC).getMillis(), null);
+				}
 				
 			} catch (IllegalArgumentException e) {
 				String msg = 
 						"Error converting a custom attribute [" + ldapName + "] = [" + attrValue(attr) + "] from the LDAP context [" + ctx.getDn() + "]. " +
-						"Unable to cast to the local datetime using pattern [" + format.getPattern() +"]."; 
+						"Unable to cast to the local datetime using pattern [" + formats.get(i).getPattern() +"]."; 
 				
-				if (it.hasNext()) {
+				if (i + 1 < parsers.length) {
 					logger.debug(msg + " " + e.getMessage() + " Lets try the next format...");
 				} else {
 					logger.warn(msg);
 				}
 			}
 		}
+		
+		return null;
+	}
+	
+	
+	/** Prints the datetime according to the configured {@link OutputFormat}.
+	 * 
+	 *  @param millis
+	 *  	milliseconds since epoch.
+	 *  @param instant
+	 *  	the same instant with time zone. Used for formatted output only. 
+	 */
+	private String print(long millis, @Nullable DateTime instant) {
+		switch (outputFormat) {
+			case EPOCH_MILLIS:
+				return Long.toString(millis);
+			case EPOCH_SECONDS:
+				long seconds = millis / 1000;
+				if (millis % 1000 < 0) {
+					seconds--; // rounding down also before 1970.
+				}
+				return Long.toString(seconds);
+			default:
+				return outputFormatter.print(instant);
+		}
 	}
 	
 	
@@ -355,4 +1140,4 @@ class CustomAttributeMapper implements AttributeMapper {
 	}
 
 	
-}
\ No newline at end of file
+}
@@ -1,15 +1,26 @@
 package no.ez.crowd.customattributes;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.atlassian.crowd.directory.OpenDS;
 import com.atlassian.crowd.directory.ldap.mapper.attribute.AttributeMapper;
+import com.atlassian.crowd.exception.GroupNotFoundException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.exception.UserNotFoundException;
 import com.atlassian.crowd.password.factory.PasswordEncoderFactory;
 import com.atlassian.crowd.search.ldap.LDAPQueryTranslater;
 import com.atlassian.crowd.util.InstanceFactory;
@@ -34,6 +45,34 @@ public class CustomAttributesOpenDS extends OpenDS {
 
 	private final AttributeMapperCreater attributesMapperCreator;
 	
+	
+	/** Lives as long as the connector, so the DN and entry caches survive the searches. Reads the 
+	 *  slow-changing attributes missed by the {@link RefreshSchedule} with base-object lookups. */
+	private final MapperContext mapperContext = new MapperContext(new DnReferenceResolver(new DnReferenceResolver.Lookup() {
+		@Override
+		public String getDefaultNamingAttribute() {
+			return ldapPropertiesMapper.getUserNameAttribute();
+		}
+		@Override
+		public Map<String, String> lookup(Collection<String> dns, String namingAttribute) throws NamingException {
+			return LdapDnLookup.lookup(ldapTemplate, ldapPropertiesMapper.getBaseDN(), dns, namingAttribute);
+		}
+	}), "modifyTimestamp", null, null, new RefreshSchedule.Lookup() {
+		@Override
+		public Attributes lookup(String dn, String[] ldapNames) throws NamingException {
+			return LdapDnLookup.readAttributes(ldapTemplate, ldapPropertiesMapper.getBaseDN(), Collections.singletonList(dn), ldapNames).get(dn);
+		}
+	});
+	
+	
+	/** Writes the changed custom attributes back to LDAP. The concurrent changes of an entry are sent together. */
+	private final AttributeWriteBack writeBack = new AttributeWriteBack(new AttributeWriteBack.Writer() {
+		@Override
+		public void modify(String dn, ModificationItem[] items) throws NamingException {
+			LdapDnLookup.modifyAttributes(ldapTemplate, ldapPropertiesMapper.getBaseDN(), dn, items);
+		}
+	});
+	
 
 	public CustomAttributesOpenDS(
 			LDAPQueryTranslater ldapQueryTranslater, 
@@ -71,11 +110,21 @@ public class CustomAttributesOpenDS extends OpenDS {
 		String directoryUrl = ldapPropertiesMapper.getConnectionURL();
 		
     	attributesMapperCreator.putBinaryAttributes(env, directoryId, directoryUrl);
+    	attributesMapperCreator.putConnectionSettings(env, directoryId, directoryUrl);
     	
     	return env;
     }
     
     
+    /** Wraps the template created by Crowd, so the {@link BatchConverter} and the {@link ConstructedAttributeLoader}
+     *  of the directory get the result pages. */
+    @Override
+	public void setAttributes(Map<String, String> attributes) {
+		super.setAttributes(attributes);
+		ldapTemplate = new BatchLdapTemplate(ldapTemplate, mapperContext);
+	}
+    
+    
 //    @Override
 //	protected SearchControls getSubTreeSearchControl() {
 //    	SearchControls result = super.getSubTreeSearchControl();
@@ -98,7 +147,7 @@ public class CustomAttributesOpenDS extends OpenDS {
 		long directoryId = getDirectoryId();
 		String directoryUrl = ldapPropertiesMapper.getConnectionURL();
 		
-		List<? extends AttributeMapper> customMappers = attributesMapperCreator.createUserAttributeMappers(directoryId, directoryUrl);
+		List<? extends AttributeMapper> customMappers = attributesMapperCreator.createUserAttributeMappers(directoryId, directoryUrl, mapperContext);
 		result.addAll(customMappers);
 		
 		if (logger.isDebugEnabled()) {
@@ -120,7 +169,7 @@ public class CustomAttributesOpenDS extends OpenDS {
 		long directoryId = getDirectoryId();
 		String directoryUrl = ldapPropertiesMapper.getConnectionURL();
 		
-		List<? extends AttributeMapper> customMappers = attributesMapperCreator.createGroupAttributeMappers(directoryId, directoryUrl);
+		List<? extends AttributeMapper> customMappers = attributesMapperCreator.createGroupAttributeMappers(directoryId, directoryUrl, mapperContext);
 		result.addAll(customMappers);
 		
 		if (logger.isDebugEnabled()) {
@@ -131,6 +180,100 @@ public class CustomAttributesOpenDS extends OpenDS {
 	
 		return result;
 	}
+    
+    
+    /** Writes the configured, writable custom attributes back to LDAP (see {@link AttributeWriteBack}), 
+     *  the other attributes are stored by Crowd. */
+    @Override
+	public void storeUserAttributes(String username, Map<String, Set<String>> attributes) throws UserNotFoundException, OperationFailedException {
+		
+		Set<String> written = new HashSet<String>();
+		Map<String, Object[]> changes = userModifications(attributes, written);
+		if ( ! written.isEmpty()) {
+			writeBack(findUserByName(username).getDn(), changes);
+		}
+		if (written.size() < attributes.size()) {
+			super.storeUserAttributes(username, without(attributes, written));
+		}
+	}
+    
+    
+    @Override
+	public void removeUserAttributes(String username, String attributeName) throws UserNotFoundException, OperationFailedException {
+		
+		Set<String> written = new HashSet<String>();
+		Map<String, Object[]> changes = userModifications(Collections.singletonMap(attributeName, Collections.<String>emptySet()), written);
+		if (written.isEmpty()) {
+			super.removeUserAttributes(username, attributeName);
+			return;
+		}
+		writeBack(findUserByName(username).getDn(), changes);
+	}
+    
+    
+    /** Writes the configured, writable custom attributes back to LDAP (see {@link AttributeWriteBack}), 
+     *  the other attributes are stored by Crowd. */
+    @Override
+	public void storeGroupAttributes(String groupName, Map<String, Set<String>> attributes) throws GroupNotFoundException, OperationFailedException {
+		
+		Set<String> written = new HashSet<String>();
+		Map<String, Object[]> changes = groupModifications(attributes, written);
+		if ( ! written.isEmpty()) {
+			writeBack(findGroupByName(groupName).getDn(), changes);
+		}
+		if (written.size() < attributes.size()) {
+			super.storeGroupAttributes(groupName, without(attributes, written));
+		}
+	}
+    
+    
+    @Override
+	public void removeGroupAttributes(String groupName, String attributeName) throws GroupNotFoundException, OperationFailedException {
+		
+		Set<String> written = new HashSet<String>();
+		Map<String, Object[]> changes = groupModifications(Collections.singletonMap(attributeName, Collections.<String>emptySet()), written);
+		if (written.isEmpty()) {
+			super.removeGroupAttributes(groupName, attributeName);
+			return;
+		}
+		writeBack(findGroupByName(groupName).getDn(), changes);
+	}
+	
+	
+	private Map<String, Object[]> userModifications(Map<String, Set<String>> attributes, Set<String> written) throws OperationFailedException {
+		try {
+			return attributesMapperCreator.createUserModifications(getDirectoryId(), ldapPropertiesMapper.getConnectionURL(), attributes, written);
+		} catch (IllegalArgumentException e) {
+			throw new OperationFailedException("Custom attributes not written. " + e.getMessage());
+		}
+	}
+	
+	
+	private Map<String, Object[]> groupModifications(Map<String, Set<String>> attributes, Set<String> written) throws OperationFailedException {
+		try {
+			return attributesMapperCreator.createGroupModifications(getDirectoryId(), ldapPropertiesMapper.getConnectionURL(), attributes, written);
+		} catch (IllegalArgumentException e) {
+			throw new OperationFailedException("Custom attributes not written. " + e.getMessage());
+		}
+	}
+	
+	
+	private void writeBack(String dn, Map<String, Object[]> changes) throws OperationFailedException {
+		try {
+			writeBack.write(dn, changes);
+		} catch (NamingException e) {
+			OperationFailedException failure = new OperationFailedException("Error writing custom attributes " + changes.keySet() + " of [" + dn + "]. " + e.getMessage());
+			failure.initCause(e);
+			throw failure;
+		}
+	}
+	
+	
+	private static Map<String, Set<String>> without(Map<String, Set<String>> attributes, Set<String> keys) {
+		Map<String, Set<String>> result = new HashMap<String, Set<String>>(attributes);
+		result.keySet().removeAll(keys);
+		return result;
+	}
 	
 }
 
@@ -0,0 +1,40 @@
+package no.ez.crowd.customattributes;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+
+
+/** A digest tag of a directory. Enables the {@link DigestAttributeMapper}.
+ */
+@XmlType(name="digest")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class Digest {
+	
+	
+	public static final String DEFAULT_KEY = "_customAttributesDigest";
+	
+	
+	@XmlAttribute(name="key", required=false)
+	private String key = DEFAULT_KEY;
+	
+	
+	/** For JAX. Do not delete! */
+	protected Digest() {
+		// nothing
+	}
+	
+	
+	public Digest(String key) {
+		this.key = key;
+	}
+	
+	
+	/** Key of the synthetic attribute holding the digest. */
+	public String getKey() {
+		return key;
+	}
+	
+}
@@ -0,0 +1,196 @@
+package no.ez.crowd.customattributes;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.DirContextAdapter;
+
+import com.atlassian.crowd.directory.ldap.mapper.attribute.AttributeMapper;
+
+
+
+/** Synthetic attribute holding a digest of all the custom attributes of the entry, 
+ *  so the consumers can compare one value instead of all of them.<br><br>
+ *  
+ *  The digest is computed incrementally: every {@link CustomAttributeMapper} hashes 
+ *  its key and values as soon as they are converted. This mapper must be called after 
+ *  the others (Crowd calls the mappers in the list order, see {@link #append(String, List)}) 
+ *  and combines the partial hashes in the configured order. A mapper called after the digest
+ *  is reported once. The attributes not converted yet are converted on demand. The values 
+ *  of an attribute are hashed in the sorted order, so the digest doesn't depend on the order 
+ *  the LDAP server returns them. The lazy attributes (see {@link CustomAttribute#isLazy()})
+ *  are not part of the digest, they would be read for every entry otherwise.<br><br>
+ *  
+ *  Only the last entry of every thread is remembered, like {@link SharedConversion} does. Thread-safe.
+ *  
+ *  @see Digest
+ */
+final class DigestAttributeMapper implements AttributeMapper {
+	
+	
+	private final Logger logger = LoggerFactory.getLogger(DigestAttributeMapper.class);
+	
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	
+	private final String key;
+	
+	
+	private final List<CustomAttributeMapper> mappers;
+	
+	
+	private final ThreadLocal<Parts> last = new ThreadLocal<Parts>();
+	
+	
+	/** Set, when a mapper has been called after the digest. */
+	private final AtomicBoolean misordered = new AtomicBoolean();
+	
+	
+	private DigestAttributeMapper(@Nonnull String key, @Nonnull List<CustomAttributeMapper> mappers) {
+		this.key = key;
+		this.mappers = mappers;
+	}
+	
+	
+	/** Returns the mappers followed by the digest of them. */
+	@Nonnull
+	public static List<AttributeMapper> append(@Nonnull String key, @Nonnull List<CustomAttributeMapper> mappers) {
+		List<AttributeMapper> result = new ArrayList<AttributeMapper>(mappers.size() + 1);
+		result.addAll(mappers);
+		result.add(attach(key, mappers)); // must be the last one.
+		return result;
+	}
+	
+	
+	/** Creates the digest mapper and makes the specified mappers (except the lazy ones) report 
+	 *  their values to it. The caller is responsible for calling it after the mappers. */
+	@Nonnull
+	static DigestAttributeMapper attach(@Nonnull String key, @Nonnull List<CustomAttributeMapper> mappers) {
+		List<CustomAttributeMapper> digested = new ArrayList<CustomAttributeMapper>(mappers.size());
+		for (CustomAttributeMapper mapper : mappers) {
+			if ( ! mapper.getAttribute().isLazy()) {
+				digested.add(mapper);
+			}
+		}
+		DigestAttributeMapper result = new DigestAttributeMapper(key, digested);
+		for (int i = 0; i < digested.size(); i++) {
+			digested.get(i).attachDigest(result, i);
+		}
+		return result;
+	}
+	
+	
+	/** Called by the mapper number <code>index</code> after converting the values of the entry. */
+	void update(@Nonnull DirContextAdapter ctx, int index, @Nonnull String key, @Nonnull Set<String> values) {
+		Parts parts = last.get();
+		if (parts == null || parts.ctx != ctx) {
+			parts = new Parts(ctx, mappers.size());
+			last.set(parts);
+		} else if (parts.digested && misordered.compareAndSet(false, true)) {
+			logger.warn(
+					"The custom attribute [" + key + "] is mapped after the digest [" + this.key + "]. " + 
+					"The digest must be the last mapper, the attribute is converted twice otherwise.");
+		}
+		parts.hashes[index] = hash(key, values);
+	}
+	
+	
+	@Override
+	public String getKey() {
+		return key;
+	}
+	
+	
+	@Override
+	public Set<String> getValues(DirContextAdapter ctx) {
+		
+		Parts parts = last.get();
+		if (parts == null || parts.ctx != ctx) {
+			parts = new Parts(ctx, mappers.size());
+			last.set(parts);
+		}
+		parts.digested = true;
+		
+		MessageDigest digest = md5();
+		for (int i = 0; i < mappers.size(); i++) {
+			byte[] hash = parts.hashes[i];
+			if (hash == null) { // not called by Crowd (yet).
+				CustomAttributeMapper mapper = mappers.get(i);
+				hash = hash(mapper.getKey(), mapper.getValues(ctx));
+			}
+			digest.update(hash);
+		}
+		
+		return Collections.singleton(new BigInteger(1, digest.digest()).toString(16));
+	}
+	
+	
+	@Nonnull
+	private static byte[] hash(String key, Set<String> values) {
+		MessageDigest digest = md5();
+		digest.update(key.getBytes(UTF8));
+		String[] sorted = values.toArray(new String[values.size()]);
+		if (sorted.length > 1) {
+			Arrays.sort(sorted);
+		}
+		for (String value : sorted) {
+			digest.update((byte)0);
+			digest.update(value.getBytes(UTF8));
+		}
+		return digest.digest();
+	}
+	
+	
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not supported by the JVM.", e);
+		}
+	}
+	
+	
+	/** The digest reads no LDAP attributes itself. */
+	@Override
+	public Set<String> getRequiredLdapAttributes() {
+		return new HashSet<String>();
+	}
+	
+	
+	@Override
+	public String toString() {
+		return "DigestAttributeMapper{" + key + "}";
+	}
+	
+	
+	/** Partial hashes of an entry by mapper index. */
+	private static final class Parts {
+	
+		final DirContextAdapter ctx;
+	
+		final byte[][] hashes;
+	
+		/** Set, when the digest of the entry has been computed. */
+		boolean digested;
+	
+		Parts(DirContextAdapter ctx, int size) {
+			this.ctx = ctx;
+			this.hashes = new byte[size][];
+		}
+	}
+	
+}
@@ -32,6 +32,26 @@ public class Directory {
 	@XmlElement(name="server")
 	@CheckForNull
 	private List<String> servers;
+	
+	
+	@XmlElement(name="entry-cache")
+	@CheckForNull
+	private EntryCache entryCache;
+	
+	
+	@XmlElement(name="digest")
+	@CheckForNull
+	private Digest digest;
+	
+	
+	@XmlElement(name="batch")
+	@CheckForNull
+	private Batch batch;
+	
+	
+	@XmlElement(name="connection")
+	@CheckForNull
+	private ConnectionSettings connection;
 
 	
 	@XmlElementWrapper(name="user")
@@ -63,6 +83,42 @@ public class Directory {
 	}
 
 	
+	/** @return
+	 *  	<code>null</code>, if the {@link ChangeMarkerCache} is disabled.
+	 */
+	@CheckForNull
+	public EntryCache getEntryCache() {
+		return entryCache;
+	}
+	
+	
+	/** @return
+	 *  	<code>null</code>, if no {@link DigestAttributeMapper} must be created.
+	 */
+	@CheckForNull
+	public Digest getDigest() {
+		return digest;
+	}
+	
+	
+	/** @return
+	 *  	<code>null</code>, if the entries of a page are mapped one by one.
+	 */
+	@CheckForNull
+	public Batch getBatch() {
+		return batch;
+	}
+	
+	
+	/** @return
+	 *  	<code>null</code>, if the connections are configured by Crowd only.
+	 */
+	@CheckForNull
+	public ConnectionSettings getConnection() {
+		return connection;
+	}
+	
+	
 	@Nonnull
 	public Collection<CustomAttribute> getUserAttributes() {
 		
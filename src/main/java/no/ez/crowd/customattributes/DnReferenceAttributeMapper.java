@@ -0,0 +1,86 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Mapper for the {@link AttributeType#DN_REFERENCE} attributes. Remembers the name
+ *  of every entry it sees and resolves the DNs using the {@link DnReferenceResolver}
+ *  of the directory.
+ * 
+ *  @see CustomAttributeMapper#create(CustomAttribute, MapperContext)
+ */
+final class DnReferenceAttributeMapper extends CustomAttributeMapper {
+	
+	
+	private final Logger logger = LoggerFactory.getLogger(DnReferenceAttributeMapper.class);
+	
+	
+	private final DnReferenceResolver resolver;
+	
+	
+	private final String namingAttribute;
+	
+	
+	public DnReferenceAttributeMapper(@Nonnull CustomAttribute attribute, @Nonnull DnReferenceResolver resolver) {
+		super(attribute);
+		this.resolver = resolver;
+		this.namingAttribute = attribute.getNamingAttribute() != null ? attribute.getNamingAttribute() : resolver.getDefaultNamingAttribute();
+	}
+	
+	
+	@Override
+	@Nonnull
+	Set<String> convertAll(@Nonnull DirContextAdapter ctx, @Nullable Object[] attrs) {
+		
+		resolver.remember(ctx, namingAttribute);
+		
+		Set<String> result = new LinkedHashSet<String>();
+		
+		if (attrs == null) {
+			return result;
+		}
+		
+		List<String> dns = new ArrayList<String>(attrs.length);
+		for (Object attr : attrs) {
+			if (attr != null) {
+				dns.add(attr.toString());
+			}
+		}
+		
+		Map<String, String> names = resolver.resolve(dns, namingAttribute);
+		
+		for (String dn : dns) {
+			String name = names.get(dn);
+			if (name != null) {
+				result.add(name);
+			} else if (logger.isDebugEnabled()) {
+				logger.debug(
+						"Skipping a custom attribute [" + getAttribute().getLdapName() + "] = [" + dn + "] from the LDAP context [" + ctx.getDn() + "]. " +
+						"Unable to resolve the DN to [" + namingAttribute + "].");
+			}
+		}
+		
+		return complete(ctx, result);
+	}
+	
+	
+	@Override
+	public Set<String> getRequiredLdapAttributes() {
+		Set<String> result = super.getRequiredLdapAttributes();
+		result.add(namingAttribute); // to remember the name of the entry
+		return result;
+	}
+	
+}
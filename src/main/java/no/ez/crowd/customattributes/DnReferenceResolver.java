@@ -0,0 +1,275 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.naming.InvalidNameException;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Resolves the DNs of the {@link AttributeType#DN_REFERENCE} attributes (like <code>manager</code>)
+ *  to the names of the referenced entries (the value of the naming attribute). Shared by all the
+ *  mappers of a directory. Thread-safe.<br><br>
+ *
+ *  The DNs are resolved in the following order:
+ *  <ol>
+ *  <li>from the cache, which remembers the names of all the entries seen by the mappers,</li>
+ *  <li>from the DN itself, if the naming attribute is used as RDN (like <code>uid=jdoe,ou=People</code>),</li>
+ *  <li>using the {@link Lookup}: all the DNs of an entry not resolved otherwise at once.</li>
+ *  </ol>
+ *  The DNs, which cannot be found, are cached too. The cached names expire after {@link #DEFAULT_TTL_MILLIS},
+ *  the DNs not found after {@link #DEFAULT_NOT_FOUND_TTL_MILLIS}, so renamed and new entries are picked up.
+ */
+final class DnReferenceResolver {
+	
+	private final Logger logger = LoggerFactory.getLogger(DnReferenceResolver.class);
+	
+	
+	/** Reads the naming attribute of the referenced entries from LDAP. */
+	public static interface Lookup {
+	
+		/** Naming attribute used, if none is configured for the attribute. */
+		@Nonnull
+		String getDefaultNamingAttribute();
+	
+		/** Reads the naming attribute of the specified entries.
+		 *
+		 *  @return
+		 *  	names by DN as specified. The entries not found are missing.
+		 */
+		@Nonnull
+		Map<String, String> lookup(@Nonnull Collection<String> dns, @Nonnull String namingAttribute) throws NamingException;
+	}
+	
+	
+	/** Used if there is no {@link Lookup}. */
+	static final String DEFAULT_NAMING_ATTRIBUTE = "uid";
+	
+	
+	private static final int DEFAULT_SIZE = 10000;
+	
+	
+	/** Time to keep the resolved names. */
+	static final long DEFAULT_TTL_MILLIS = 60 * 60 * 1000L;
+	
+	
+	/** Time to keep the DNs, which cannot be found. */
+	static final long DEFAULT_NOT_FOUND_TTL_MILLIS = 5 * 60 * 1000L;
+	
+	
+	/** Cached name with its expiry time. */
+	private static final class Resolved {
+	
+		/** <code>null</code>, if not found. */
+		@CheckForNull
+		final String name;
+	
+		final long expires;
+	
+		Resolved(@Nullable String name, long expires) {
+			this.name = name;
+			this.expires = expires;
+		}
+	}
+	
+	
+	/** Names by the naming attribute and the normalized DN. */
+	private final LruCache<String, Resolved> cache = new LruCache<String, Resolved>(DEFAULT_SIZE, 8);
+	
+	
+	@Nullable
+	private final Lookup lookup;
+	
+	
+	private final long ttlMillis;
+	
+	
+	private final long notFoundTtlMillis;
+	
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private final AtomicLong shortcuts = new AtomicLong();
+	
+	private final AtomicLong lookups = new AtomicLong();
+	
+	private final AtomicLong lookupBatches = new AtomicLong();
+	
+	
+	/** @param lookup
+	 *  	<code>null</code> to resolve the DNs using the cache and the RDNs only.
+	 */
+	public DnReferenceResolver(@Nullable Lookup lookup) {
+		this(lookup, DEFAULT_TTL_MILLIS, DEFAULT_NOT_FOUND_TTL_MILLIS);
+	}
+	
+	
+	/** @param ttlMillis
+	 *  	time to keep the resolved names.
+	 *  @param notFoundTtlMillis
+	 *  	time to keep the DNs, which cannot be found.
+	 */
+	public DnReferenceResolver(@Nullable Lookup lookup, long ttlMillis, long notFoundTtlMillis) {
+		this.lookup = lookup;
+		this.ttlMillis = ttlMillis;
+		this.notFoundTtlMillis = notFoundTtlMillis;
+	}
+	
+	
+	@Nonnull
+	public String getDefaultNamingAttribute() {
+		return lookup != null ? lookup.getDefaultNamingAttribute() : DEFAULT_NAMING_ATTRIBUTE;
+	}
+	
+	
+	/** Remembers the name of the entry, so the references to it can be resolved without a lookup. */
+	public void remember(@Nonnull DirContextAdapter ctx, @Nonnull String namingAttribute) {
+		String name = ctx.getStringAttribute(namingAttribute);
+		if (name == null) {
+			return;
+		}
+		String key = key(ctx.getNameInNamespace(), namingAttribute);
+		if (key != null) {
+			cache.put(key, new Resolved(name, System.currentTimeMillis() + ttlMillis));
+		}
+	}
+	
+	
+	/** Resolves the DNs.
+	 *
+	 *  @return
+	 *  	names by DN as specified. The DNs, which cannot be resolved, are missing.
+	 */
+	@Nonnull
+	public Map<String, String> resolve(@Nonnull Collection<String> dns, @Nonnull String namingAttribute) {
+	
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		List<String> missing = null;
+		long now = System.currentTimeMillis();
+	
+		for (String dn : dns) {
+			String key = key(dn, namingAttribute);
+			if (key == null) {
+				logger.debug("Skipping invalid DN [" + dn + "].");
+				continue;
+			}
+	
+			Resolved cached = cache.get(key);
+			if (cached != null && cached.expires > now) {
+				hits.incrementAndGet();
+				if (cached.name != null) {
+					result.put(dn, cached.name);
+				}
+				continue;
+			}
+	
+			String rdn = rdnValue(dn, namingAttribute);
+			if (rdn != null) {
+				shortcuts.incrementAndGet();
+				result.put(dn, rdn);
+				continue;
+			}
+	
+			if (missing == null) {
+				missing = new ArrayList<String>();
+			}
+			missing.add(dn);
+		}
+	
+		if (missing != null && lookup != null) {
+			lookup(missing, namingAttribute, result);
+		}
+	
+		return result;
+	}
+	
+	
+	private void lookup(List<String> dns, String namingAttribute, Map<String, String> result) {
+		Map<String, String> found;
+		try {
+			found = lookup.lookup(dns, namingAttribute);
+		} catch (NamingException e) {
+			logger.warn("Error resolving DNs " + dns + " to [" + namingAttribute + "]. " + e.getMessage());
+			return; // not cached, may work next time.
+		}
+	
+		lookupBatches.incrementAndGet();
+		lookups.addAndGet(dns.size());
+	
+		long now = System.currentTimeMillis();
+		for (String dn : dns) {
+			String name = found.get(dn);
+			cache.put(key(dn, namingAttribute), new Resolved(name, now + (name != null ? ttlMillis : notFoundTtlMillis)));
+			if (name != null) {
+				result.put(dn, name);
+			}
+		}
+	}
+	
+	
+	/** Returns the value of the RDN, if the naming attribute is used as RDN. */
+	@CheckForNull
+	private static String rdnValue(String dn, String namingAttribute) {
+		try {
+			LdapName name = new LdapName(dn);
+			if (name.isEmpty()) {
+				return null;
+			}
+			Rdn rdn = name.getRdn(name.size() - 1);
+			if (rdn.size() == 1 && rdn.getType().equalsIgnoreCase(namingAttribute)) {
+				Object value = rdn.getValue();
+				return value instanceof String ? (String)value : null;
+			}
+			return null;
+		} catch (InvalidNameException e) {
+			return null;
+		}
+	}
+	
+	
+	/** Normalizes the DN: types and values in lower case, no spaces between the RDNs. */
+	@CheckForNull
+	private static String key(@Nullable String dn, String namingAttribute) {
+		if (dn == null) {
+			return null;
+		}
+		try {
+			LdapName name = new LdapName(dn);
+			StringBuilder result = new StringBuilder(dn.length() + namingAttribute.length() + 1);
+			result.append(namingAttribute.toLowerCase(Locale.ENGLISH)).append('|');
+			for (int i = name.size() - 1; i >= 0; i--) {
+				result.append(name.getRdn(i).toString().toLowerCase(Locale.ENGLISH));
+				if (i > 0) {
+					result.append(',');
+				}
+			}
+			return result.toString();
+		} catch (InvalidNameException e) {
+			return null;
+		}
+	}
+	
+	
+	@Override
+	public String toString() {
+		return
+			"DnReferenceResolver{cache=" + cache.size() + "/" + cache.getMaxSize() +
+			", hits=" + hits + ", rdnShortcuts=" + shortcuts + ", lookups=" + lookups + " in " + lookupBatches + " batches}";
+	}
+	
+}
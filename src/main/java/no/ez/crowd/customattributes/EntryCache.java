@@ -0,0 +1,97 @@
+package no.ez.crowd.customattributes;
+
+import javax.annotation.CheckForNull;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlTransient;
+import javax.xml.bind.annotation.XmlType;
+
+
+
+/** An entry-cache tag of a directory. Enables the {@link ChangeMarkerCache}.
+ */
+@XmlType(name="entry-cache")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class EntryCache {
+	
+	
+	@XmlAttribute(name="size", required=false)
+	private int size = 10000;
+	
+	
+	@XmlAttribute(name="marker", required=false)
+	@CheckForNull
+	private String marker;
+	
+	
+	@XmlAttribute(name="persistent", required=false)
+	private boolean persistent;
+	
+	
+	/** Set when the configuration is loaded. See {@link #getFingerprint()}. */
+	@XmlTransient
+	@CheckForNull
+	private String fingerprint;
+	
+	
+	/** For JAX. Do not delete! */
+	protected EntryCache() {
+		// nothing
+	}
+	
+	
+	public EntryCache(int size, @CheckForNull String marker) {
+		this(size, marker, false);
+	}
+	
+	
+	public EntryCache(int size, @CheckForNull String marker, boolean persistent) {
+		this.size = size;
+		this.marker = marker;
+		this.persistent = persistent;
+	}
+	
+	
+	/** Maximum number of the cached entries. */
+	public int getSize() {
+		return size;
+	}
+	
+	
+	/** LDAP attribute, which changes every time the entry is modified.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if the default of the connector must be used 
+	 *  	(<code>modifyTimestamp</code> or <code>uSNChanged</code>).
+	 */
+	@CheckForNull
+	public String getMarker() {
+		return marker;
+	}
+	
+	
+	/** Returns <code>true</code>, if the cache must be kept in the Crowd home directory 
+	 *  over restarts. @see EntryStore */
+	public boolean isPersistent() {
+		return persistent;
+	}
+	
+	
+	/** Digest of the attribute configuration of the directory. The stored values 
+	 *  of another configuration are discarded.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if not loaded by the {@link ConfigurationReader}.
+	 */
+	@CheckForNull
+	public String getFingerprint() {
+		return fingerprint;
+	}
+	
+	
+	void setFingerprint(@CheckForNull String fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+	
+}
@@ -0,0 +1,541 @@
+package no.ez.crowd.customattributes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+
+/** On-disk copy of the {@link ChangeMarkerCache}, so the first synchronisation after a Crowd
+ *  restart converts only the changed entries. Thread-safe.<br><br>
+ *  
+ *  The converted values are appended as records <i>(DN, change marker, key, values)</i> to
+ *  segment files in the store directory. Each record ends with a CRC32 digest of its content,
+ *  a truncated or corrupted tail is ignored when loading. The segments are never modified: every
+ *  store instance appends to a new segment, the old ones are read sequentially and replayed on load 
+ *  (later records win). If there are too many segments, they are merged into a single one on load
+ *  and when the current segment is full. The merge keeps only the last record of every DN and key,
+ *  and only the DNs the {@link Retention} still knows.<br><br>
+ *  
+ *  Every segment starts with the fingerprint of the configuration it was written with. 
+ *  The segments of another configuration are deleted on load.<br><br>
+ *  
+ *  A store writes, merges and deletes the segments only while it holds the lock file of the 
+ *  directory. Another store (of the same or another process) only reads them meanwhile.
+ *  
+ *  @see EntryCache#isPersistent()
+ */
+final class EntryStore {
+	
+	private final Logger logger = LoggerFactory.getLogger(EntryStore.class);
+	
+	
+	/** Receives the records replayed by {@link EntryStore#load(Loader)}. */
+	static interface Loader {
+	
+		void restore(@Nonnull String dn, @Nonnull String marker, @Nonnull String key, @Nonnull Set<String> values);
+	}
+	
+	
+	/** Decides, which DNs are kept, when the segments are merged. */
+	static interface Retention {
+	
+		/** Returns <code>false</code>, if the records of the DN are not needed any more
+		 *  (the entry has been deleted or not seen for a long time). */
+		boolean retain(@Nonnull String dn);
+	}
+	
+	
+	private static final int MAGIC = 0x4c434153; // "LCAS"
+	
+	private static final int VERSION = 1;
+	
+	private static final String PREFIX = "segment-";
+	
+	private static final String SUFFIX = ".dat";
+	
+	private static final String LOCK_FILE = "store.lock";
+	
+	/** Merged into one on load or when the current segment is full, if there are more. */
+	private static final int MAX_SEGMENTS = 8;
+	
+	/** A new segment is started, when the current one is larger. */
+	private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+	
+	/** Records are flushed to the disk every so many appends. */
+	private static final int FLUSH_EVERY = 100;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	
+	private final File directory;
+	
+	private final String fingerprint;
+	
+	
+	/** Set by {@link #load(Loader, Retention)}. <code>null</code> to keep all the DNs. */
+	@Nullable
+	private Retention retention;
+	
+	
+	/** Held while writing. See {@link #lock()}. */
+	@Nullable
+	private FileChannel lockChannel;
+	
+	private OutputStream out;
+	
+	private long segmentSize;
+	
+	private int unflushed;
+	
+	/** Set after a write error, nothing is written afterwards. */
+	private boolean broken;
+	
+	
+	/** @param directory
+	 *  	store directory of a single LDAP directory. Created, if missing.
+	 *  @param fingerprint
+	 *  	fingerprint of the configuration. The values converted with other configurations are discarded.
+	 */
+	public EntryStore(@Nonnull File directory, @Nonnull String fingerprint) {
+		this.directory = directory;
+		this.fingerprint = fingerprint;
+	}
+	
+	
+	/** Like {@link #load(Loader, Retention)}, but keeps all the DNs. */
+	public void load(@Nonnull Loader loader) {
+		load(loader, null);
+	}
+	
+	
+	/** Replays all the valid records of the current configuration. Merges the segments, 
+	 *  if there are too many of them, and deletes the segments of other configurations.
+	 *  Only reads them, if another store holds the lock of the directory.
+	 *  
+	 *  @param retention
+	 *  	used by all the following merges. <code>null</code> to keep all the DNs.
+	 */
+	public synchronized void load(@Nonnull Loader loader, @Nullable Retention retention) {
+		
+		this.retention = retention;
+		
+		boolean locked = lock();
+		List<File> segments = listSegments();
+		List<File> current = new ArrayList<File>();
+		long records = 0;
+		
+		for (File segment : segments) {
+			try {
+				long read = replay(segment, loader);
+				if (read < 0) {
+					if (locked) {
+						logger.info("Deleting custom attribute store segment [" + segment + "] written with another configuration.");
+						delete(segment);
+					}
+				} else {
+					records += read;
+					current.add(segment);
+				}
+			} catch (IOException e) {
+				logger.warn("Error reading custom attribute store segment [" + segment + "]. " + (locked ? "Deleting it. " : "") + e.getMessage());
+				if (locked) {
+					delete(segment);
+				}
+			}
+		}
+		
+		logger.info("Loaded " + records + " custom attribute records from " + current.size() + " segments in [" + directory + "].");
+		
+		if (locked && current.size() > MAX_SEGMENTS) {
+			merge(current);
+		}
+	}
+	
+	
+	/** Rewrites the last record of every DN and key into a new segment. Deletes the old 
+	 *  segments, only if the new one is written completely. */
+	private void merge(final List<File> segments) {
+		try {
+			// the first pass finds the last record of every DN and key, the second one copies them.
+			final Map<String, Long> last = new HashMap<String, Long>();
+			final long[] index = new long[1];
+			
+			Loader finder = new Loader() {
+				@Override
+				public void restore(String dn, String marker, String key, Set<String> values) {
+					last.put(dn + '\n' + key, index[0]++);
+				}
+			};
+			for (File segment : segments) {
+				replay(segment, finder);
+			}
+			
+			index[0] = 0;
+			final long[] pruned = new long[1];
+			final DataOutputStream merged = new DataOutputStream(new BufferedOutputStream(openSegment()));
+			try {
+				Loader copier = new Loader() {
+					@Override
+					public void restore(String dn, String marker, String key, Set<String> values) {
+						if (last.get(dn + '\n' + key).longValue() != index[0]++) {
+							return; // superseded
+						}
+						if (retention != null && ! retention.retain(dn)) {
+							pruned[0]++;
+							return;
+						}
+						try {
+							writeRecord(merged, dn, marker, key, values);
+						} catch (IOException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				};
+				for (File segment : segments) {
+					replay(segment, copier);
+				}
+			} finally {
+				merged.close();
+			}
+			for (File segment : segments) {
+				delete(segment);
+			}
+			logger.info(
+					"Merged " + segments.size() + " custom attribute store segments in [" + directory + "]. " +
+					"Pruned " + pruned[0] + " records of the DNs not known any more.");
+		} catch (IOException e) {
+			logger.warn("Error merging custom attribute store segments in [" + directory + "]. " + e.getMessage());
+		} catch (IllegalStateException e) {
+			logger.warn("Error merging custom attribute store segments in [" + directory + "]. " + e.getCause());
+		}
+	}
+	
+	
+	/** Appends a record. Write errors are logged and disable the store. */
+	public synchronized void append(@Nonnull String dn, @Nonnull String marker, @Nonnull String key, @Nonnull Collection<String> values) {
+		if (broken) {
+			return;
+		}
+		try {
+			if (out != null && segmentSize > MAX_SEGMENT_SIZE) {
+				closeSegment();
+				List<File> segments = listSegments();
+				if (segments.size() > MAX_SEGMENTS) {
+					merge(segments);
+				}
+			}
+			if (out == null) {
+				if ( ! lock()) {
+					broken = true;
+					logger.warn("The custom attribute store in [" + directory + "] is used by another store. The store is disabled.");
+					return;
+				}
+				out = new BufferedOutputStream(openSegment());
+				segmentSize = 0;
+			}
+			segmentSize += writeRecord(out, dn, marker, key, values);
+			if (++unflushed >= FLUSH_EVERY) {
+				out.flush();
+				unflushed = 0;
+			}
+		} catch (IOException e) {
+			broken = true;
+			logger.error("Error writing the custom attribute store in [" + directory + "]. The store is disabled.", e);
+		}
+	}
+	
+	
+	/** Flushes and closes the current segment and releases the lock. The next append starts a new segment. */
+	public synchronized void close() {
+		closeSegment();
+		unlock();
+	}
+	
+	
+	private void closeSegment() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				logger.warn("Error closing the custom attribute store in [" + directory + "]. " + e.getMessage());
+			}
+			out = null;
+			unflushed = 0;
+		}
+	}
+	
+	
+	/** Acquires the lock file of the directory, unless already held.
+	 * 
+	 *  @return
+	 *  	<code>false</code>, if another store holds the lock.
+	 */
+	private boolean lock() {
+		if (lockChannel != null) {
+			return true;
+		}
+		try {
+			createDirectory();
+			FileChannel channel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+			FileLock lock;
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null; // held by another store of this process.
+			}
+			if (lock == null) {
+				channel.close();
+				logger.info("The custom attribute store in [" + directory + "] is locked by another store.");
+				return false;
+			}
+			lockChannel = channel;
+			return true;
+		} catch (IOException e) {
+			logger.warn("Error locking the custom attribute store in [" + directory + "]. " + e.getMessage());
+			return false;
+		}
+	}
+	
+	
+	/** Releases the lock file, closing the channel releases the lock. */
+	private void unlock() {
+		if (lockChannel != null) {
+			try {
+				lockChannel.close();
+			} catch (IOException e) {
+				logger.warn("Error unlocking the custom attribute store in [" + directory + "]. " + e.getMessage());
+			}
+			lockChannel = null;
+		}
+	}
+	
+	
+	private void createDirectory() throws IOException {
+		if ( ! directory.isDirectory() && ! directory.mkdirs()) {
+			throw new IOException("Cannot create the directory [" + directory + "].");
+		}
+	}
+	
+	
+	/** Creates a new segment after the existing ones and writes its header. Never reuses an existing file. */
+	private OutputStream openSegment() throws IOException {
+		createDirectory();
+		List<File> segments = listSegments();
+		long next = segments.isEmpty() ? 1 : sequence(segments.get(segments.size() - 1)) + 1;
+		File file = new File(directory, PREFIX + String.format("%08d", next) + SUFFIX);
+		while ( ! file.createNewFile()) {
+			next++;
+			file = new File(directory, PREFIX + String.format("%08d", next) + SUFFIX);
+		}
+		
+		FileOutputStream result = new FileOutputStream(file); // empty, just created.
+		DataOutputStream header = new DataOutputStream(result);
+		header.writeInt(MAGIC);
+		header.writeInt(VERSION);
+		writeString(header, fingerprint);
+		header.flush();
+		return result;
+	}
+	
+	
+	/** @return
+	 *  	size of the record in bytes.
+	 */
+	private static int writeRecord(OutputStream out, String dn, String marker, String key, Collection<String> values) throws IOException {
+		
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+		DataOutputStream payload = new DataOutputStream(buffer);
+		writeString(payload, dn);
+		writeString(payload, marker);
+		writeString(payload, key);
+		payload.writeInt(values.size());
+		for (String value : values) {
+			writeString(payload, value);
+		}
+		payload.flush();
+		
+		CRC32 crc = new CRC32();
+		crc.update(buffer.toByteArray());
+		
+		DataOutputStream record = new DataOutputStream(out);
+		record.writeInt(buffer.size());
+		buffer.writeTo(record);
+		record.writeLong(crc.getValue());
+		return 4 + buffer.size() + 8;
+	}
+	
+	
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	
+	/** Replays the valid records of the segment. Reads the file sequentially, so it can be deleted
+	 *  right afterwards on every platform.
+	 * 
+	 *  @return
+	 *  	number of records, <code>-1</code>, if the segment belongs to another configuration.
+	 */
+	private long replay(File segment, Loader loader) throws IOException {
+		
+		long size = segment.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 64 * 1024));
+		try {
+			long position;
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					return -1;
+				}
+				int length = in.readInt();
+				if (length < 0 || length > size - 12) {
+					return -1;
+				}
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				if ( ! fingerprint.equals(new String(bytes, UTF8))) {
+					return -1;
+				}
+				position = 12 + length;
+			} catch (EOFException e) {
+				return -1;
+			}
+			
+			long records = 0;
+			CRC32 crc = new CRC32();
+			
+			while (size - position >= 4) {
+				long start = position;
+				try {
+					int length = in.readInt();
+					if (length < 0 || length + 8L > size - position - 4) {
+						break; // truncated tail
+					}
+					byte[] payload = new byte[length];
+					in.readFully(payload);
+					long expected = in.readLong();
+					position += 4 + length + 8;
+					crc.reset();
+					crc.update(payload);
+					if (crc.getValue() != expected) {
+						logger.warn("Corrupted record at position " + start + " of the custom attribute store segment [" + segment + "]. Ignoring the rest.");
+						break;
+					}
+					restore(payload, loader);
+					records++;
+				} catch (EOFException e) {
+					break; // truncated meanwhile
+				} catch (BufferUnderflowException e) {
+					logger.warn("Corrupted record at position " + start + " of the custom attribute store segment [" + segment + "]. Ignoring the rest.");
+					break;
+				}
+			}
+			return records;
+		} finally {
+			in.close();
+		}
+	}
+	
+	
+	private static void restore(byte[] payload, Loader loader) {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		String dn = readString(buffer);
+		String marker = readString(buffer);
+		String key = readString(buffer);
+		int count = buffer.getInt();
+		Set<String> values = new LinkedHashSet<String>(Math.max(4, count * 2));
+		for (int i = 0; i < count; i++) {
+			values.add(readString(buffer));
+		}
+		loader.restore(dn, marker, key, values);
+	}
+	
+	
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	
+	/** Returns the segments ordered by the sequence number. */
+	private List<File> listSegments() {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX) && sequence(file) >= 0;
+			}
+		});
+		if (files == null) {
+			return new ArrayList<File>();
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long sa = sequence(a);
+				long sb = sequence(b);
+				return sa < sb ? -1 : (sa == sb ? 0 : 1);
+			}
+		});
+		return new ArrayList<File>(Arrays.asList(files));
+	}
+	
+	
+	private static long sequence(File segment) {
+		String name = segment.getName();
+		Long result = ValueParser.parseLong(name.subSequence(PREFIX.length(), name.length() - SUFFIX.length()), 10);
+		return result != null ? result.longValue() : -1;
+	}
+	
+	
+	private void delete(File segment) {
+		if ( ! segment.delete()) {
+			logger.warn("Cannot delete the custom attribute store segment [" + segment + "].");
+		}
+	}
+	
+	
+	@Override
+	public String toString() {
+		return "EntryStore{" + directory + "}";
+	}
+	
+}
@@ -0,0 +1,76 @@
+package no.ez.crowd.customattributes;
+
+import javax.annotation.CheckForNull;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+
+
+/** A flag tag. Describes a single bit (or several bits) of a bitmask 
+ *  attribute like <code>userAccountControl</code>.
+ * 
+ *  @see AttributeType#FLAGS
+ */
+@XmlType(name="flag")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class Flag {
+	
+	
+	@XmlAttribute(name="name", required=false)
+	private String name;
+	
+	
+	/** Decimal or hexadecimal (with prefix <code>0x</code>) number. */
+	@XmlAttribute(name="mask", required=true)
+	private String mask;
+	
+	
+	/** For JAX. Do not delete! */
+	protected Flag() {
+		// nothing
+	}
+	
+
+	public Flag(String name, String mask) {
+		this.name = name;
+		this.mask = mask;
+	}
+	
+	
+	@CheckForNull
+	public String getName() {
+		return name;
+	}
+	
+	
+	public String getMask() {
+		return mask;
+	}
+	
+	
+	/** Returns the parsed {@link #getMask()} value.
+	 * 
+	 *  @throws IllegalArgumentException
+	 *  	if the mask is not a valid decimal or hexadecimal number, doesn't fit into <code>long</code>
+	 *  	or is zero (would match every value).
+	 */
+	public long getMaskValue() {
+		Long result = ValueParser.parseDecimalOrHex(mask);
+		if (result == null) {
+			throw new IllegalArgumentException("Invalid flag mask [" + mask + "]. Decimal or hexadecimal (0x...) number within the range of long expected.");
+		}
+		if (result.longValue() == 0) {
+			throw new IllegalArgumentException("Invalid flag mask [" + mask + "]. A zero mask matches every value.");
+		}
+		return result.longValue();
+	}
+	
+	
+	@Override
+	public String toString() {
+		return name + "=" + mask;
+	}
+
+}
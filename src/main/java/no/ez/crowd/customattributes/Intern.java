@@ -0,0 +1,56 @@
+package no.ez.crowd.customattributes;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+
+
+/** An intern tag. Enables the {@link InternPool} for the attribute values.
+ */
+@XmlType(name="intern")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class Intern {
+	
+	
+	@XmlAttribute(name="size", required=false)
+	private int size = 1000;
+	
+	
+	@XmlAttribute(name="eviction", required=false)
+	private InternPool.Eviction eviction = InternPool.Eviction.LRU;
+	
+	
+	@XmlAttribute(name="weak-references", required=false)
+	private boolean weakReferences = false;
+	
+	
+	/** For JAX. Do not delete! */
+	protected Intern() {
+		// nothing
+	}
+	
+
+	public Intern(int size, InternPool.Eviction eviction, boolean weakReferences) {
+		this.size = size;
+		this.eviction = eviction;
+		this.weakReferences = weakReferences;
+	}
+
+
+	public int getSize() {
+		return size;
+	}
+
+
+	public InternPool.Eviction getEviction() {
+		return eviction;
+	}
+
+
+	public boolean isWeakReferences() {
+		return weakReferences;
+	}
+
+}
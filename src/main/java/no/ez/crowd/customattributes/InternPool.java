@@ -0,0 +1,269 @@
+package no.ez.crowd.customattributes;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+
+
+/** Bounded pool of canonical string instances. Used to keep only one copy of
+ *  values repeated for a lot of entries (like <code>department</code> or
+ *  <code>company</code>) during the synchronisation.<br><br>
+ *
+ *  If the pool is full, entries are evicted either in the least recently used
+ *  order or the least frequently used ones. With weak references the pool doesn't
+ *  prevent the values from being garbage collected, if nobody else uses them.<br><br>
+ *
+ *  Thread-safe.
+ *
+ *  @see Intern
+ */
+final class InternPool {
+
+
+	/** Eviction strategy used, if the pool is full. */
+	public static enum Eviction {
+
+		/** Evicts the least recently used value. */
+		LRU,
+
+		/** Evicts the least frequently used value among the {@link InternPool#SAMPLE_SIZE} oldest
+		 *  ones. The other sampled values get their frequencies halved and are moved to the end,
+		 *  so every eviction costs the same and the values which were popular long ago can be
+		 *  evicted too. */
+		FREQUENCY;
+	}
+
+
+	/** Number of the values compared for a {@link Eviction#FREQUENCY} eviction. */
+	static final int SAMPLE_SIZE = 8;
+
+
+	private final int maxSize;
+
+	private final Eviction eviction;
+
+	private final boolean weakReferences;
+
+
+	/** Access ordered for {@link Eviction#LRU}. */
+	private final Map<Key, Slot> pool;
+
+	private final ReferenceQueue<String> collected = new ReferenceQueue<String>();
+
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+
+	/** @param maxSize
+	 *  	maximum number of values in the pool. Must be positive.
+	 */
+	public InternPool(int maxSize, @Nonnull Eviction eviction, boolean weakReferences) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Intern pool size must be positive, but was [" + maxSize + "].");
+		}
+		this.maxSize = maxSize;
+		this.eviction = eviction;
+		this.weakReferences = weakReferences;
+		this.pool = new LinkedHashMap<Key, Slot>(16, 0.75f, eviction == Eviction.LRU);
+	}
+
+
+	/** Returns the pooled instance equal to the specified value. If not found,
+	 *  the value is added to the pool and returned.
+	 */
+	@Nonnull
+	public synchronized String intern(@Nonnull String value) {
+
+		expungeCollected();
+
+		Key probe = new StrongKey(value);
+
+		Slot slot = pool.get(probe);
+
+		if (slot != null) {
+			String pooled = slot.key.get();
+			if (pooled != null) {
+				hits++;
+				slot.count++;
+				return pooled;
+			}
+			pool.remove(slot.key); // collected, but not expunged yet.
+		}
+
+		misses++;
+
+		if (pool.size() >= maxSize) {
+			evict();
+		}
+
+		Key key = weakReferences ? new WeakKey(value, collected) : probe;
+		pool.put(key, new Slot(key));
+
+		return value;
+	}
+
+
+	private void evict() {
+		if (eviction == Eviction.LRU) {
+			Iterator<Key> it = pool.keySet().iterator();
+			it.next();
+			it.remove();
+			evictions++;
+			return;
+		}
+
+		List<Slot> sample = new ArrayList<Slot>(SAMPLE_SIZE);
+		Slot victim = null;
+		for (Iterator<Slot> it = pool.values().iterator(); it.hasNext() && sample.size() < SAMPLE_SIZE; ) {
+			Slot slot = it.next();
+			sample.add(slot);
+			if (victim == null || slot.count < victim.count) {
+				victim = slot;
+			}
+		}
+
+		for (Slot slot : sample) {
+			pool.remove(slot.key);
+			if (slot != victim) {
+				slot.count /= 2; // aging
+				pool.put(slot.key, slot); // the next eviction samples the following values.
+			}
+		}
+		evictions++;
+	}
+
+
+	private void expungeCollected() {
+		Reference<? extends String> ref;
+		while ((ref = collected.poll()) != null) {
+			pool.remove(ref);
+		}
+	}
+
+
+	public synchronized int size() {
+		return pool.size();
+	}
+
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+
+	/** Returns the ratio of the hits to all the requests, or <code>0</code> if
+	 *  there were no requests yet. */
+	public synchronized double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double)hits / total;
+	}
+
+
+	@Override
+	public synchronized String toString() {
+		return
+			"InternPool{size=" + pool.size() + "/" + maxSize + ", eviction=" + eviction + ", weak=" + weakReferences +
+			", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions +
+			", hitRate=" + Math.round(getHitRate() * 100) + "%}";
+	}
+
+
+	private static class Slot {
+
+		final Key key;
+
+		int count = 1;
+
+		Slot(Key key) {
+			this.key = key;
+		}
+	}
+
+
+	/** Pool key. Strong and weak keys are equal, if the referenced strings are equal.
+	 *  Collected weak keys are equal to themselves only. */
+	private static interface Key {
+
+		@CheckForNull
+		String get();
+	}
+
+
+	private static final class StrongKey implements Key {
+
+		private final String value;
+
+		StrongKey(String value) {
+			this.value = value;
+		}
+
+		@Override
+		public String get() {
+			return value;
+		}
+
+		@Override
+		public int hashCode() {
+			return value.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && value.equals(((Key)obj).get());
+		}
+	}
+
+
+	private static final class WeakKey extends WeakReference<String> implements Key {
+
+		private final int hash;
+
+		WeakKey(String value, ReferenceQueue<String> queue) {
+			super(value, queue);
+			this.hash = value.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) {
+				return true;
+			}
+			String value = get();
+			return value != null && obj instanceof Key && value.equals(((Key)obj).get());
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Mapper for the {@link AttributeType#JSON} attributes. Converts every nested field
+ *  with its own mapper and writes the results as a single compact JSON object, so Crowd 
+ *  stores one row instead of one per field.<br><br>
+ *  
+ *  The members are written in the configured order and the values in the LDAP order, 
+ *  so an unchanged entry produces byte-identical output. A field with a single value is 
+ *  written as a string, with several values as an array of strings, without values not
+ *  at all. No value is produced, if no field has a value.
+ * 
+ *  @see CustomAttribute#getFields()
+ */
+final class JsonAttributeMapper extends CustomAttributeMapper {
+	
+	
+	/** Initial capacity of the output builder. Grows to the largest output seen so far. */
+	private volatile int capacity = 64;
+	
+	
+	private final List<CustomAttributeMapper> fields;
+	
+	
+	public JsonAttributeMapper(@Nonnull CustomAttribute attribute, @Nullable MapperContext context) {
+		super(attribute);
+		List<CustomAttributeMapper> result = new ArrayList<CustomAttributeMapper>();
+		for (CustomAttribute field : attribute.getFields()) {
+			result.add(create(field, context));
+		}
+		if (result.isEmpty()) {
+			throw new IllegalArgumentException("JSON attribute [" + attribute.getKey() + "] has no fields.");
+		}
+		this.fields = Collections.unmodifiableList(result);
+	}
+	
+	
+	/** The raw values are ignored, the attribute has no LDAP names. */
+	@Override
+	@Nonnull
+	Set<String> convertAll(@Nonnull DirContextAdapter ctx, @Nullable Object[] attrs) {
+		
+		Set<String> result = new LinkedHashSet<String>();
+		
+		StringBuilder out = new StringBuilder(capacity);
+		JsonWriter writer = new JsonWriter(out).beginObject();
+		boolean empty = true;
+		
+		for (CustomAttributeMapper field : fields) {
+			Set<String> values = field.getValues(ctx);
+			if (values.isEmpty()) {
+				continue;
+			}
+			empty = false;
+			writer.name(field.getKey());
+			if (values.size() == 1) {
+				writer.value(values.iterator().next());
+			} else {
+				writer.beginArray();
+				for (String value : values) {
+					writer.value(value);
+				}
+				writer.endArray();
+			}
+		}
+		
+		if ( ! empty) {
+			writer.endObject();
+			if (out.length() > capacity) {
+				capacity = out.length();
+			}
+			result.add(out.toString());
+		}
+		
+		return complete(ctx, result);
+	}
+	
+	
+	@Override
+	public Set<String> getRequiredLdapAttributes() {
+		Set<String> result = super.getRequiredLdapAttributes();
+		for (CustomAttributeMapper field : fields) {
+			result.addAll(field.getRequiredLdapAttributes());
+		}
+		return result;
+	}
+	
+}
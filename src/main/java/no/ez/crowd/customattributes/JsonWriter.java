@@ -0,0 +1,121 @@
+package no.ez.crowd.customattributes;
+
+import javax.annotation.Nonnull;
+
+
+
+/** Minimal streaming JSON writer for the {@link AttributeType#JSON} attributes. Appends
+ *  directly to a {@link StringBuilder} without building a tree, no whitespace. Only strings,
+ *  arrays of strings and objects are supported. Not thread-safe.
+ */
+final class JsonWriter {
+	
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	
+	private final StringBuilder out;
+	
+	/** <code>true</code>, if the next element of the current object or array needs a comma. */
+	private boolean comma;
+	
+	
+	public JsonWriter(@Nonnull StringBuilder out) {
+		this.out = out;
+	}
+	
+	
+	@Nonnull
+	public JsonWriter beginObject() {
+		separate();
+		out.append('{');
+		comma = false;
+		return this;
+	}
+	
+	
+	@Nonnull
+	public JsonWriter endObject() {
+		out.append('}');
+		comma = true;
+		return this;
+	}
+	
+	
+	@Nonnull
+	public JsonWriter beginArray() {
+		out.append('[');
+		comma = false;
+		return this;
+	}
+	
+	
+	@Nonnull
+	public JsonWriter endArray() {
+		out.append(']');
+		comma = true;
+		return this;
+	}
+	
+	
+	/** Writes the name of the next object member. Must be followed by a value or an array. */
+	@Nonnull
+	public JsonWriter name(@Nonnull String name) {
+		separate();
+		string(name);
+		out.append(':');
+		comma = false;
+		return this;
+	}
+	
+	
+	@Nonnull
+	public JsonWriter value(@Nonnull String value) {
+		separate();
+		string(value);
+		comma = true;
+		return this;
+	}
+	
+	
+	private void separate() {
+		if (comma) {
+			out.append(',');
+		}
+	}
+	
+	
+	/** Writes a quoted string. Escapes the control characters and the characters, 
+	 *  which are unsafe to embed into HTML. */
+	private void string(String value) {
+		out.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+					out.append("\\\"");
+					break;
+				case '\\':
+					out.append("\\\\");
+					break;
+				case '\n':
+					out.append("\\n");
+					break;
+				case '\r':
+					out.append("\\r");
+					break;
+				case '\t':
+					out.append("\\t");
+					break;
+				default:
+					if (c < 0x20 || c == '<' || c == '>' || c == '&' || c == '\u2028' || c == '\u2029') {
+						out.append("\\u").append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf]).append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+					} else {
+						out.append(c);
+					}
+			}
+		}
+		out.append('"');
+	}
+	
+}
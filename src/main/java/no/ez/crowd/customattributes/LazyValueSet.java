@@ -0,0 +1,108 @@
+package no.ez.crowd.customattributes;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Read-only set of attribute values, which keeps the raw LDAP values and
+ *  converts them only when the set is accessed for the first time (iterated,
+ *  its size requested etc.).<br><br>
+ *
+ *  Until then the set holds a reference to the LDAP context, which is used
+ *  for the error messages. Both the context and the raw values are released
+ *  after the conversion.
+ *
+ *  @see CustomAttribute#isLazy()
+ */
+final class LazyValueSet extends AbstractSet<String> {
+	
+	
+	private final CustomAttributeMapper mapper;
+	
+	private final Statistics statistics;
+	
+	
+	private DirContextAdapter ctx;
+	
+	private Object[] raw;
+	
+	private Set<String> values;
+	
+	
+	LazyValueSet(@Nonnull CustomAttributeMapper mapper, @Nonnull DirContextAdapter ctx, @Nonnull Object[] raw, @Nonnull Statistics statistics) {
+		this.mapper = mapper;
+		this.ctx = ctx;
+		this.raw = raw;
+		this.statistics = statistics;
+		statistics.created.incrementAndGet();
+	}
+	
+	
+	/** Returns <code>true</code>, if the values are already converted. */
+	public synchronized boolean isRealised() {
+		return values != null;
+	}
+	
+	
+	private synchronized Set<String> values() {
+		if (values == null) {
+			values = Collections.unmodifiableSet(mapper.convertAll(ctx, raw));
+			ctx = null;
+			raw = null;
+			statistics.realised.incrementAndGet();
+		}
+		return values;
+	}
+	
+	
+	@Override
+	public Iterator<String> iterator() {
+		return values().iterator();
+	}
+	
+	
+	@Override
+	public int size() {
+		return values().size();
+	}
+	
+	
+	@Override
+	public boolean contains(Object o) {
+		return values().contains(o);
+	}
+	
+	
+	/** Counters of the lazy value sets created for an attribute. Thread-safe. */
+	static final class Statistics {
+	
+		private final AtomicLong created = new AtomicLong();
+	
+		private final AtomicLong realised = new AtomicLong();
+	
+	
+		public long getCreated() {
+			return created.get();
+		}
+	
+	
+		public long getRealised() {
+			return realised.get();
+		}
+	
+	
+		@Override
+		public String toString() {
+			return "LazyValues{created=" + created + ", realised=" + realised + "}";
+		}
+	}
+	
+}
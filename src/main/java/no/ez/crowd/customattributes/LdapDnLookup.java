@@ -0,0 +1,152 @@
+package no.ez.crowd.customattributes;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.LdapName;
+
+import org.springframework.ldap.core.ContextExecutor;
+import org.springframework.ldap.core.LdapTemplate;
+
+
+
+/** {@link DnReferenceResolver.Lookup}, {@link ConstructedAttributeLoader.Lookup} and 
+ *  {@link AttributeWriteBack.Writer} accessing the entries using the {@link LdapTemplate} of the connector. All the DNs of a batch are read with a single LDAP context, so only
+ *  one connection is taken from the pool.
+ */
+final class LdapDnLookup {
+	
+	
+	private LdapDnLookup() {
+		// static methods only
+	}
+	
+	
+	/** Reads the naming attribute of the specified entries.
+	 *
+	 *  @param baseDn
+	 *  	base DN of the LDAP contexts created by the template. The DNs are made relative to it.
+	 *  @return
+	 *  	names by DN as specified. The entries not found are missing.
+	 */
+	@SuppressWarnings("unchecked")
+	@Nonnull
+	public static Map<String, String> lookup(
+			@Nonnull LdapTemplate template, @CheckForNull final String baseDn,
+			@Nonnull final Collection<String> dns, @Nonnull final String namingAttribute) throws NamingException {
+	
+		final LdapName base = baseDn != null ? new LdapName(baseDn) : new LdapName("");
+	
+		try {
+			return (Map<String, String>)template.executeReadOnly(new ContextExecutor() {
+				@Override
+				public Object executeWithContext(DirContext ctx) throws NamingException {
+					Map<String, String> result = new HashMap<String, String>();
+					for (String dn : dns) {
+						String name = readName(ctx, relative(dn, base), namingAttribute);
+						if (name != null) {
+							result.put(dn, name);
+						}
+					}
+					return result;
+				}
+			});
+		} catch (org.springframework.ldap.NamingException e) {
+			NamingException cause = new NamingException(e.getMessage());
+			cause.setRootCause(e);
+			throw cause;
+		}
+	}
+	
+	
+	/** Reads the specified attributes of the entries with base-object lookups.
+	 *
+	 *  @param baseDn
+	 *  	base DN of the LDAP contexts created by the template. The DNs are made relative to it.
+	 *  @return
+	 *  	attributes by DN as specified. The entries not found are missing.
+	 */
+	@SuppressWarnings("unchecked")
+	@Nonnull
+	public static Map<String, Attributes> readAttributes(
+			@Nonnull LdapTemplate template, @CheckForNull final String baseDn,
+			@Nonnull final Collection<String> dns, @Nonnull final String[] ldapNames) throws NamingException {
+	
+		final LdapName base = baseDn != null ? new LdapName(baseDn) : new LdapName("");
+	
+		try {
+			return (Map<String, Attributes>)template.executeReadOnly(new ContextExecutor() {
+				@Override
+				public Object executeWithContext(DirContext ctx) throws NamingException {
+					Map<String, Attributes> result = new HashMap<String, Attributes>();
+					for (String dn : dns) {
+						try {
+							result.put(dn, ctx.getAttributes(relative(dn, base), ldapNames));
+						} catch (NameNotFoundException e) {
+							// deleted since the search
+						}
+					}
+					return result;
+				}
+			});
+		} catch (org.springframework.ldap.NamingException e) {
+			NamingException cause = new NamingException(e.getMessage());
+			cause.setRootCause(e);
+			throw cause;
+		}
+	}
+	
+	
+	/** Sends the modifications of the entry as a single <code>ModifyAttributes</code> request.
+	 *
+	 *  @param baseDn
+	 *  	base DN of the LDAP contexts created by the template. The DN is made relative to it.
+	 */
+	public static void modifyAttributes(
+			@Nonnull LdapTemplate template, @CheckForNull String baseDn,
+			@Nonnull String dn, @Nonnull ModificationItem[] items) throws NamingException {
+	
+		LdapName name = relative(dn, baseDn != null ? new LdapName(baseDn) : new LdapName(""));
+		try {
+			template.modifyAttributes(name, items);
+		} catch (org.springframework.ldap.NamingException e) {
+			NamingException cause = new NamingException(e.getMessage());
+			cause.setRootCause(e);
+			throw cause;
+		}
+	}
+	
+	
+	@CheckForNull
+	private static String readName(DirContext ctx, LdapName dn, String namingAttribute) throws NamingException {
+		try {
+			Attributes attrs = ctx.getAttributes(dn, new String[] {namingAttribute});
+			Attribute attr = attrs.get(namingAttribute);
+			Object value = attr != null ? attr.get() : null;
+			return value != null ? value.toString() : null;
+		} catch (NameNotFoundException e) {
+			return null;
+		}
+	}
+	
+	
+	/** Makes the DN relative to the base DN of the LDAP contexts. */
+	static LdapName relative(String dn, LdapName base) throws InvalidNameException {
+		LdapName name = new LdapName(dn);
+		if ( ! base.isEmpty() && name.startsWith(base)) {
+			return (LdapName)name.getSuffix(base.size());
+		}
+		return name;
+	}
+	
+}
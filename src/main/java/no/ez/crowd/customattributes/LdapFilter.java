@@ -0,0 +1,361 @@
+package no.ez.crowd.customattributes;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Precompiled LDAP filter (RFC 4515), evaluated against the attributes of an already
+ *  fetched entry. Supports a subset of the syntax:
+ *  <ul>
+ *  <li><code>(&amp;...)</code>, <code>(|...)</code> and <code>(!...)</code>,</li>
+ *  <li>equality <code>(objectClass=inetOrgPerson)</code>,</li>
+ *  <li>presence <code>(mail=*)</code>,</li>
+ *  <li>substrings <code>(cn=svc-*)</code>.</li>
+ *  </ul>
+ *  The values are compared ignoring case, like most of the LDAP attributes are.
+ *  Binary values never match. Thread-safe.
+ *
+ *  @see Condition
+ */
+final class LdapFilter {
+	
+	
+	private final String text;
+	
+	private final Node root;
+	
+	
+	private LdapFilter(String text, Node root) {
+		this.text = text;
+		this.root = root;
+	}
+	
+	
+	/** Parses the filter.
+	 *
+	 *  @throws IllegalArgumentException
+	 *  	if the filter is invalid or uses unsupported syntax.
+	 */
+	@Nonnull
+	public static LdapFilter parse(@Nonnull String text) {
+		Parser parser = new Parser(text.trim());
+		Node root = parser.filter();
+		if (parser.pos != parser.text.length()) {
+			throw parser.error("Unexpected characters after the end of the filter");
+		}
+		return new LdapFilter(text, root);
+	}
+	
+	
+	/** Returns <code>true</code>, if the entry matches the filter. */
+	public boolean matches(@Nonnull DirContextAdapter ctx) {
+		return root.matches(ctx);
+	}
+	
+	
+	/** Adds the names of all the attributes used by the filter. */
+	public void collectAttributes(@Nonnull Set<String> result) {
+		root.collectAttributes(result);
+	}
+	
+	
+	/** Returns <code>true</code>, if the character may be used in an attribute description. */
+	static boolean isAttributeChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '-' || c == '.' || c == ';';
+	}
+	
+	
+	@Override
+	public String toString() {
+		return text;
+	}
+	
+	
+	private abstract static class Node {
+	
+		abstract boolean matches(DirContextAdapter ctx);
+	
+		abstract void collectAttributes(Set<String> result);
+	}
+	
+	
+	private static final class And extends Node {
+	
+		private final Node[] children;
+	
+		And(List<Node> children) {
+			this.children = children.toArray(new Node[children.size()]);
+		}
+	
+		@Override
+		boolean matches(DirContextAdapter ctx) {
+			for (Node child : children) {
+				if ( ! child.matches(ctx)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	
+		@Override
+		void collectAttributes(Set<String> result) {
+			for (Node child : children) {
+				child.collectAttributes(result);
+			}
+		}
+	}
+	
+	
+	private static final class Or extends Node {
+	
+		private final Node[] children;
+	
+		Or(List<Node> children) {
+			this.children = children.toArray(new Node[children.size()]);
+		}
+	
+		@Override
+		boolean matches(DirContextAdapter ctx) {
+			for (Node child : children) {
+				if (child.matches(ctx)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	
+		@Override
+		void collectAttributes(Set<String> result) {
+			for (Node child : children) {
+				child.collectAttributes(result);
+			}
+		}
+	}
+	
+	
+	private static final class Not extends Node {
+	
+		private final Node child;
+	
+		Not(Node child) {
+			this.child = child;
+		}
+	
+		@Override
+		boolean matches(DirContextAdapter ctx) {
+			return ! child.matches(ctx);
+		}
+	
+		@Override
+		void collectAttributes(Set<String> result) {
+			child.collectAttributes(result);
+		}
+	}
+	
+	
+	/** Equality, presence and substrings items. The value is split by the wildcards:
+	 *  one part for equality, two and more for substrings and presence. */
+	private static final class Item extends Node {
+	
+		private final String attribute;
+	
+		/** Lower case. */
+		private final String[] parts;
+	
+		private final boolean presence;
+	
+		Item(String attribute, List<String> parts, boolean presence) {
+			this.attribute = attribute;
+			this.parts = parts.toArray(new String[parts.size()]);
+			this.presence = presence;
+		}
+	
+		@Override
+		boolean matches(DirContextAdapter ctx) {
+			Object[] values = ctx.getObjectAttributes(attribute);
+			if (values == null) {
+				return false;
+			}
+			for (Object value : values) {
+				if (value == null || value instanceof byte[]) {
+					continue;
+				}
+				if (presence || matches(value.toString().toLowerCase(Locale.ENGLISH))) {
+					return true;
+				}
+			}
+			return false;
+		}
+	
+		private boolean matches(String value) {
+			if (parts.length == 1) {
+				return value.equals(parts[0]);
+			}
+			// substrings: parts[0]*parts[1]*...*parts[n-1], the first and the last may be empty.
+			int last = parts.length - 1;
+			if ( ! value.startsWith(parts[0]) || ! value.endsWith(parts[last])) {
+				return false;
+			}
+			int pos = parts[0].length();
+			int end = value.length() - parts[last].length();
+			if (end < pos) {
+				return false;
+			}
+			for (int i = 1; i < last; i++) {
+				int found = value.indexOf(parts[i], pos);
+				if (found < 0 || found + parts[i].length() > end) {
+					return false;
+				}
+				pos = found + parts[i].length();
+			}
+			return true;
+		}
+	
+		@Override
+		void collectAttributes(Set<String> result) {
+			result.add(attribute);
+		}
+	}
+	
+	
+	/** Recursive descent parser. */
+	private static final class Parser {
+	
+		final String text;
+	
+		int pos;
+	
+		Parser(String text) {
+			this.text = text;
+		}
+	
+		Node filter() {
+			expect('(');
+			if (pos >= text.length()) {
+				throw error("Unexpected end of the filter");
+			}
+			Node result;
+			char c = text.charAt(pos);
+			if (c == '&') {
+				pos++;
+				result = new And(list());
+			} else if (c == '|') {
+				pos++;
+				result = new Or(list());
+			} else if (c == '!') {
+				pos++;
+				result = new Not(filter());
+			} else {
+				result = item();
+			}
+			expect(')');
+			return result;
+		}
+	
+		List<Node> list() {
+			List<Node> result = new ArrayList<Node>();
+			while (pos < text.length() && text.charAt(pos) == '(') {
+				result.add(filter());
+			}
+			if (result.isEmpty()) {
+				throw error("Empty filter list");
+			}
+			return result;
+		}
+	
+		Node item() {
+			int start = pos;
+			while (pos < text.length() && isAttributeChar(text.charAt(pos))) {
+				pos++;
+			}
+			String attribute = text.substring(start, pos);
+			if (attribute.length() == 0) {
+				throw error("Attribute name expected");
+			}
+			if (pos >= text.length()) {
+				throw error("Unexpected end of the filter");
+			}
+			char c = text.charAt(pos);
+			if (c == '>' || c == '<' || c == '~' || c == ':') {
+				throw error("Only equality, presence and substrings filters are supported");
+			}
+			expect('=');
+	
+			List<String> parts = new ArrayList<String>();
+			StringBuilder part = new StringBuilder();
+			while (pos < text.length() && text.charAt(pos) != ')') {
+				c = text.charAt(pos++);
+				if (c == '*') {
+					parts.add(part.toString().toLowerCase(Locale.ENGLISH));
+					part.setLength(0);
+				} else if (c == '\\') {
+					pos--;
+					part.append(escaped());
+				} else if (c == '(') {
+					throw error("Unescaped '('");
+				} else {
+					part.append(c);
+				}
+			}
+			parts.add(part.toString().toLowerCase(Locale.ENGLISH));
+	
+			if (parts.size() == 1 && parts.get(0).length() == 0) {
+				throw error("Empty value");
+			}
+			boolean presence = parts.size() == 2 && parts.get(0).length() == 0 && parts.get(1).length() == 0;
+			return new Item(attribute, parts, presence);
+		}
+	
+		/** RFC 4515 escapes: backslash and two hex digits each. The following escapes are
+		 *  the bytes of one UTF-8 string, like <code>\c3\a9</code> for <code>&#233;</code>. */
+		String escaped() {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			int start = pos;
+			while (pos < text.length() && text.charAt(pos) == '\\') {
+				pos++;
+				if (pos + 2 > text.length()) {
+					throw error("Invalid escape sequence");
+				}
+				Long value = ValueParser.parseLong(text.subSequence(pos, pos + 2), 16);
+				if (value == null || text.charAt(pos) == '-' || text.charAt(pos) == '+') {
+					throw error("Invalid escape sequence");
+				}
+				pos += 2;
+				bytes.write(value.intValue());
+			}
+			try {
+				return Charset.forName("UTF-8").newDecoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT)
+						.decode(ByteBuffer.wrap(bytes.toByteArray())).toString();
+			} catch (CharacterCodingException e) {
+				pos = start;
+				throw error("Escaped bytes are not UTF-8");
+			}
+		}
+	
+		void expect(char c) {
+			if (pos >= text.length() || text.charAt(pos) != c) {
+				throw error("'" + c + "' expected");
+			}
+			pos++;
+		}
+	
+		IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at position " + pos + " in the LDAP filter [" + text + "].");
+		}
+	}
+	
+}
@@ -0,0 +1,73 @@
+package no.ez.crowd.customattributes;
+
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapName;
+
+import org.springframework.ldap.core.ContextExecutor;
+import org.springframework.ldap.core.LdapTemplate;
+
+
+
+/** {@link RangedAttributeReader.Lookup} reading the ranges using the {@link LdapTemplate}
+ *  of the connector. All the ranges of an attribute are read with a single LDAP context,
+ *  so only one connection is taken from the pool.
+ */
+final class LdapRangeLookup {
+	
+	
+	private LdapRangeLookup() {
+		// static methods only
+	}
+	
+	
+	/** Reads the values of the attribute starting with the specified index, range by range,
+	 *  until the last range. The values of every range are added to the result as they come,
+	 *  the range itself is not kept.
+	 *
+	 *  @param baseDn
+	 *  	base DN of the LDAP contexts created by the template. The DN is made relative to it.
+	 *  @return
+	 *  	number of the ranges read.
+	 */
+	public static int readRanges(
+			@Nonnull LdapTemplate template, @CheckForNull String baseDn,
+			@Nonnull String dn, @Nonnull final String ldapName, final int from, @Nonnull final List<Object> result) throws NamingException {
+	
+		final LdapName name = LdapDnLookup.relative(dn, baseDn != null ? new LdapName(baseDn) : new LdapName(""));
+	
+		try {
+			return (Integer)template.executeReadOnly(new ContextExecutor() {
+				@Override
+				public Object executeWithContext(DirContext ctx) throws NamingException {
+					int ranges = 0;
+					int next = from;
+					while (true) {
+						String[] requested = {ldapName + ";range=" + next + "-*"};
+						Attribute range = RangedAttributeReader.findRange(ctx.getAttributes(name, requested), ldapName);
+						if (range == null) {
+							return ranges;
+						}
+						ranges++;
+						RangedAttributeReader.addAll(range, result);
+						int end = RangedAttributeReader.parseRangeEnd(range.getID(), ldapName);
+						if (end == RangedAttributeReader.LAST || end < next) { // the last one or no progress
+							return ranges;
+						}
+						next = end + 1;
+					}
+				}
+			});
+		} catch (org.springframework.ldap.NamingException e) {
+			NamingException cause = new NamingException(e.getMessage());
+			cause.setRootCause(e);
+			throw cause;
+		}
+	}
+	
+}
@@ -0,0 +1,55 @@
+package no.ez.crowd.customattributes;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Mapper for the {@link AttributeType#LOCAL_DATETIME} attributes. The input formats are compiled once by {@link CustomAttributeMapper}.
+ * 
+ *  @see CustomAttributeMapper#create(CustomAttribute)
+ */
+final class LocalDateTimeAttributeMapper extends CustomAttributeMapper {
+	
+	
+	public LocalDateTimeAttributeMapper(@Nonnull CustomAttribute attribute) {
+		super(attribute);
+	}
+	
+	
+	@Override
+	@Nonnull
+	Set<String> convertAll(@Nonnull DirContextAdapter ctx, @Nullable Object[] attrs) {
+		
+		Set<String> result = new LinkedHashSet<String>();
+		
+		if (attrs == null) {
+			return result;
+		}
+		
+		ConversionCache cache = getConversionCache();
+		
+		for (Object attr : attrs) {
+			if (attr == null) {
+				continue;
+			}
+			String value;
+			if (cache != null && attr instanceof String) {
+				value = readCached(ctx, (String)attr, cache);
+			} else {
+				value = readAsLocalDateTime(ctx, attr);
+			}
+			if (value != null) {
+				result.add(value);
+			}
+		}
+		
+		return complete(ctx, result);
+	}
+	
+}
@@ -0,0 +1,151 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+
+
+/** A bounded map, which evicts the least recently used entries when
+ *  the maximum size is reached. Thread-safe.<br><br>
+ *
+ *  The entries are distributed over several independently locked segments
+ *  by the key hash to reduce the lock contention. Each segment evicts its own
+ *  least recently used entries.
+ */
+class LruCache<K, V> {
+	
+	
+	private final int maxSize;
+	
+	
+	private final List<Map<K, V>> segments;
+	
+	
+	/** Creates a cache with a single segment.
+	 *
+	 *  @param maxSize
+	 *  	maximum number of entries. Must be positive.
+	 */
+	public LruCache(int maxSize) {
+		this(maxSize, 1);
+	}
+	
+	
+	/** @param maxSize
+	 *  	maximum number of entries. Must be positive.
+	 *  @param concurrency
+	 *  	number of segments. Must be positive.
+	 */
+	public LruCache(int maxSize, int concurrency) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Cache size must be positive, but was [" + maxSize + "].");
+		}
+		if (concurrency <= 0) {
+			throw new IllegalArgumentException("Cache concurrency must be positive, but was [" + concurrency + "].");
+		}
+	
+		concurrency = Math.min(concurrency, maxSize);
+	
+		this.maxSize = maxSize;
+		this.segments = new ArrayList<Map<K, V>>(concurrency);
+	
+		for (int i = 0; i < concurrency; i++) {
+			int segmentSize = maxSize / concurrency + (i < maxSize % concurrency ? 1 : 0);
+			segments.add(new AccessOrderMap<K, V>(segmentSize));
+		}
+	}
+	
+	
+	/** @return
+	 *  	<code>null</code>, if not found.
+	 */
+	@CheckForNull
+	public V get(@Nonnull K key) {
+		Map<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			return segment.get(key);
+		}
+	}
+	
+	
+	/** Unlike {@link #get(Object)}, does not make the entry recently used. */
+	public boolean containsKey(@Nonnull K key) {
+		Map<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			return segment.containsKey(key);
+		}
+	}
+	
+	
+	public void put(@Nonnull K key, @Nonnull V value) {
+		Map<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.put(key, value);
+		}
+	}
+	
+	
+	public int size() {
+		int result = 0;
+		for (Map<K, V> segment : segments) {
+			synchronized (segment) {
+				result += segment.size();
+			}
+		}
+		return result;
+	}
+	
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	
+	public void clear() {
+		for (Map<K, V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+	
+	
+	private Map<K, V> segmentFor(K key) {
+		if (segments.size() == 1) {
+			return segments.get(0);
+		}
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16); // spreading the higher bits, like HashMap does.
+		return segments.get((hash & 0x7fffffff) % segments.size());
+	}
+	
+	
+	@Override
+	public String toString() {
+		return "LruCache{" + size() + "/" + maxSize + "}";
+	}
+	
+	
+	private static class AccessOrderMap<K, V> extends LinkedHashMap<K, V> {
+	
+		private static final long serialVersionUID = 1L;
+	
+		private final int maxSize;
+	
+		AccessOrderMap(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+	
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > maxSize;
+		}
+	}
+	
+}
@@ -0,0 +1,182 @@
+package no.ez.crowd.customattributes;
+
+import java.io.File;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+
+
+/** Runtime services shared by all the mappers of one directory. Created by the connector
+ *  and lives as long as the connector, while the mappers are created for every search.
+ */
+final class MapperContext {
+	
+	
+	private final DnReferenceResolver dnResolver;
+	
+	
+	private final RefreshSchedule refreshSchedule;
+	
+	
+	private final BatchConverter batchConverter = new BatchConverter();
+	
+	
+	/** Set for the directories returning the large attributes in ranges (Active Directory). */
+	@Nullable
+	private final RangedAttributeReader rangeReader;
+	
+	
+	/** Set for the directories computing some attributes for base-object lookups only (Active Directory). */
+	@Nullable
+	private final ConstructedAttributeLoader constructedLoader;
+	
+	
+	/** Used if the {@link EntryCache} specifies no marker. */
+	@Nullable
+	private final String defaultChangeMarker;
+	
+	
+	/** The configuration the {@link #changes} were created for. Compared by identity. */
+	@Nullable
+	private EntryCache changesConfig;
+	
+	
+	@Nullable
+	private ChangeMarkerCache changes;
+	
+	
+	public MapperContext(@Nonnull DnReferenceResolver dnResolver) {
+		this(dnResolver, null);
+	}
+	
+	
+	/** @param defaultChangeMarker
+	 *  	attribute used as change marker, if the configuration specifies none. If <code>null</code>,
+	 *  	the {@link ChangeMarkerCache} is enabled only if the configuration specifies the marker.
+	 */
+	public MapperContext(@Nonnull DnReferenceResolver dnResolver, @Nullable String defaultChangeMarker) {
+		this(dnResolver, defaultChangeMarker, null);
+	}
+	
+	
+	/** @param rangeReader
+	 *  	<code>null</code>, if the directory returns all the values of an attribute at once.
+	 */
+	public MapperContext(@Nonnull DnReferenceResolver dnResolver, @Nullable String defaultChangeMarker, @Nullable RangedAttributeReader rangeReader) {
+		this(dnResolver, defaultChangeMarker, rangeReader, null);
+	}
+	
+	
+	/** @param constructedLoader
+	 *  	<code>null</code> to read the constructed attributes with the search like any other.
+	 */
+	public MapperContext(
+			@Nonnull DnReferenceResolver dnResolver, @Nullable String defaultChangeMarker, 
+			@Nullable RangedAttributeReader rangeReader, @Nullable ConstructedAttributeLoader constructedLoader) {
+		this(dnResolver, defaultChangeMarker, rangeReader, constructedLoader, null);
+	}
+	
+	
+	/** @param refreshLookup
+	 *  	reads the slow-changing attributes of the entries not remembered by the {@link RefreshSchedule}.
+	 *  	<code>null</code> to leave them empty until the next refresh.
+	 */
+	public MapperContext(
+			@Nonnull DnReferenceResolver dnResolver, @Nullable String defaultChangeMarker, 
+			@Nullable RangedAttributeReader rangeReader, @Nullable ConstructedAttributeLoader constructedLoader,
+			@Nullable RefreshSchedule.Lookup refreshLookup) {
+		this.refreshSchedule = new RefreshSchedule(refreshLookup, RefreshSchedule.DEFAULT_MAX_BYTES);
+		this.dnResolver = dnResolver;
+		this.defaultChangeMarker = defaultChangeMarker;
+		this.rangeReader = rangeReader;
+		this.constructedLoader = constructedLoader;
+	}
+	
+	
+	@Nonnull
+	public DnReferenceResolver getDnResolver() {
+		return dnResolver;
+	}
+	
+	
+	/** @return
+	 *  	<code>null</code>, if the directory returns all the values of an attribute at once.
+	 */
+	@CheckForNull
+	public RangedAttributeReader getRangeReader() {
+		return rangeReader;
+	}
+	
+	
+	/** @return
+	 *  	<code>null</code> to read the constructed attributes with the search like any other.
+	 */
+	@CheckForNull
+	public ConstructedAttributeLoader getConstructedLoader() {
+		return constructedLoader;
+	}
+	
+	
+	@Nonnull
+	public RefreshSchedule getRefreshSchedule() {
+		return refreshSchedule;
+	}
+	
+	
+	/** Used by the {@link BatchLdapTemplate} of the connector. */
+	@Nonnull
+	public BatchConverter getBatchConverter() {
+		return batchConverter;
+	}
+	
+	
+	/** Creates a new {@link ChangeMarkerCache}, if the configuration has been changed (reloaded), 
+	 *  so no values converted with the old configuration are returned. 
+	 * 
+	 *  @param config
+	 *  	<code>null</code> to disable the cache.
+	 *  @param storeDirectory
+	 *  	directory of the {@link EntryStore}, if the cache is persistent. 
+	 *  	<code>null</code> to keep the cache in memory only.
+	 */
+	public synchronized void updateChangeMarkerCache(@Nullable EntryCache config, @Nullable File storeDirectory) {
+		if (config == changesConfig) {
+			return;
+		}
+		changesConfig = config;
+		if (changes != null) {
+			changes.close();
+		}
+		changes = null;
+		if (config != null) {
+			String marker = config.getMarker() != null ? config.getMarker() : defaultChangeMarker;
+			if (marker != null) {
+				EntryStore store = null;
+				if (config.isPersistent() && storeDirectory != null && config.getFingerprint() != null) {
+					store = new EntryStore(storeDirectory, config.getFingerprint());
+				}
+				changes = new ChangeMarkerCache(marker, config.getSize(), store);
+			}
+		}
+	}
+	
+	
+	/** @return
+	 *  	<code>null</code>, if the cache is disabled.
+	 */
+	@CheckForNull
+	public synchronized ChangeMarkerCache getChangeMarkerCache() {
+		return changes;
+	}
+	
+	
+	@Override
+	public synchronized String toString() {
+		return 
+			"MapperContext{" + dnResolver + ", " + refreshSchedule + ", " + batchConverter + 
+			(rangeReader != null ? ", " + rangeReader : "") + (constructedLoader != null ? ", " + constructedLoader : "") + (changes != null ? ", " + changes : "") + "}";
+	}
+	
+}
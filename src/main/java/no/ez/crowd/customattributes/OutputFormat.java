@@ -0,0 +1,25 @@
+package no.ez.crowd.customattributes;
+
+
+
+/** Output format of the {@link AttributeType#DATETIME} and {@link AttributeType#LOCAL_DATETIME}
+ *  attributes.<br><br>
+ * 
+ *  The numeric formats skip the datetime formatting completely. Local datetime values
+ *  are interpreted as UTC for the numeric formats.
+ */
+public enum OutputFormat {
+	
+	/** ISO 8601 datetime with milliseconds, like <code>2012-07-23T08:56:03.000Z</code>. Default. */
+	ISO, 
+	
+	/** Milliseconds since 1970-01-01T00:00:00Z. */
+	EPOCH_MILLIS, 
+	
+	/** Seconds since 1970-01-01T00:00:00Z. */
+	EPOCH_SECONDS, 
+	
+	/** Joda time pattern defined in <code>output-pattern</code>. */
+	PATTERN;
+
+}
@@ -0,0 +1,47 @@
+package no.ez.crowd.customattributes;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+
+
+/** A parameter tag. Passed to the {@link AttributeConverterProvider} of
+ *  the {@link AttributeType#CUSTOM} attributes.
+ */
+@XmlType(name="parameter")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class Parameter {
+	
+	
+	@XmlAttribute(name="name", required=true)
+	private String name;
+	
+	
+	@XmlAttribute(name="value", required=true)
+	private String value;
+	
+	
+	/** For JAX. Do not delete! */
+	protected Parameter() {
+		// nothing
+	}
+	
+
+	public Parameter(String name, String value) {
+		this.name = name;
+		this.value = value;
+	}
+
+
+	public String getName() {
+		return name;
+	}
+
+
+	public String getValue() {
+		return value;
+	}
+
+}
@@ -0,0 +1,194 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Completes the multi-valued attributes, which Active Directory returns in ranges.<br><br>
+ *
+ *  If an attribute has more values than <code>MaxValRange</code> (1500 by default), AD
+ *  returns only the first range of them under a tagged name like <code>member;range=0-1499</code>,
+ *  and the attribute itself is missing. The reader collects the first range from the entry and
+ *  reads the following ranges with the {@link Lookup}, until AD marks the last one with
+ *  <code>*</code> (<code>member;range=1500-*</code>). The complete values are put into the
+ *  entry under the plain name, so the other mappers and the conditions see them too and
+ *  the ranges are read once per entry. Shared by all the mappers of a directory. Thread-safe.
+ */
+final class RangedAttributeReader {
+	
+	private final Logger logger = LoggerFactory.getLogger(RangedAttributeReader.class);
+	
+	
+	/** Reads the following ranges of an attribute from LDAP. */
+	public static interface Lookup {
+	
+		/** Reads the values of the attribute starting with the specified index and adds them
+		 *  to the result, range by range.
+		 *
+		 *  @return
+		 *  	number of the ranges read.
+		 */
+		int readRanges(@Nonnull String dn, @Nonnull String ldapName, int from, @Nonnull List<Object> result) throws NamingException;
+	}
+	
+	
+	private static final String RANGE_OPTION = ";range=";
+	
+	
+	/** Returned by {@link #parseRangeEnd(String, String)} for the last range. */
+	static final int LAST = -1;
+	
+	
+	/** Returned by {@link #parseRangeEnd(String, String)} for other attributes. */
+	static final int NOT_RANGED = -2;
+	
+	
+	private final Lookup lookup;
+	
+	
+	private final AtomicLong attributes = new AtomicLong();
+	
+	private final AtomicLong ranges = new AtomicLong();
+	
+	private final AtomicLong failures = new AtomicLong();
+	
+	
+	public RangedAttributeReader(@Nonnull Lookup lookup) {
+		this.lookup = lookup;
+	}
+	
+	
+	/** Returns all the values of the attribute, if the entry contains its first range only.
+	 *
+	 *  @return
+	 *  	<code>null</code>, if the entry has no ranged values of the attribute. The values
+	 *  	read so far, if the following ranges cannot be read.
+	 */
+	@CheckForNull
+	public Object[] read(@Nonnull DirContextAdapter ctx, @Nonnull String ldapName) {
+	
+		Attribute first = findRange(ctx.getAttributes(), ldapName);
+		if (first == null) {
+			return null;
+		}
+	
+		List<Object> result = new ArrayList<Object>(first.size() * 2);
+		int end;
+		try {
+			addAll(first, result);
+			end = parseRangeEnd(first.getID(), ldapName);
+		} catch (NamingException e) {
+			logger.warn("Error reading ranged attribute [" + first.getID() + "] of [" + ctx.getDn() + "]. " + e.getMessage());
+			return null;
+		}
+	
+		attributes.incrementAndGet();
+		ranges.incrementAndGet();
+	
+		if (end != LAST) {
+			try {
+				ranges.addAndGet(lookup.readRanges(ctx.getNameInNamespace(), ldapName, end + 1, result));
+			} catch (NamingException e) {
+				failures.incrementAndGet();
+				logger.warn(
+						"Error reading the values of [" + ldapName + "] of [" + ctx.getDn() + "] after the index " + end + ". " +
+						"Using the " + result.size() + " values read so far. " + e.getMessage());
+			}
+		}
+	
+		Object[] values = result.toArray();
+		ctx.setAttributeValues(ldapName, values);
+		return values;
+	}
+	
+	
+	/** Finds the range of the attribute among the attributes of an entry or a range request.
+	 *
+	 *  @return
+	 *  	<code>null</code>, if not found.
+	 */
+	@CheckForNull
+	static Attribute findRange(@Nullable Attributes attrs, @Nonnull String ldapName) {
+		if (attrs == null) {
+			return null;
+		}
+		try {
+			NamingEnumeration<String> ids = attrs.getIDs();
+			try {
+				while (ids.hasMore()) {
+					String id = ids.next();
+					if (parseRangeEnd(id, ldapName) != NOT_RANGED) {
+						return attrs.get(id);
+					}
+				}
+			} finally {
+				ids.close();
+			}
+		} catch (NamingException e) {
+			// not possible for the attributes in memory.
+		}
+		return null;
+	}
+	
+	
+	/** Adds all the values of the attribute. */
+	static void addAll(@Nonnull Attribute attr, @Nonnull List<Object> result) throws NamingException {
+		NamingEnumeration<?> values = attr.getAll();
+		try {
+			while (values.hasMore()) {
+				result.add(values.next());
+			}
+		} finally {
+			values.close();
+		}
+	}
+	
+	
+	/** Parses the end of the range from the attribute ID like <code>member;range=0-1499</code>.
+	 *
+	 *  @return
+	 *  	the index of the last value, {@link #LAST} for <code>*</code> or
+	 *  	{@link #NOT_RANGED}, if the ID is not a range of the attribute.
+	 */
+	static int parseRangeEnd(@Nonnull String id, @Nonnull String ldapName) {
+		int options = ldapName.length();
+		if (id.length() <= options + RANGE_OPTION.length()
+				|| ! id.regionMatches(true, 0, ldapName, 0, options)
+				|| ! id.regionMatches(true, options, RANGE_OPTION, 0, RANGE_OPTION.length())) {
+			return NOT_RANGED;
+		}
+		String range = id.substring(options + RANGE_OPTION.length()).toLowerCase(Locale.ENGLISH);
+		int dash = range.indexOf('-');
+		if (dash <= 0 || ValueParser.parseLong(range.substring(0, dash)) == null) {
+			return NOT_RANGED;
+		}
+		String end = range.substring(dash + 1);
+		if (end.equals("*")) {
+			return LAST;
+		}
+		Long value = ValueParser.parseLong(end);
+		return value != null && value.longValue() >= 0 && value.longValue() < Integer.MAX_VALUE ? value.intValue() : NOT_RANGED;
+	}
+	
+	
+	@Override
+	public String toString() {
+		return "RangedAttributeReader{attributes=" + attributes + ", ranges=" + ranges + ", failures=" + failures + "}";
+	}
+	
+}
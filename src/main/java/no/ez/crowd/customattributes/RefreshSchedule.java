@@ -0,0 +1,286 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Decides, when the slow-changing attributes (see {@link CustomAttribute#getRefreshMillis()})
+ *  must be read from LDAP again, and remembers their values in between. Shared by all
+ *  the mappers of a directory. Thread-safe.<br><br>
+ *  
+ *  The decision is made when a mapper is created (once per search): a refreshing mapper 
+ *  requests the attribute from LDAP and remembers the converted values by DN with the time, the 
+ *  other mappers omit the attribute from the search and return the remembered values. If an 
+ *  entry has no remembered values (a new entry or evicted from the memory) or they are older than
+ *  the refresh period (the entry was not found by the refreshing search), the attribute is read 
+ *  for this entry with the {@link Lookup}. Without a lookup, or if it fails, the old values are 
+ *  returned or the attribute is empty for the entry, and the next mapper created for the attribute
+ *  refreshes it.<br><br>
+ *  
+ *  The remembered values are limited by their estimated size in memory, not by their number,
+ *  as some of them (like <code>jpegPhoto</code>) are large.<br><br>
+ *  
+ *  The refresh times are kept per {@link CustomAttribute} instance, so a reloaded 
+ *  configuration always refreshes all the attributes first.
+ */
+final class RefreshSchedule {
+	
+	private final Logger logger = LoggerFactory.getLogger(RefreshSchedule.class);
+	
+	
+	/** Reads the attributes of an entry from LDAP. */
+	public static interface Lookup {
+	
+		/** Reads the specified attributes of the entry with a base-object lookup.
+		 *
+		 *  @return
+		 *  	<code>null</code>, if the entry is not found.
+		 */
+		@CheckForNull
+		Attributes lookup(@Nonnull String dn, @Nonnull String[] ldapNames) throws NamingException;
+	}
+	
+	
+	/** Maximum estimated size of the remembered values in bytes. */
+	static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+	
+	
+	/** Estimated size of a map entry and a set, without the strings. */
+	private static final int ENTRY_OVERHEAD = 128;
+	
+	
+	/** Estimated size of a string object and a set entry, without the characters. */
+	private static final int VALUE_OVERHEAD = 72;
+	
+	
+	/** Last refresh time by attribute instance. */
+	private final Map<CustomAttribute, Long> lastRefresh = new IdentityHashMap<CustomAttribute, Long>();
+	
+	
+	/** Converted values by DN (lower case) and key, least recently used first. Guarded by itself. */
+	private final LinkedHashMap<String, Remembered> values = new LinkedHashMap<String, Remembered>(16, 0.75f, true);
+	
+	
+	@Nullable
+	private final Lookup lookup;
+	
+	
+	private final long maxBytes;
+	
+	
+	/** Estimated size of the {@link #values}. Guarded by them. */
+	private long bytes;
+	
+	
+	private final AtomicLong recalled = new AtomicLong();
+	
+	private final AtomicLong forgotten = new AtomicLong();
+	
+	private final AtomicLong expired = new AtomicLong();
+	
+	private final AtomicLong lookups = new AtomicLong();
+	
+	
+	public RefreshSchedule() {
+		this(null, DEFAULT_MAX_BYTES);
+	}
+	
+	
+	/** @param lookup
+	 *  	<code>null</code> to leave the attribute empty, if nothing is remembered for the entry.
+	 *  @param maxBytes
+	 *  	maximum estimated size of the remembered values in bytes.
+	 */
+	public RefreshSchedule(@Nullable Lookup lookup, long maxBytes) {
+		this.lookup = lookup;
+		this.maxBytes = maxBytes;
+	}
+	
+	
+	/** Returns <code>true</code>, if the attribute must be read from LDAP by a mapper created now. 
+	 *  Starts the new refresh period in this case. */
+	public synchronized boolean startRefresh(@Nonnull CustomAttribute attr) {
+		long now = System.currentTimeMillis();
+		Long last = lastRefresh.get(attr);
+		if (last == null || now - last.longValue() >= attr.getRefreshMillis()) {
+			lastRefresh.put(attr, now);
+			return true;
+		}
+		return false;
+	}
+	
+	
+	/** Makes the next mapper created for the attribute refresh it. */
+	public synchronized void requestRefresh(@Nonnull CustomAttribute attr) {
+		lastRefresh.remove(attr);
+	}
+	
+	
+	/** Remembers the values converted by a refreshing mapper. Forgets the least recently used
+	 *  values, if the size limit is exceeded. */
+	public void remember(@Nonnull DirContextAdapter ctx, @Nonnull String key, @Nonnull Set<String> converted) {
+		String valuesKey = key(ctx, key);
+		Remembered remembered = new Remembered(Collections.unmodifiableSet(converted), System.currentTimeMillis());
+		synchronized (values) {
+			Remembered old = values.put(valuesKey, remembered);
+			if (old != null) {
+				bytes -= sizeOf(valuesKey, old.values);
+			}
+			bytes += sizeOf(valuesKey, remembered.values);
+			Iterator<Map.Entry<String, Remembered>> it = values.entrySet().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				Map.Entry<String, Remembered> eldest = it.next();
+				bytes -= sizeOf(eldest.getKey(), eldest.getValue().values);
+				it.remove();
+			}
+		}
+	}
+	
+	
+	/** Returns the values remembered for the entry, unless they are too old.
+	 * 
+	 *  @param maxAgeMillis
+	 *  	maximum age of the values, usually {@link CustomAttribute#getRefreshMillis()}.
+	 *  @return
+	 *  	<code>null</code>, if nothing is remembered or the values are too old. 
+	 */
+	@CheckForNull
+	public Set<String> recall(@Nonnull DirContextAdapter ctx, @Nonnull String key, long maxAgeMillis) {
+		Remembered result;
+		synchronized (values) {
+			result = values.get(key(ctx, key));
+		}
+		if (result == null) {
+			forgotten.incrementAndGet();
+			return null;
+		}
+		if (System.currentTimeMillis() - result.time >= maxAgeMillis) {
+			expired.incrementAndGet();
+			return null;
+		}
+		recalled.incrementAndGet();
+		return result.values;
+	}
+	
+	
+	/** Returns the values remembered for the entry regardless of their age. Used, if they cannot be read again.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if nothing is remembered. 
+	 */
+	@CheckForNull
+	public Set<String> recallExpired(@Nonnull DirContextAdapter ctx, @Nonnull String key) {
+		synchronized (values) {
+			Remembered result = values.get(key(ctx, key));
+			return result != null ? result.values : null;
+		}
+	}
+	
+	
+	/** Reads the attributes, which the search omitted, for the entry and puts them into it.
+	 * 
+	 *  @return
+	 *  	<code>false</code>, if there is no {@link Lookup} or it has failed.
+	 */
+	public boolean load(@Nonnull DirContextAdapter ctx, @Nonnull Set<String> ldapNames) {
+		if (lookup == null) {
+			return false;
+		}
+		List<String> missing = new ArrayList<String>(ldapNames.size());
+		for (String ldapName : ldapNames) {
+			if (ctx.getObjectAttributes(ldapName) == null) {
+				missing.add(ldapName);
+			}
+		}
+		if (missing.isEmpty()) {
+			return true;
+		}
+		
+		lookups.incrementAndGet();
+		try {
+			Attributes found = lookup.lookup(ctx.getNameInNamespace(), missing.toArray(new String[missing.size()]));
+			if (found != null) {
+				NamingEnumeration<? extends Attribute> it = found.getAll();
+				try {
+					while (it.hasMore()) {
+						Attribute attr = it.next();
+						List<Object> attrValues = new ArrayList<Object>(attr.size());
+						RangedAttributeReader.addAll(attr, attrValues);
+						ctx.setAttributeValues(attr.getID(), attrValues.toArray());
+					}
+				} finally {
+					it.close();
+				}
+			}
+			return true;
+		} catch (NamingException e) {
+			logger.warn("Error reading the attributes " + missing + " of [" + ctx.getDn() + "]. " + e.getMessage());
+			return false;
+		}
+	}
+	
+	
+	private static String key(DirContextAdapter ctx, String key) {
+		return ctx.getNameInNamespace().toLowerCase(Locale.ENGLISH) + '\n' + key;
+	}
+	
+	
+	/** Converted values of an entry and the time they were read. */
+	private static final class Remembered {
+	
+		final Set<String> values;
+	
+		final long time;
+	
+		Remembered(Set<String> values, long time) {
+			this.values = values;
+			this.time = time;
+		}
+	}
+	
+	
+	/** Estimated size of the remembered values in memory. */
+	static long sizeOf(@Nonnull String key, @Nonnull Set<String> values) {
+		long result = ENTRY_OVERHEAD + 2L * key.length();
+		for (String value : values) {
+			result += VALUE_OVERHEAD + 2L * value.length();
+		}
+		return result;
+	}
+	
+	
+	@Override
+	public String toString() {
+		int size;
+		long used;
+		synchronized (values) {
+			size = values.size();
+			used = bytes;
+		}
+		return 
+			"RefreshSchedule{values=" + size + ", bytes=" + used + "/" + maxBytes + 
+			", recalled=" + recalled + ", forgotten=" + forgotten + ", expired=" + expired + ", lookups=" + lookups + "}";
+	}
+	
+}
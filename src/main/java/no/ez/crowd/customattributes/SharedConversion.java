@@ -0,0 +1,98 @@
+package no.ez.crowd.customattributes;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Conversion shared by several mappers, which read the same LDAP attribute and
+ *  convert it the same way, but under different keys (like a user and a group
+ *  attribute mapped from <code>displayName</code>). The first mapper asking for
+ *  an entry converts it, the others get the remembered result.<br><br>
+ *
+ *  Only the last entry of every thread is remembered, because all the mappers of
+ *  an entry are called by one thread before it goes to the next one (see
+ *  {@link BatchConverter}). Thread-safe.
+ *
+ *  @see CustomAttributeMapper#createList(java.util.Collection)
+ */
+final class SharedConversion {
+	
+	
+	/** Mapper used to convert the values. */
+	private final CustomAttributeMapper converter;
+	
+	
+	private final ThreadLocal<Result> last = new ThreadLocal<Result>();
+	
+	
+	public SharedConversion(@Nonnull CustomAttributeMapper converter) {
+		this.converter = converter;
+	}
+	
+	
+	@Nonnull
+	public Set<String> getValues(@Nonnull DirContextAdapter ctx) {
+		Result result = last.get();
+		if (result == null || result.ctx != ctx) {
+			result = new Result(ctx, Collections.unmodifiableSet(converter.read(ctx)));
+			last.set(result);
+		}
+		return result.values;
+	}
+	
+	
+	/** Returns a string, which is equal for the attributes with the same LDAP name and
+	 *  conversion settings. The key and the runtime settings (intern pool, cache) are ignored.
+	 */
+	@Nonnull
+	public static String signature(@Nonnull CustomAttribute attr) {
+		StringBuilder result = new StringBuilder();
+		result.append(attr.getType()).append('|');
+		for (String ldapName : attr.getLdapNames()) {
+			result.append('|').append(ldapName.toLowerCase(Locale.ENGLISH));
+		}
+		result.append("|condition=").append(attr.getConditionFilter());
+		for (Format format : attr.getFormats()) {
+			result.append("|format=").append(format.getPattern()).append('@').append(format.getTimezone());
+		}
+		for (Flag flag : attr.getFlags()) {
+			result.append("|flag=").append(flag.getName()).append('=').append(flag.getMask());
+		}
+		result.append("|certificate=").append(attr.getCertificateField());
+		result.append("|output=").append(attr.getOutputFormat()).append('@').append(attr.getOutputPattern());
+		result.append("|template=").append(attr.getTemplate());
+		result.append("|naming=").append(attr.getNamingAttribute());
+		result.append("|converter=").append(attr.getConverterName());
+		for (Transform transform : attr.getTransforms()) {
+			result.append("|transform=").append(transform).append('@').append(transform.getMaxLength()).append('@').append(transform.getMaxSteps());
+		}
+		for (Map.Entry<String, String> parameter : attr.getParameters().entrySet()) {
+			result.append("|parameter=").append(parameter.getKey()).append('=').append(parameter.getValue());
+		}
+		for (CustomAttribute field : attr.getFields()) {
+			result.append("|field=").append(field.getKey()).append('{').append(signature(field)).append('}');
+		}
+		return result.toString();
+	}
+	
+	
+	private static final class Result {
+		
+		final DirContextAdapter ctx;
+		
+		final Set<String> values;
+		
+		Result(DirContextAdapter ctx, Set<String> values) {
+			this.ctx = ctx;
+			this.values = values;
+		}
+	}
+	
+}
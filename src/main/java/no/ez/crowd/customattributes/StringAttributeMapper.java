@@ -0,0 +1,44 @@
+package no.ez.crowd.customattributes;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Mapper for the {@link AttributeType#STRING} attributes. Takes the values as they are.
+ * 
+ *  @see CustomAttributeMapper#create(CustomAttribute)
+ */
+final class StringAttributeMapper extends CustomAttributeMapper {
+	
+	
+	public StringAttributeMapper(@Nonnull CustomAttribute attribute) {
+		super(attribute);
+	}
+	
+	
+	@Override
+	@Nonnull
+	Set<String> convertAll(@Nonnull DirContextAdapter ctx, @Nullable Object[] attrs) {
+		
+		Set<String> result = new LinkedHashSet<String>();
+		
+		if (attrs == null) {
+			return result;
+		}
+		
+		for (Object attr : attrs) {
+			if (attr != null) {
+				result.add(attr.toString());
+			}
+		}
+		
+		return complete(ctx, result);
+	}
+	
+}
@@ -0,0 +1,100 @@
+package no.ez.crowd.customattributes;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlType;
+
+
+
+/** A transform tag. Regular expression applied to the converted values of the attribute.
+ *  If a <code>replacement</code> is specified, all the matches are replaced. Otherwise
+ *  the <code>group</code> of the first match is extracted (the whole match by default).
+ *  Values without a match are kept unchanged, empty results are skipped.
+ * 
+ *  @see ValueTransformer
+ */
+@XmlType(name="transform")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class Transform {
+	
+	
+	@XmlAttribute(name="pattern", required=true)
+	private String pattern;
+	
+	
+	@XmlAttribute(name="replacement", required=false)
+	@CheckForNull
+	private String replacement;
+	
+	
+	@XmlAttribute(name="group", required=false)
+	private int group = 0;
+	
+	
+	/** Longer values are not transformed, but skipped. */
+	@XmlAttribute(name="max-length", required=false)
+	private int maxLength = 4096;
+	
+	
+	/** Limits the backtracking of the regular expression. See {@link ValueTransformer}. */
+	@XmlAttribute(name="max-steps", required=false)
+	private int maxSteps = 100000;
+	
+	
+	/** For JAX. Do not delete! */
+	protected Transform() {
+		// nothing
+	}
+	
+
+	public Transform(String pattern, @CheckForNull String replacement, int group) {
+		this.pattern = pattern;
+		this.replacement = replacement;
+		this.group = group;
+	}
+
+
+	public String getPattern() {
+		return pattern;
+	}
+
+
+	@CheckForNull
+	public String getReplacement() {
+		return replacement;
+	}
+
+
+	public int getGroup() {
+		return group;
+	}
+
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+
+	public int getMaxSteps() {
+		return maxSteps;
+	}
+	
+	
+	/** @throws IllegalArgumentException
+	 *  	if the pattern is invalid or the group doesn't exist.
+	 */
+	@Nonnull
+	public ValueTransformer compile() {
+		return new ValueTransformer(this);
+	}
+	
+	
+	@Override
+	public String toString() {
+		return pattern + (replacement != null ? "->" + replacement : "#" + group);
+	}
+
+}
@@ -0,0 +1,134 @@
+package no.ez.crowd.customattributes;
+
+import javax.annotation.CheckForNull;
+
+
+
+/** Parsers for numeric and boolean attribute values.<br><br>
+ *
+ *  Unlike {@link Long#parseLong(String)} the methods never throw an exception,
+ *  but return <code>null</code> for the values which cannot be parsed. LDAP
+ *  directories may contain a lot of junk in the numeric attributes and creating
+ *  an exception with a stack trace for every such a value is expensive.
+ */
+final class ValueParser {
+
+
+	private ValueParser() {
+		// static methods only
+	}
+
+
+	/** Parses a signed decimal number (an optional leading '+' or '-' followed by digits).
+	 *
+	 *  @return
+	 *  	<code>null</code>, if the value is empty, contains non-digit characters or
+	 *  	doesn't fit into <code>long</code>.
+	 */
+	@CheckForNull
+	public static Long parseLong(@CheckForNull CharSequence value) {
+		return parseLong(value, 10);
+	}
+
+
+	/** Like {@link #parseLong(CharSequence)}, but uses the specified radix
+	 *  (from 2 to 36).
+	 */
+	@CheckForNull
+	public static Long parseLong(@CheckForNull CharSequence value, int radix) {
+		if (value == null) {
+			return null;
+		}
+
+		int length = value.length();
+		if (length == 0) {
+			return null;
+		}
+
+		int i = 0;
+		boolean negative = false;
+
+		char first = value.charAt(0);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			i++;
+			if (i == length) {
+				return null; // sign only
+			}
+		}
+
+		// accumulating negatively, because |Long.MIN_VALUE| > Long.MAX_VALUE.
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multmin = limit / radix;
+		long result = 0;
+
+		for (; i < length; i++) {
+			int digit = Character.digit(value.charAt(i), radix);
+			if (digit < 0 || result < multmin) {
+				return null;
+			}
+			result *= radix;
+			if (result < limit + digit) {
+				return null;
+			}
+			result -= digit;
+		}
+
+		return negative ? result : -result;
+	}
+
+
+	/** Parses a number written either as decimal or hexadecimal with
+	 *  the prefix <code>0x</code> (like <code>0x0002</code>).
+	 *
+	 *  @return
+	 *  	<code>null</code>, if the value cannot be parsed.
+	 */
+	@CheckForNull
+	public static Long parseDecimalOrHex(@CheckForNull CharSequence value) {
+		if (value == null) {
+			return null;
+		}
+		if (value.length() > 2 && value.charAt(0) == '0' && (value.charAt(1) == 'x' || value.charAt(1) == 'X')) {
+			return parseLong(value.subSequence(2, value.length()), 16);
+		}
+		return parseLong(value);
+	}
+
+
+	/** Parses a boolean value. Accepts <code>TRUE</code> and <code>FALSE</code>
+	 *  as defined for the LDAP Boolean syntax (ignoring case) as well as
+	 *  <code>1</code> and <code>0</code>.
+	 *
+	 *  @return
+	 *  	<code>null</code>, if the value is not a boolean.
+	 */
+	@CheckForNull
+	public static Boolean parseBoolean(@CheckForNull CharSequence value) {
+		if (value == null) {
+			return null;
+		}
+		if (equalsIgnoreCase(value, "TRUE") || equalsIgnoreCase(value, "1")) {
+			return Boolean.TRUE;
+		}
+		if (equalsIgnoreCase(value, "FALSE") || equalsIgnoreCase(value, "0")) {
+			return Boolean.FALSE;
+		}
+		return null;
+	}
+
+
+	private static boolean equalsIgnoreCase(CharSequence value, String expected) {
+		int length = value.length();
+		if (length != expected.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (Character.toUpperCase(value.charAt(i)) != expected.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
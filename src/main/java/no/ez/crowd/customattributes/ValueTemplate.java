@@ -0,0 +1,175 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Precompiled template of a {@link AttributeType#COMPUTED} attribute, like 
+ *  <code>{givenName} {sn} &lt;{mail}&gt;</code>. Parsed once into a fixed sequence 
+ *  of literals and attribute references. Use <code>{{</code> and <code>}}</code> for 
+ *  literal braces.<br><br>
+ *  
+ *  Every reference is replaced by the first value of the attribute of the already
+ *  fetched entry, or by an empty string, if the entry has no such attribute. 
+ *  Binary values are not supported. Thread-safe.
+ *  
+ *  @see CustomAttribute#getValueTemplate()
+ */
+final class ValueTemplate {
+	
+	
+	private final String text;
+	
+	/** One more literal than references: literal, reference, literal ... literal. */
+	private final String[] literals;
+	
+	private final String[] references;
+	
+	/** Total length of the literals. */
+	private final int literalLength;
+	
+	
+	private ValueTemplate(String text, List<String> literals, List<String> references) {
+		this.text = text;
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.references = references.toArray(new String[references.size()]);
+		int length = 0;
+		for (String literal : literals) {
+			length += literal.length();
+		}
+		this.literalLength = length;
+	}
+	
+	
+	/** Parses the template.
+	 * 
+	 *  @throws IllegalArgumentException
+	 *  	if the template is invalid or references no attributes.
+	 */
+	@Nonnull
+	public static ValueTemplate parse(@Nonnull String text) {
+		
+		List<String> literals = new ArrayList<String>();
+		List<String> references = new ArrayList<String>();
+		StringBuilder literal = new StringBuilder();
+		
+		int pos = 0;
+		while (pos < text.length()) {
+			char c = text.charAt(pos);
+			if (c == '{' && pos + 1 < text.length() && text.charAt(pos + 1) == '{') {
+				literal.append('{');
+				pos += 2;
+			} else if (c == '}' && pos + 1 < text.length() && text.charAt(pos + 1) == '}') {
+				literal.append('}');
+				pos += 2;
+			} else if (c == '{') {
+				int end = text.indexOf('}', pos);
+				if (end < 0) {
+					throw error("Unclosed '{'", pos, text);
+				}
+				String reference = text.substring(pos + 1, end).trim();
+				if (reference.length() == 0) {
+					throw error("Attribute name expected", pos, text);
+				}
+				for (int i = 0; i < reference.length(); i++) {
+					if ( ! LdapFilter.isAttributeChar(reference.charAt(i))) {
+						throw error("Invalid attribute name [" + reference + "]", pos, text);
+					}
+				}
+				literals.add(literal.toString());
+				literal.setLength(0);
+				references.add(reference);
+				pos = end + 1;
+			} else if (c == '}') {
+				throw error("Unescaped '}'", pos, text);
+			} else {
+				literal.append(c);
+				pos++;
+			}
+		}
+		literals.add(literal.toString());
+		
+		if (references.isEmpty()) {
+			throw new IllegalArgumentException("The template [" + text + "] references no attributes.");
+		}
+		
+		return new ValueTemplate(text, literals, references);
+	}
+	
+	
+	private static IllegalArgumentException error(String message, int pos, String text) {
+		return new IllegalArgumentException(message + " at position " + pos + " in the template [" + text + "].");
+	}
+	
+	
+	/** Evaluates the template for the entry.
+	 * 
+	 *  @return
+	 *  	<code>null</code>, if the entry has none of the referenced attributes.
+	 */
+	@CheckForNull
+	public String evaluate(@Nonnull DirContextAdapter ctx) {
+		
+		String[] values = new String[references.length];
+		int length = literalLength;
+		boolean found = false;
+		
+		for (int i = 0; i < references.length; i++) {
+			String value = firstValue(ctx.getObjectAttributes(references[i]));
+			if (value != null) {
+				values[i] = value;
+				length += value.length();
+				found = true;
+			}
+		}
+		
+		if ( ! found) {
+			return null;
+		}
+		
+		StringBuilder result = new StringBuilder(length);
+		result.append(literals[0]);
+		for (int i = 0; i < references.length; i++) {
+			if (values[i] != null) {
+				result.append(values[i]);
+			}
+			result.append(literals[i + 1]);
+		}
+		return result.toString();
+	}
+	
+	
+	@CheckForNull
+	private static String firstValue(@CheckForNull Object[] values) {
+		if (values != null) {
+			for (Object value : values) {
+				if (value != null && ! (value instanceof byte[])) {
+					return value.toString();
+				}
+			}
+		}
+		return null;
+	}
+	
+	
+	/** Adds the names of all the referenced attributes. */
+	public void collectAttributes(@Nonnull Set<String> result) {
+		for (String reference : references) {
+			result.add(reference);
+		}
+	}
+	
+	
+	@Override
+	public String toString() {
+		return text;
+	}
+	
+}
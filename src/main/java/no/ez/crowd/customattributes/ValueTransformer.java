@@ -0,0 +1,127 @@
+package no.ez.crowd.customattributes;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.annotation.Nonnull;
+
+
+
+/** Compiled {@link Transform}. Thread-safe.<br><br>
+ *
+ *  Some patterns need exponential time for certain inputs (catastrophic backtracking).
+ *  To make sure such a value cannot stall the synchronisation, the input length is limited
+ *  and the matcher reads the value through a {@link CharSequence}, which counts the read
+ *  characters and aborts the matching if there are too many of them.
+ */
+final class ValueTransformer {
+	
+	
+	private final Transform transform;
+	
+	private final Pattern pattern;
+	
+	
+	ValueTransformer(@Nonnull Transform transform) {
+		this.transform = transform;
+		try {
+			this.pattern = Pattern.compile(transform.getPattern());
+		} catch (PatternSyntaxException e) {
+			throw new IllegalArgumentException("Invalid transform pattern [" + transform.getPattern() + "]. " + e.getDescription(), e);
+		}
+		if (transform.getReplacement() == null) {
+			int groups = pattern.matcher("").groupCount();
+			if (transform.getGroup() < 0 || transform.getGroup() > groups) {
+				throw new IllegalArgumentException(
+						"Transform pattern [" + transform.getPattern() + "] has no group " + transform.getGroup() + ".");
+			}
+		}
+	}
+	
+	
+	/** Transforms the value.
+	 *
+	 *  @throws LimitExceededException
+	 *  	if the value is too long or the matching takes too many steps.
+	 */
+	@Nonnull
+	public String apply(@Nonnull String value) {
+	
+		if (value.length() > transform.getMaxLength()) {
+			throw new LimitExceededException(
+					"Value is longer than " + transform.getMaxLength() + " characters for the transform [" + transform + "].");
+		}
+	
+		Matcher matcher = pattern.matcher(new GuardedCharSequence(value, transform.getMaxSteps(), transform));
+	
+		if (transform.getReplacement() != null) {
+			return matcher.replaceAll(transform.getReplacement());
+		}
+	
+		if (matcher.find()) {
+			String result = matcher.group(transform.getGroup());
+			return result != null ? result : "";
+		}
+		return value;
+	}
+	
+	
+	@Override
+	public String toString() {
+		return transform.toString();
+	}
+	
+	
+	/** Thrown if a guard of the transform stops the processing of a value. */
+	static final class LimitExceededException extends RuntimeException {
+	
+		private static final long serialVersionUID = 1L;
+	
+		LimitExceededException(String message) {
+			super(message);
+		}
+	}
+	
+	
+	/** Counts the characters read by the matcher. */
+	private static final class GuardedCharSequence implements CharSequence {
+	
+		private final String value;
+	
+		private final Transform transform;
+	
+		private int steps;
+	
+		GuardedCharSequence(String value, int steps, Transform transform) {
+			this.value = value;
+			this.steps = steps;
+			this.transform = transform;
+		}
+	
+		@Override
+		public char charAt(int index) {
+			if (--steps < 0) {
+				throw new LimitExceededException(
+						"Matching takes more than " + transform.getMaxSteps() + " steps for the transform [" + transform + "].");
+			}
+			return value.charAt(index);
+		}
+	
+		@Override
+		public int length() {
+			return value.length();
+		}
+	
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return value.subSequence(start, end);
+		}
+	
+		@Override
+		public String toString() {
+			return value;
+		}
+	}
+	
+}
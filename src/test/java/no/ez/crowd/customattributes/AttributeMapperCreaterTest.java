@@ -7,14 +7,20 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.URL;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.atlassian.crowd.directory.ldap.LDAPPropertiesMapperImpl;
+import com.atlassian.crowd.directory.ldap.mapper.attribute.AttributeMapper;
+import com.google.common.collect.Sets;
 
 
 
@@ -56,6 +62,90 @@ public class AttributeMapperCreaterTest {
 	}
 	
 
+	@Test
+	public void testDigest() throws IOException {
+		
+		Reader properties = AttributeMapperCreaterTest.emulateInitPropertyFile();
+		AttributeMapperCreater creater = new AttributeMapperCreater(properties, "ldap.custom-attributes-3.xml");
+		
+		List<? extends AttributeMapper> mappers = creater.createUserAttributeMappers(3, null);
+		AttributeMapper last = mappers.get(mappers.size() - 1);
+		
+		Assert.assertTrue(last instanceof DigestAttributeMapper);
+		Assert.assertEquals(Digest.DEFAULT_KEY, last.getKey());
+		
+		// no user attributes, no digest.
+		Assert.assertTrue(creater.createGroupAttributeMappers(3, null).isEmpty());
+	}
+	
+	
+	@Test
+	public void testPutConnectionSettings() throws IOException {
+		
+		Reader properties = AttributeMapperCreaterTest.emulateInitPropertyFile();
+		AttributeMapperCreater creater = new AttributeMapperCreater(properties, "ldap.custom-attributes-3.xml");
+		
+		Map<String, String> env = new HashMap<String, String>();
+		env.put(ConnectionSettings.READ_TIMEOUT, "120000"); // set by Crowd
+		
+		creater.putConnectionSettings(env, 3, null);
+		
+		Assert.assertEquals(4, env.size());
+		Assert.assertEquals("5000", env.get(ConnectionSettings.CONNECT_TIMEOUT));
+		Assert.assertEquals("30000", env.get(ConnectionSettings.READ_TIMEOUT));
+		Assert.assertEquals("500", env.get(ConnectionSettings.BATCH_SIZE));
+		Assert.assertEquals("true", env.get(ConnectionSettings.POOL));
+		
+		// not configured for the directory.
+		env = new HashMap<String, String>();
+		creater.putConnectionSettings(env, 1, null);
+		Assert.assertTrue(env.isEmpty());
+	}
+	
+	
+	@Test
+	public void testCreateUserModifications() throws IOException {
+		
+		Reader properties = AttributeMapperCreaterTest.emulateInitPropertyFile();
+		AttributeMapperCreater creater = new AttributeMapperCreater(properties, "ldap.custom-attributes-3.xml");
+		
+		Map<String, Set<String>> attributes = new HashMap<String, Set<String>>();
+		attributes.put("department", Collections.singleton("Sales"));
+		attributes.put("phone", Collections.<String>emptySet());
+		attributes.put("managerName", Collections.singleton("Boss")); // transformed, read-only
+		attributes.put("lastAuthenticated", Collections.singleton("1")); // not a custom attribute
+		
+		Set<String> written = new HashSet<String>();
+		Map<String, Object[]> result = creater.createUserModifications(3, null, attributes, written);
+		
+		Assert.assertEquals(Sets.newHashSet("department", "mobile"), result.keySet());
+		Assert.assertArrayEquals(new Object[] {"Sales"}, result.get("department"));
+		Assert.assertEquals(0, result.get("mobile").length);
+		
+		// the rest is stored by Crowd.
+		Assert.assertEquals(Sets.newHashSet("department", "phone"), written);
+		
+		// invalid value, not dropped silently.
+		try {
+			creater.createUserModifications(3, null, Collections.singletonMap("createdMillis", Collections.singleton("yesterday")), written);
+			Assert.fail("Invalid value expected.");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("createdMillis"));
+		}
+		
+		// both keys stored in createTimestamp.
+		attributes = new HashMap<String, Set<String>>();
+		attributes.put("createdMillis", Collections.singleton("1577880000000"));
+		attributes.put("createdSeconds", Collections.singleton("1577880000"));
+		try {
+			creater.createUserModifications(3, null, attributes, written);
+			Assert.fail("Conflicting keys expected.");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("createTimestamp"));
+		}
+	}
+	
+	
 	static Reader emulateInitPropertyFile() throws IOException {
 		
 		URL config = CustomAttributeMapperCreaterTest.class.getResource("/ldap.custom-attributes-1.xml");
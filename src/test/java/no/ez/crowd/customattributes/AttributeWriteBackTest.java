@@ -0,0 +1,168 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+/** Tests for {@link AttributeWriteBack} class.
+ */
+public class AttributeWriteBackTest {
+	
+	
+	/** Records the requests. Blocks the first request until released. */
+	private static class TestWriter implements AttributeWriteBack.Writer {
+		
+		final List<String> dns = new ArrayList<String>();
+		
+		final List<ModificationItem[]> requests = new ArrayList<ModificationItem[]>();
+		
+		final List<Thread> threads = new ArrayList<Thread>();
+		
+		final CountDownLatch started = new CountDownLatch(1);
+		
+		final CountDownLatch released;
+		
+		TestWriter(boolean block) {
+			released = new CountDownLatch(block ? 1 : 0);
+		}
+		
+		@Override
+		public void modify(String dn, ModificationItem[] items) throws NamingException {
+			synchronized (this) {
+				dns.add(dn);
+				requests.add(items);
+				threads.add(Thread.currentThread());
+			}
+			started.countDown();
+			try {
+				released.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	
+	private static Map<String, Object[]> values(String ldapName, Object... values) {
+		Map<String, Object[]> result = new LinkedHashMap<String, Object[]>();
+		result.put(ldapName, values);
+		return result;
+	}
+	
+	
+	@Test
+	public void testWrite() throws Exception {
+		
+		TestWriter writer = new TestWriter(false);
+		AttributeWriteBack writeBack = new AttributeWriteBack(writer);
+		
+		writeBack.write("cn=John,ou=People", values("department", "Sales"));
+		Assert.assertEquals(1, writer.requests.size()); // written before returning
+		Assert.assertSame(Thread.currentThread(), writer.threads.get(0));
+		
+		writeBack.write("cn=Jane,ou=People", values("mobile"));
+		Assert.assertEquals(2, writer.requests.size());
+		Assert.assertEquals("cn=Jane,ou=People", writer.dns.get(1));
+		
+		// no values, removed.
+		Assert.assertEquals(DirContext.REPLACE_ATTRIBUTE, writer.requests.get(1)[0].getModificationOp());
+		Assert.assertEquals(0, writer.requests.get(1)[0].getAttribute().size());
+		
+		writeBack.write("cn=John,ou=People", Collections.<String, Object[]>emptyMap());
+		Assert.assertEquals(2, writer.requests.size());
+	}
+	
+	
+	@Test
+	public void testCoalescing() throws Exception {
+		
+		final TestWriter writer = new TestWriter(true);
+		final AttributeWriteBack writeBack = new AttributeWriteBack(writer);
+		
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(writeAsync(writeBack, "cn=John,ou=People", values("department", "Sales")));
+		Assert.assertTrue(writer.started.await(5, TimeUnit.SECONDS));
+		
+		// sent together, once the first request completes.
+		threads.add(writeAsync(writeBack, "cn=John,ou=People", values("mobile", "1", "2")));
+		threads.add(writeAsync(writeBack, "cn=John,ou=People", values("Department", "Support")));
+		for (int i = 0; i < 500 && ! writeBack.toString().contains("changes=3"); i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(writeBack.toString(), writeBack.toString().contains("pending=1"));
+		
+		writer.released.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+			Assert.assertFalse(thread.isAlive());
+		}
+		
+		Assert.assertEquals(2, writer.requests.size());
+		ModificationItem[] john = writer.requests.get(1);
+		Assert.assertEquals(2, john.length);
+		
+		// the order of the concurrent writers is not defined.
+		Map<String, Attribute> byId = new HashMap<String, Attribute>();
+		for (ModificationItem item : john) {
+			byId.put(item.getAttribute().getID().toLowerCase(Locale.ENGLISH), item.getAttribute());
+		}
+		Assert.assertEquals(2, byId.get("mobile").size());
+		Assert.assertEquals("Support", byId.get("department").get());
+		Assert.assertTrue(writeBack.toString().contains("pending=0"));
+	}
+	
+	
+	private static Thread writeAsync(final AttributeWriteBack writeBack, final String dn, final Map<String, Object[]> values) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writeBack.write(dn, values);
+				} catch (NamingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+	
+	
+	@Test
+	public void testFailure() throws Exception {
+		
+		AttributeWriteBack writeBack = new AttributeWriteBack(new AttributeWriteBack.Writer() {
+			@Override
+			public void modify(String dn, ModificationItem[] items) throws NamingException {
+				throw new NamingException("Insufficient access rights");
+			}
+		});
+		
+		try {
+			writeBack.write("cn=John,ou=People", values("department", "Sales"));
+			Assert.fail("Failure expected.");
+		} catch (NamingException e) {
+			Assert.assertEquals("Insufficient access rights", e.getMessage());
+		}
+		
+		Assert.assertTrue(writeBack.toString().contains("failures=1"));
+		Assert.assertTrue(writeBack.toString().contains("pending=0"));
+	}
+	
+}
@@ -0,0 +1,137 @@
+package no.ez.crowd.customattributes;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.naming.Binding;
+import javax.naming.NameClassPair;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.ldap.core.ContextMapper;
+import org.springframework.ldap.core.ContextMapperCallbackHandler;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.DirContextProcessor;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
+import org.springframework.ldap.core.SearchExecutor;
+
+
+
+/** Tests for {@link BatchConverter} and {@link BatchLdapTemplate} classes.
+ */
+public class BatchConverterTest {
+	
+	
+	private static List<NameClassPair> createPage(int size) {
+		List<NameClassPair> page = new ArrayList<NameClassPair>();
+		for (int i = 0; i < size; i++) {
+			DirContextAdapter dca = mock(DirContextAdapter.class);
+			doReturn(new Object[] {String.valueOf(i)}).when(dca).getObjectAttributes("int");
+			page.add(new Binding("cn=" + i, dca));
+		}
+		return page;
+	}
+	
+	
+	@Test
+	public void testMapPage() throws Exception {
+		
+		final CustomAttributeMapper mapper = new CustomAttributeMapper(new CustomAttribute("a", AttributeType.INTEGER, "int"));
+		final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+		
+		ContextMapperCallbackHandler handler = new ContextMapperCallbackHandler(new ContextMapper() {
+			@Override
+			public Object mapFromContext(Object ctx) {
+				threads.add(Thread.currentThread().getName());
+				return mapper.getValues((DirContextAdapter)ctx).iterator().next();
+			}
+		});
+		
+		BatchConverter converter = new BatchConverter();
+		Assert.assertFalse(converter.isEnabled());
+		converter.setThreads(4);
+		Assert.assertTrue(converter.isEnabled());
+		
+		List<Object> result = converter.map(createPage(500), handler);
+		
+		Assert.assertEquals(500, result.size());
+		for (int i = 0; i < result.size(); i++) {
+			Assert.assertEquals(String.valueOf(i), result.get(i)); // the order is kept.
+		}
+		Assert.assertTrue(threads.contains(Thread.currentThread().getName())); // the searching thread helps.
+		Assert.assertTrue(handler.getList().isEmpty());
+	}
+	
+	
+	@Test
+	public void testMapPageFailure() {
+		
+		ContextMapperCallbackHandler handler = new ContextMapperCallbackHandler(new ContextMapper() {
+			@Override
+			public Object mapFromContext(Object ctx) {
+				throw new IllegalStateException("broken entry");
+			}
+		});
+		
+		BatchConverter converter = new BatchConverter();
+		converter.setThreads(3);
+		try {
+			converter.map(createPage(10), handler);
+			Assert.fail("Exception expected.");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("broken entry", e.getMessage());
+		}
+	}
+	
+	
+	@Test
+	public void testTemplate() {
+		
+		final List<NameClassPair> page = createPage(20);
+		
+		LdapTemplate crowdTemplate = mock(LdapTemplate.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				NameClassPairCallbackHandler handler = (NameClassPairCallbackHandler)invocation.getArguments()[1];
+				for (NameClassPair pair : page) {
+					handler.handleNameClassPair(pair);
+				}
+				return null;
+			}
+		}).when(crowdTemplate).search(any(SearchExecutor.class), any(NameClassPairCallbackHandler.class), any(DirContextProcessor.class));
+		
+		MapperContext context = new MapperContext(new DnReferenceResolver(null));
+		BatchConverter converter = context.getBatchConverter();
+		BatchLdapTemplate template = new BatchLdapTemplate(crowdTemplate, context);
+		
+		ContextMapperCallbackHandler handler = new ContextMapperCallbackHandler(new ContextMapper() {
+			@Override
+			public Object mapFromContext(Object ctx) {
+				return ((DirContextAdapter)ctx).getObjectAttributes("int")[0];
+			}
+		});
+		
+		template.search(mock(SearchExecutor.class), handler, mock(DirContextProcessor.class)); // disabled, passed through.
+		Assert.assertEquals(20, handler.getList().size());
+		
+		converter.setThreads(4);
+		template.search(mock(SearchExecutor.class), handler, mock(DirContextProcessor.class));
+		Assert.assertEquals(40, handler.getList().size());
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals(String.valueOf(i), handler.getList().get(20 + i));
+		}
+	}
+
+}
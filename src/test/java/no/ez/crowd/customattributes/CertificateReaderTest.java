@@ -0,0 +1,68 @@
+package no.ez.crowd.customattributes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Assert;
+import org.junit.Test;
+
+import no.ez.crowd.customattributes.CertificateReader.CertificateInfo;
+
+
+
+/** Tests for {@link CertificateReader} class.
+ */
+public class CertificateReaderTest {
+	
+	
+	@Test
+	public void testRead() throws Exception {
+		
+		CertificateInfo info = CertificateReader.read(readCertificate());
+		
+		Assert.assertEquals("CN=John Doe,OU=People,O=Example", info.get(CertificateField.SUBJECT));
+		Assert.assertEquals("CN=John Doe,OU=People,O=Example", info.get(CertificateField.ISSUER));
+		Assert.assertEquals("7AC175D9DC7355E0", info.get(CertificateField.SERIAL));
+		Assert.assertEquals("2020-01-01T00:00:00.000Z", info.get(CertificateField.NOT_BEFORE));
+		Assert.assertEquals("2029-12-29T00:00:00.000Z", info.get(CertificateField.NOT_AFTER));
+	}
+	
+	
+	@Test
+	public void testCache() throws Exception {
+		
+		CertificateInfo info1 = CertificateReader.read(readCertificate());
+		CertificateInfo info2 = CertificateReader.read(readCertificate());
+		
+		Assert.assertSame(info1, info2);
+	}
+	
+	
+	@Test(expected=CertificateException.class)
+	public void testBrokenCertificate() throws Exception {
+		CertificateReader.read("not a certificate".getBytes("ISO-8859-1"));
+	}
+	
+	
+	/** Returns DER encoded test certificate. */
+	static byte[] readCertificate() throws IOException {
+		InputStream in = CertificateReaderTest.class.getResourceAsStream("/user-certificate.pem");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+			String pem = out.toString("ISO-8859-1");
+			String base64 = pem.replaceAll("-----[A-Z ]+-----", "");
+			return Base64.decodeBase64(base64);
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -47,6 +47,40 @@ public class ConfigurationTest  {
 	}
 	
 	
+	@Test
+	public void testReadFlags() throws URISyntaxException {
+		
+		URI testConfig = getClass().getResource("/ldap.custom-attributes-1.xml").toURI();
+		
+		File source = new File(testConfig);
+		ConfigurationReader configuration = new ConfigurationReader(source);
+		
+		Collection<CustomAttribute> attrs = configuration.readUserAttributes(100, "http://sdfasdf.no:8000");
+
+		CustomAttribute attr = CustomAttribute.findByKey("accountFlags", attrs);
+		
+		Assert.assertEquals(AttributeType.FLAGS, attr.getType());
+		Assert.assertEquals(2, attr.getFlags().size());
+		Assert.assertEquals("disabled", attr.getFlags().get(0).getName());
+		Assert.assertEquals(2L, attr.getFlags().get(0).getMaskValue());
+		Assert.assertEquals(16L, attr.getFlags().get(1).getMaskValue());
+	}
+	
+	
+	@Test
+	public void testInvalidFlagMasks() {
+		Assert.assertEquals(Long.MAX_VALUE, new Flag(null, "0x7fffffffffffffff").getMaskValue());
+		for (String mask : new String[] {"0", "0x0", "9223372036854775808", "0x10000000000000000", "abc"}) {
+			try {
+				new Flag(null, mask).getMaskValue();
+				Assert.fail("Mask [" + mask + "] accepted.");
+			} catch (IllegalArgumentException e) {
+				// expected, rejected by ConfigurationReader on load.
+			}
+		}
+	}
+	
+	
 	@Test
 	public void testReadGroupAttrs() throws URISyntaxException {
 		
@@ -0,0 +1,131 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.DistinguishedName;
+
+import com.atlassian.crowd.directory.ldap.mapper.attribute.AttributeMapper;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+
+
+/** Tests for {@link ConstructedAttributeLoader} class.
+ */
+public class ConstructedAttributeLoaderTest {
+	
+	
+	/** Computes the expiry time from the RDN and records the requested batches. */
+	private static class TestLookup implements ConstructedAttributeLoader.Lookup {
+		
+		final List<Collection<String>> batches = new ArrayList<Collection<String>>();
+		
+		@Override
+		public synchronized Map<String, Attributes> lookup(Collection<String> dns, String[] ldapNames) throws NamingException {
+			batches.add(new ArrayList<String>(dns));
+			Map<String, Attributes> result = new HashMap<String, Attributes>();
+			for (String dn : dns) {
+				Attributes attrs = new BasicAttributes(true);
+				attrs.put(ldapNames[0], String.valueOf(dn.length()));
+				result.put(dn, attrs);
+			}
+			return result;
+		}
+	}
+	
+	
+	@Test
+	public void testMappers() throws Exception {
+		
+		TestLookup lookup = new TestLookup();
+		MapperContext context = new MapperContext(new DnReferenceResolver(null), null, null, new ConstructedAttributeLoader(lookup));
+		
+		List<CustomAttributeMapper> mappers = CustomAttributeMapper.createList(Lists.newArrayList(
+				CustomAttributeMapperTest.loadAttribute("passwordExpiry"), 
+				CustomAttributeMapperTest.loadAttribute("department")), context);
+		
+		// not requested by the search.
+		Assert.assertTrue(mappers.get(0).getRequiredLdapAttributes().isEmpty());
+		Assert.assertFalse(mappers.get(1).getRequiredLdapAttributes().isEmpty());
+		
+		DirContextAdapter ctx = new DirContextAdapter(new DistinguishedName("cn=John,ou=People"));
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("17"), mappers.get(0).getValues(ctx));
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("17"), mappers.get(0).getValues(ctx));
+		Assert.assertEquals(1, lookup.batches.size());
+		
+		// without the loader read with the search like any other attribute.
+		CustomAttributeMapper plain = CustomAttributeMapper.create(CustomAttributeMapperTest.loadAttribute("passwordExpiry"));
+		Assert.assertEquals(Sets.newHashSet("msDS-UserPasswordExpiryTimeComputed"), plain.getRequiredLdapAttributes());
+	}
+	
+	
+	@Test
+	public void testPage() throws Exception {
+		
+		TestLookup lookup = new TestLookup();
+		ConstructedAttributeLoader loader = new ConstructedAttributeLoader(lookup, 2, 3);
+		MapperContext context = new MapperContext(new DnReferenceResolver(null), null, null, loader);
+		
+		List<AttributeMapper> mappers = new ArrayList<AttributeMapper>(CustomAttributeMapper.createList(Lists.newArrayList(
+				CustomAttributeMapperTest.loadAttribute("passwordExpiry")), context));
+		
+		List<DirContextAdapter> page = new ArrayList<DirContextAdapter>();
+		for (int i = 0; i < 7; i++) {
+			page.add(new DirContextAdapter(new DistinguishedName("cn=" + i + ",ou=People")));
+		}
+		
+		loader.startPage(page);
+		
+		// 7 entries in batches of 3, every batch read with its first entry.
+		for (DirContextAdapter ctx : page) {
+			CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("14"), mappers.get(0).getValues(ctx));
+		}
+		Assert.assertEquals(3, lookup.batches.size());
+		Assert.assertEquals(Sets.newHashSet("cn=0,ou=People", "cn=1,ou=People", "cn=2,ou=People"), new HashSet<String>(lookup.batches.get(0)));
+		Assert.assertEquals(Arrays.asList("cn=6,ou=People"), lookup.batches.get(2));
+		
+		// a new entry outside of the page is read alone.
+		loader.endPage(page);
+		DirContextAdapter other = new DirContextAdapter(new DistinguishedName("cn=7,ou=People"));
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("14"), mappers.get(0).getValues(other));
+		Assert.assertEquals(4, lookup.batches.size());
+		Assert.assertEquals(1, lookup.batches.get(3).size());
+	}
+	
+	
+	@Test
+	public void testFailure() throws Exception {
+		
+		ConstructedAttributeLoader loader = new ConstructedAttributeLoader(new ConstructedAttributeLoader.Lookup() {
+			@Override
+			public Map<String, Attributes> lookup(Collection<String> dns, String[] ldapNames) throws NamingException {
+				throw new NamingException("Server is down");
+			}
+		});
+		
+		DirContextAdapter ctx = new DirContextAdapter(new DistinguishedName("cn=John,ou=People"));
+		loader.load(ctx, new String[] {"tokenGroups"});
+		
+		DirContextAdapter paged = new DirContextAdapter(new DistinguishedName("cn=Jane,ou=People"));
+		loader.startPage(Arrays.asList(paged));
+		loader.load(paged, new String[] {"tokenGroups"});
+		Assert.assertNull(paged.getObjectAttributes("tokenGroups"));
+		
+		Assert.assertNull(ctx.getObjectAttributes("tokenGroups"));
+	}
+	
+}
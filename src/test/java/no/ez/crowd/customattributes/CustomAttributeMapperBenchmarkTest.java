@@ -0,0 +1,89 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.ldap.core.DirContextAdapter;
+
+
+
+/** Compares the generic {@link CustomAttributeMapper} with the specialised mappers
+ *  created by {@link CustomAttributeMapper#create(CustomAttribute)}.<br><br>
+ * 
+ *  Takes a while, so it is skipped unless started with <code>-Dbenchmark=true</code>.
+ */
+public class CustomAttributeMapperBenchmarkTest {
+	
+	
+	private static final int ENTRIES = 1000;
+	
+	private static final int WARMUP_ROUNDS = 20;
+	
+	private static final int ROUNDS = 50;
+	
+	
+	@Test
+	public void benchmark() throws Exception {
+		
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+		
+		benchmark(AttributeType.STRING, "John Doe");
+		benchmark(AttributeType.BINARY, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+		benchmark(AttributeType.INTEGER, "123456");
+		benchmark(AttributeType.DOUBLE, "123.456");
+		benchmark(AttributeType.DATETIME, "20120102030405Z");
+		benchmark(AttributeType.LOCAL_DATETIME, "20120102030405");
+		benchmark(AttributeType.CUSTOM, "sales");
+	}
+	
+	
+	private void benchmark(AttributeType type, Object value) throws Exception {
+		
+		List<DirContextAdapter> entries = new ArrayList<DirContextAdapter>(ENTRIES);
+		for (int i = 0; i < ENTRIES; i++) {
+			DirContextAdapter dca = new DirContextAdapter();
+			dca.setAttributeValues("test", new Object[] {value, value});
+			entries.add(dca);
+		}
+		
+		CustomAttribute attr;
+		if (type == AttributeType.CUSTOM) {
+			attr = new CustomAttribute("a", "test", "upper-case", null);
+			attr.compileConverter(new ConverterRegistry());
+		} else {
+			attr = new CustomAttribute("a", type, "test");
+		}
+		
+		CustomAttributeMapper generic = new CustomAttributeMapper(attr);
+		CustomAttributeMapper specialised = CustomAttributeMapper.create(attr);
+		
+		run(generic, entries, WARMUP_ROUNDS);
+		run(specialised, entries, WARMUP_ROUNDS);
+		
+		long genericNanos = run(generic, entries, ROUNDS);
+		long specialisedNanos = run(specialised, entries, ROUNDS);
+		
+		long ops = (long)ENTRIES * ROUNDS;
+		System.out.println(
+				type + ": generic " + genericNanos / ops + " ns/entry, " + 
+				specialised.getClass().getSimpleName() + " " + specialisedNanos / ops + " ns/entry.");
+	}
+	
+	
+	private long run(CustomAttributeMapper mapper, List<DirContextAdapter> entries, int rounds) {
+		long start = System.nanoTime();
+		int count = 0;
+		for (int r = 0; r < rounds; r++) {
+			for (DirContextAdapter dca : entries) {
+				count += mapper.getValues(dca).size();
+			}
+		}
+		if (count == 0) {
+			throw new IllegalStateException("Nothing converted.");
+		}
+		return System.nanoTime() - start;
+	}
+
+}
@@ -2,14 +2,22 @@ package no.ez.crowd.customattributes;
 
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import javax.naming.InvalidNameException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
 import javax.naming.ldap.LdapName;
 
 import org.joda.time.DateTime;
@@ -18,7 +26,9 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.internal.stubbing.answers.ThrowsException;
 import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.DistinguishedName;
 
+import com.atlassian.crowd.directory.ldap.mapper.attribute.AttributeMapper;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
@@ -98,6 +108,72 @@ public class CustomAttributeMapperTest {
 	}
 	
 	
+	@Test
+	public void testLong() throws InvalidNameException {
+		
+		DirContextAdapter dca = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+		
+		Set<Object> longs = new HashSet<Object>();
+		longs.add(9876543210L);
+		longs.add("-9223372036854775808");
+		longs.add("9223372036854775808"); // overflow
+		longs.add("--error--");
+		
+		doReturn(new LdapName("cn=test-dn")).when(dca).getDn();
+		doReturn(longs.toArray()).when(dca).getObjectAttributes("long");
+		
+		CustomAttributeMapper m1 = new CustomAttributeMapper(new CustomAttribute("a", AttributeType.LONG, "long"));
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("9876543210", "-9223372036854775808"), m1.getValues(dca));
+	}
+	
+	
+	@Test
+	public void testIntegerOverflow() throws InvalidNameException {
+		
+		Assert.assertEquals("2147483647", readValue("2147483647", AttributeType.INTEGER));
+		Assert.assertNull(readValue("2147483648", AttributeType.INTEGER));
+	}
+	
+	
+	@Test
+	public void testBoolean() throws InvalidNameException {
+		
+		Assert.assertEquals("true",  readValue("TRUE", AttributeType.BOOLEAN));
+		Assert.assertEquals("false", readValue("false", AttributeType.BOOLEAN));
+		Assert.assertEquals("true",  readValue(Boolean.TRUE, AttributeType.BOOLEAN));
+		Assert.assertNull(readValue("yes", AttributeType.BOOLEAN));
+	}
+	
+	
+	@Test
+	public void testFlags() throws InvalidNameException {
+		
+		DirContextAdapter dca = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+		
+		doReturn(new LdapName("cn=test-dn")).when(dca).getDn();
+		doReturn(new Object[] {"514"}).when(dca).getObjectAttributes("userAccountControl"); // 0x0202 = disabled normal account
+		
+		List<Flag> flags = Lists.newArrayList(new Flag("disabled", "0x0002"), new Flag("locked", "0x0010"), new Flag("normal", "0x0200"));
+		CustomAttributeMapper m1 = new CustomAttributeMapper(new CustomAttribute("a", AttributeType.FLAGS, "userAccountControl", null, flags));
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("disabled", "normal"), m1.getValues(dca));
+		
+		List<Flag> single = Lists.newArrayList(new Flag(null, "0x0010"));
+		CustomAttributeMapper m2 = new CustomAttributeMapper(new CustomAttribute("b", AttributeType.FLAGS, "userAccountControl", null, single));
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("false"), m2.getValues(dca));
+	}
+	
+	
+	@Test
+	public void testCertificate() throws Exception {
+		
+		Assert.assertEquals("CN=John Doe,OU=People,O=Example", readValue(CertificateReaderTest.readCertificate(), AttributeType.CERTIFICATE));
+		Assert.assertNull(readValue(new byte[] {1, 2, 3}, AttributeType.CERTIFICATE));
+	}
+	
+	
 	@Test
 	public void testDateTimeDefaultPattern() throws InvalidNameException {
 		
@@ -158,6 +234,532 @@ public class CustomAttributeMapperTest {
 	
 	
 	
+	@Test
+	public void testDateTimeOutputFormats() throws Exception {
+		
+		Assert.assertEquals("1343033763000", readValue("20120723085603Z", loadAttribute("createdMillis")));
+		Assert.assertEquals("1343033763", readValue("20120723085603Z", loadAttribute("createdSeconds")));
+		Assert.assertEquals("2012-07-23", readValue("20120723085603Z", loadAttribute("createdDay")));
+		Assert.assertEquals("1343033763000", readValue("20120723085603Z", loadAttribute("createdLocalMillis")));
+		
+		Assert.assertEquals("-1", readValue("19691231235959.500Z", loadAttribute("createdSeconds")));
+	}
+	
+	
+	@Test
+	public void testInternPool() throws Exception {
+		
+		CustomAttribute attribute = loadAttribute("department");
+		
+		String value1 = readValue(new String("Sales"), attribute);
+		String value2 = readValue(new String("Sales"), attribute);
+		
+		Assert.assertEquals("Sales", value2);
+		Assert.assertSame(value1, value2);
+		Assert.assertEquals(1, attribute.getInternPool().getHits());
+	}
+	
+	
+	@Test
+	public void testConversionCache() throws Exception {
+		
+		CustomAttribute attribute = loadAttribute("createdCached");
+		
+		Assert.assertEquals("2012-07-23T08:56:03.000Z", readValue("20120723085603Z", attribute));
+		Assert.assertEquals("2012-07-23T08:56:03.000Z", readValue("20120723085603Z", attribute));
+		Assert.assertNull(readValue("--error--", attribute));
+		Assert.assertNull(readValue("--error--", attribute)); // known unparseable
+		
+		ConversionCache cache = attribute.getConversionCache();
+		Assert.assertEquals(2, cache.getHits());
+		Assert.assertEquals(2, cache.getMisses());
+		Assert.assertSame(ConversionCache.UNPARSEABLE, cache.get("--error--"));
+	}
+	
+	
+	@Test
+	public void testCustomConverter() throws Exception {
+		
+		CustomAttribute attribute = loadAttribute("departmentCode");
+		
+		Assert.assertEquals("upper-case", attribute.getConverterName());
+		Assert.assertNotNull(attribute.getConverter());
+		Assert.assertTrue(CustomAttributeMapper.create(attribute) instanceof ConverterAttributeMapper);
+		
+		Assert.assertEquals("DEP-SALES", readValue("sales", attribute));
+		Assert.assertNull(readValue("", attribute)); // rejected by the converter
+		
+		try {
+			new CustomAttribute("x", "test", "unknown", null).compileConverter(new ConverterRegistry());
+			Assert.fail("Unknown converter must be rejected.");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("upper-case"));
+		}
+		
+		try {
+			new CustomAttribute("x", "test", "upper-case", Lists.newArrayList(new Parameter("junk", "1"))).compileConverter(new ConverterRegistry());
+			Assert.fail("Invalid parameters must be rejected.");
+		} catch (IllegalArgumentException e) {
+			// fine
+		}
+	}
+	
+	
+	@Test
+	public void testSharedConversion() throws Exception {
+		
+		DirContextAdapter dca1 = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+		DirContextAdapter dca2 = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+		
+		doReturn(new Object[] {"20120102030405Z"}).when(dca1).getObjectAttributes("createTimestamp");
+		doReturn(new Object[] {"20130102030405Z"}).when(dca2).getObjectAttributes("createTimestamp");
+		
+		List<CustomAttribute> attrs = Lists.newArrayList(
+				new CustomAttribute("a", AttributeType.DATETIME, "createTimestamp"),
+				new CustomAttribute("b", AttributeType.DATETIME, "createTimeStamp"), // LDAP names ignore case
+				new CustomAttribute("c", AttributeType.STRING, "createTimestamp"));
+		
+		List<CustomAttributeMapper> mappers = CustomAttributeMapper.createList(attrs);
+		
+		for (DirContextAdapter dca : Lists.newArrayList(dca1, dca2, dca1)) {
+			Set<String> a = mappers.get(0).getValues(dca);
+			Set<String> b = mappers.get(1).getValues(dca);
+			Set<String> c = mappers.get(2).getValues(dca);
+			
+			Assert.assertSame(a, b);
+			Assert.assertEquals(a.iterator().next().substring(0, 4), c.iterator().next().substring(0, 4));
+		}
+		
+		// "a" and "b" once per entry change, "c" every time.
+		verify(dca1, times(2 + 2)).getObjectAttributes("createTimestamp");
+		verify(dca2, times(1 + 1)).getObjectAttributes("createTimestamp");
+	}
+	
+	
+	@Test
+	public void testFallbackChain() throws Exception {
+		
+		CustomAttribute attribute = loadAttribute("phone");
+		
+		Assert.assertEquals(Lists.newArrayList("mobile", "telephoneNumber", "homePhone"), attribute.getLdapNames());
+		
+		CustomAttributeMapper mapper = CustomAttributeMapper.create(attribute);
+		
+		Assert.assertEquals(Sets.newHashSet("mobile", "telephoneNumber", "homePhone"), mapper.getRequiredLdapAttributes());
+		
+		// "homePhone" must be not read, once a value is found.
+		DirContextAdapter dca1 = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+		doReturn(new Object[] {null}).when(dca1).getObjectAttributes("mobile");
+		doReturn(new Object[] {"123"}).when(dca1).getObjectAttributes("telephoneNumber");
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("123"), mapper.getValues(dca1));
+		
+		DirContextAdapter dca2 = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+		doReturn(null).when(dca2).getObjectAttributes("mobile");
+		doReturn(new Object[0]).when(dca2).getObjectAttributes("telephoneNumber");
+		doReturn(null).when(dca2).getObjectAttributes("homePhone");
+		
+		Assert.assertTrue(mapper.getValues(dca2).isEmpty());
+		
+		Assert.assertEquals(
+				Lists.newArrayList("mobile", "telephoneNumber", "homePhone"), 
+				CustomAttribute.unwrapLdapNames(Lists.newArrayList(attribute)));
+	}
+	
+	
+	@Test
+	public void testCondition() throws Exception {
+		
+		CustomAttribute attribute = loadAttribute("personalTitle");
+		CustomAttributeMapper mapper = CustomAttributeMapper.create(attribute);
+		
+		Assert.assertEquals(Sets.newHashSet("title", "objectClass", "cn"), mapper.getRequiredLdapAttributes());
+		
+		DirContextAdapter person = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+		doReturn(new Object[] {"top", "inetOrgPerson"}).when(person).getObjectAttributes("objectClass");
+		doReturn(new Object[] {"John Doe"}).when(person).getObjectAttributes("cn");
+		doReturn(new Object[] {"Dr."}).when(person).getObjectAttributes("title");
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("Dr."), mapper.getValues(person));
+		
+		// the attribute itself must be not touched for the non-matching entries.
+		DirContextAdapter service = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+		doReturn(new Object[] {"top", "inetOrgPerson"}).when(service).getObjectAttributes("objectClass");
+		doReturn(new Object[] {"svc-backup"}).when(service).getObjectAttributes("cn");
+		
+		Assert.assertTrue(mapper.getValues(service).isEmpty());
+		
+		DirContextAdapter group = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+		doReturn(new Object[] {"top", "groupOfNames"}).when(group).getObjectAttributes("objectClass");
+		
+		Assert.assertTrue(mapper.getValues(group).isEmpty());
+	}
+	
+	
+	@Test
+	public void testDnReference() throws Exception {
+		
+		CustomAttribute attribute = loadAttribute("managerUid");
+		
+		Assert.assertEquals("uid", attribute.getNamingAttribute());
+		
+		MapperContext context = new MapperContext(new DnReferenceResolver(null));
+		CustomAttributeMapper mapper = CustomAttributeMapper.create(attribute, context);
+		
+		Assert.assertTrue(mapper instanceof DnReferenceAttributeMapper);
+		Assert.assertEquals(Sets.newHashSet("manager", "uid"), mapper.getRequiredLdapAttributes());
+		
+		DirContextAdapter boss = new DirContextAdapter(new DistinguishedName("cn=Big Boss,ou=People,dc=example,dc=com"));
+		boss.setAttributeValue("uid", "boss");
+		boss.setAttributeValue("manager", "cn=Board,ou=People,dc=example,dc=com");
+		
+		DirContextAdapter employee = new DirContextAdapter(new DistinguishedName("cn=John Doe,ou=People,dc=example,dc=com"));
+		employee.setAttributeValue("uid", "jdoe");
+		employee.setAttributeValues("manager", new Object[] {"cn=Big Boss,ou=People,dc=example,dc=com", "uid=asmith,ou=People,dc=example,dc=com"});
+		
+		// the board is neither seen before nor resolvable by RDN.
+		Assert.assertTrue(mapper.getValues(boss).isEmpty());
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("boss", "asmith"), mapper.getValues(employee));
+	}
+	
+	
+	@Test
+	public void testComputed() throws Exception {
+		
+		CustomAttribute attribute = loadAttribute("contact");
+		CustomAttributeMapper mapper = CustomAttributeMapper.create(attribute);
+		
+		Assert.assertTrue(mapper instanceof ComputedAttributeMapper);
+		Assert.assertEquals(Sets.newHashSet("givenName", "sn", "mail"), mapper.getRequiredLdapAttributes());
+		
+		DirContextAdapter dca = new DirContextAdapter();
+		dca.setAttributeValue("givenName", "John");
+		dca.setAttributeValue("sn", "Doe");
+		dca.setAttributeValues("mail", new Object[] {"john@example.com", "jdoe@example.com"});
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("John Doe <john@example.com>"), mapper.getValues(dca));
+		
+		dca = new DirContextAdapter();
+		dca.setAttributeValue("sn", "Doe");
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet(" Doe <>"), mapper.getValues(dca));
+		Assert.assertTrue(mapper.getValues(new DirContextAdapter()).isEmpty());
+	}
+	
+	
+	@Test
+	public void testJson() throws Exception {
+		
+		CustomAttribute attribute = loadAttribute("address");
+		CustomAttributeMapper mapper = CustomAttributeMapper.create(attribute);
+		
+		Assert.assertTrue(mapper instanceof JsonAttributeMapper);
+		Assert.assertEquals(Sets.newHashSet("street", "l", "telephoneNumber", "roomNumber"), mapper.getRequiredLdapAttributes());
+		
+		DirContextAdapter dca = new DirContextAdapter();
+		dca.setAttributeValue("street", "Main \"Street\" 1");
+		dca.setAttributeValues("telephoneNumber", new Object[] {"+47 1", "+47 2"});
+		dca.setAttributeValue("roomNumber", "3");
+		
+		String expected = "{\"street\":\"Main \\\"Street\\\" 1\",\"phones\":[\"+47 1\",\"+47 2\"],\"floor\":\"3\"}";
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet(expected), mapper.getValues(dca));
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet(expected), mapper.getValues(dca)); // byte-identical
+		
+		Assert.assertTrue(mapper.getValues(new DirContextAdapter()).isEmpty());
+	}
+	
+	
+	@Test
+	public void testChangeMarkerCache() throws Exception {
+		
+		URI testConfig = CustomAttributeMapperTest.class.getResource("/ldap.custom-attributes-3.xml").toURI();
+		EntryCache config = new ConfigurationReader(new File(testConfig)).readEntryCache(3, null);
+		
+		Assert.assertNotNull(config);
+		Assert.assertEquals(500, config.getSize());
+		Assert.assertNull(config.getMarker());
+		Assert.assertFalse(config.isPersistent());
+		Assert.assertNotNull(config.getFingerprint());
+		
+		MapperContext context = new MapperContext(new DnReferenceResolver(null), "modifyTimestamp");
+		context.updateChangeMarkerCache(config, null);
+		ChangeMarkerCache cache = context.getChangeMarkerCache();
+		
+		CustomAttributeMapper mapper = CustomAttributeMapper.createList(Lists.newArrayList(loadAttribute("managerName")), context).get(0);
+		
+		Assert.assertTrue(mapper.getRequiredLdapAttributes().contains("modifyTimestamp"));
+		
+		DirContextAdapter dca = new DirContextAdapter(new DistinguishedName("cn=John Doe,ou=People"));
+		dca.setAttributeValue("modifyTimestamp", "20140101000000Z");
+		dca.setAttributeValue("manager", "cn=Big  Boss,ou=People");
+		
+		Set<String> first = mapper.getValues(dca);
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("Big Boss"), first);
+		
+		// unchanged, even if the attribute is different: the marker decides.
+		DirContextAdapter same = new DirContextAdapter(new DistinguishedName("CN=John Doe,ou=People"));
+		same.setAttributeValue("modifyTimestamp", "20140101000000Z");
+		same.setAttributeValue("manager", "cn=Other,ou=People");
+		
+		Assert.assertSame(first, mapper.getValues(same));
+		
+		same.setAttributeValue("modifyTimestamp", "20140102000000Z");
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("Other"), mapper.getValues(same));
+		
+		// no marker, not cached.
+		DirContextAdapter unmarked = new DirContextAdapter(new DistinguishedName("cn=Jane Roe,ou=People"));
+		unmarked.setAttributeValue("manager", "cn=Big Boss,ou=People");
+		Assert.assertNotSame(mapper.getValues(unmarked), mapper.getValues(unmarked));
+		
+		// changed just now, not cached: the timestamp has a resolution of one second.
+		DirContextAdapter fresh = new DirContextAdapter(new DistinguishedName("cn=Jim Fresh,ou=People"));
+		fresh.setAttributeValue("modifyTimestamp", new DateTime(DateTimeZone.UTC).toString("yyyyMMddHHmmss") + ".0Z");
+		fresh.setAttributeValue("manager", "cn=Big Boss,ou=People");
+		Assert.assertNotSame(mapper.getValues(fresh), mapper.getValues(fresh));
+		Assert.assertTrue(ChangeMarkerCache.isUnsettled("20140101000000Z", new DateTime(2014, 1, 1, 0, 0, 1, 0, DateTimeZone.UTC).getMillis()));
+		Assert.assertFalse(ChangeMarkerCache.isUnsettled("20140101000000Z", new DateTime(2014, 1, 1, 0, 0, 5, 0, DateTimeZone.UTC).getMillis()));
+		Assert.assertFalse(ChangeMarkerCache.isUnsettled("12345", System.currentTimeMillis()));
+		
+		// the references, the constructed and the operational attributes change without the entry.
+		for (String key : new String[] {"managerUid", "passwordExpiry"}) {
+			CustomAttributeMapper other = CustomAttributeMapper.createList(Lists.newArrayList(loadAttribute(key)), context).get(0);
+			Assert.assertFalse(key, other.getRequiredLdapAttributes().contains("modifyTimestamp"));
+		}
+		
+		// the same configuration keeps the cache, a reloaded one replaces it.
+		context.updateChangeMarkerCache(config, null);
+		Assert.assertSame(cache, context.getChangeMarkerCache());
+		context.updateChangeMarkerCache(new EntryCache(10, "uSNChanged"), null);
+		Assert.assertEquals("uSNChanged", context.getChangeMarkerCache().getMarkerAttribute());
+		context.updateChangeMarkerCache(null, null);
+		Assert.assertNull(context.getChangeMarkerCache());
+	}
+	
+	
+	@Test
+	public void testRefreshEvery() throws Exception {
+		
+		CustomAttribute attribute = loadAttribute("photoHash");
+		
+		Assert.assertEquals(24 * 60 * 60 * 1000L, attribute.getRefreshMillis());
+		
+		MapperContext context = new MapperContext(new DnReferenceResolver(null));
+		
+		DirContextAdapter dca = new DirContextAdapter(new DistinguishedName("cn=John Doe,ou=People"));
+		dca.setAttributeValue("photoHash", "abc");
+		
+		// the first mapper refreshes the attribute and remembers the values.
+		CustomAttributeMapper first = CustomAttributeMapper.createList(Lists.newArrayList(attribute), context).get(0);
+		Assert.assertEquals(Sets.newHashSet("photoHash"), first.getRequiredLdapAttributes());
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("abc"), first.getValues(dca));
+		
+		// the next ones omit it from the search and serve the remembered values.
+		CustomAttributeMapper second = CustomAttributeMapper.createList(Lists.newArrayList(attribute), context).get(0);
+		Assert.assertTrue(second.getRequiredLdapAttributes().isEmpty());
+		
+		DirContextAdapter omitted = new DirContextAdapter(new DistinguishedName("CN=John Doe,ou=People"));
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("abc"), second.getValues(omitted));
+		
+		// an unknown entry requests the refresh.
+		DirContextAdapter unknown = new DirContextAdapter(new DistinguishedName("cn=Jane Roe,ou=People"));
+		Assert.assertTrue(second.getValues(unknown).isEmpty());
+		
+		CustomAttributeMapper third = CustomAttributeMapper.createList(Lists.newArrayList(attribute), context).get(0);
+		Assert.assertEquals(Sets.newHashSet("photoHash"), third.getRequiredLdapAttributes());
+		
+		// a reloaded configuration refreshes first.
+		CustomAttribute reloaded = loadAttribute("photoHash");
+		CustomAttributeMapper fourth = CustomAttributeMapper.createList(Lists.newArrayList(reloaded), context).get(0);
+		Assert.assertEquals(Sets.newHashSet("photoHash"), fourth.getRequiredLdapAttributes());
+		
+		// with a lookup an unknown entry is read separately instead of being empty.
+		final List<String> lookups = new ArrayList<String>();
+		MapperContext looking = new MapperContext(new DnReferenceResolver(null), null, null, null, new RefreshSchedule.Lookup() {
+			@Override
+			public Attributes lookup(String dn, String[] ldapNames) {
+				lookups.add(dn + Arrays.toString(ldapNames));
+				return new BasicAttributes("photoHash", "def");
+			}
+		});
+		CustomAttributeMapper.createList(Lists.newArrayList(attribute), looking).get(0).getValues(dca);
+		CustomAttributeMapper omitting = CustomAttributeMapper.createList(Lists.newArrayList(attribute), looking).get(0);
+		Assert.assertTrue(omitting.getRequiredLdapAttributes().isEmpty());
+		
+		DirContextAdapter unseen = new DirContextAdapter(new DistinguishedName("cn=Jim Roe,ou=People"));
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("def"), omitting.getValues(unseen));
+		Assert.assertEquals(Arrays.asList("cn=Jim Roe,ou=People[photoHash]"), lookups);
+		
+		// remembered now.
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("def"), omitting.getValues(new DirContextAdapter(new DistinguishedName("cn=Jim Roe,ou=People"))));
+		Assert.assertEquals(1, lookups.size());
+		
+		// the remembered values are limited by size, the large ones evict more.
+		RefreshSchedule schedule = new RefreshSchedule(null, 3 * RefreshSchedule.sizeOf("cn=x\nphoto", Sets.newHashSet("abc")));
+		DirContextAdapter x = new DirContextAdapter(new DistinguishedName("cn=x"));
+		DirContextAdapter y = new DirContextAdapter(new DistinguishedName("cn=y"));
+		schedule.remember(x, "photo", Sets.newHashSet("abc"));
+		schedule.remember(y, "photo", Sets.newHashSet("abc"));
+		Assert.assertNotNull(schedule.recall(x, "photo", Long.MAX_VALUE));
+		schedule.remember(y, "photo", Sets.newHashSet(new String(new char[200])));
+		Assert.assertNull(schedule.recall(x, "photo", Long.MAX_VALUE));
+		Assert.assertNotNull(schedule.recall(y, "photo", Long.MAX_VALUE));
+		
+		// the values older than the refresh period are missed, but still available if they cannot be read.
+		Assert.assertNull(schedule.recall(y, "photo", 0));
+		Assert.assertNotNull(schedule.recallExpired(y, "photo"));
+		Assert.assertTrue(schedule.toString(), schedule.toString().contains("expired=1"));
+		
+		try {
+			new CustomAttribute("x", AttributeType.STRING, "x", "15w").getRefreshMillis();
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		Assert.assertEquals(90000L, new CustomAttribute("x", AttributeType.STRING, "x", "90").getRefreshMillis());
+	}
+	
+	
+	@Test
+	public void testToLdapValues() throws Exception {
+		
+		CustomAttributeMapper seconds = CustomAttributeMapper.create(loadAttribute("createdSeconds"));
+		Assert.assertTrue(seconds.isWritable());
+		
+		DirContextAdapter dca = new DirContextAdapter();
+		dca.setAttributeValue("createTimestamp", "20140101000000Z");
+		Set<String> values = seconds.getValues(dca);
+		
+		Object[] ldap = seconds.toLdapValues(values);
+		Assert.assertEquals(1, ldap.length);
+		
+		// read back the same.
+		DirContextAdapter written = new DirContextAdapter();
+		written.setAttributeValues("createTimestamp", ldap);
+		Assert.assertEquals(values, seconds.getValues(written));
+		
+		Assert.assertArrayEquals(new Object[] {"TRUE", "FALSE"}, 
+				CustomAttributeMapper.create(new CustomAttribute("b", AttributeType.BOOLEAN, "b")).toLdapValues(Lists.newArrayList("true", "0")));
+		Assert.assertArrayEquals(new Object[] {"42"}, 
+				CustomAttributeMapper.create(new CustomAttribute("i", AttributeType.INTEGER, "i")).toLdapValues(Lists.newArrayList(" 42 ")));
+		
+		try {
+			CustomAttributeMapper.create(new CustomAttribute("i", AttributeType.INTEGER, "i")).toLdapValues(Lists.newArrayList("4294967296"));
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected, too large
+		}
+		
+		// transforms are not reversible.
+		CustomAttributeMapper managerName = CustomAttributeMapper.create(loadAttribute("managerName"));
+		Assert.assertFalse(managerName.isWritable());
+		try {
+			managerName.toLdapValues(Lists.newArrayList("Boss"));
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	
+	@Test
+	public void testDigest() throws Exception {
+		
+		List<CustomAttributeMapper> mappers = CustomAttributeMapper.createList(Lists.newArrayList(
+				new CustomAttribute("mail", AttributeType.STRING, "mail"), 
+				new CustomAttribute("phone", AttributeType.STRING, "telephoneNumber")));
+		DigestAttributeMapper digest = DigestAttributeMapper.attach("_digest", mappers);
+		
+		DirContextAdapter dca = new DirContextAdapter();
+		dca.setAttributeValue("mail", "john@example.com");
+		dca.setAttributeValues("telephoneNumber", new Object[] {"1", "2"});
+		
+		// the mappers are called by Crowd first, the digest combines their hashes.
+		for (CustomAttributeMapper mapper : mappers) {
+			mapper.getValues(dca);
+		}
+		Set<String> incremental = digest.getValues(dca);
+		
+		Assert.assertEquals(1, incremental.size());
+		
+		// the same digest, if computed from scratch and if the values come in another order.
+		DirContextAdapter reordered = new DirContextAdapter();
+		reordered.setAttributeValue("mail", "john@example.com");
+		reordered.setAttributeValues("telephoneNumber", new Object[] {"2", "1"});
+		
+		Assert.assertEquals(incremental, digest.getValues(reordered));
+		
+		DirContextAdapter changed = new DirContextAdapter();
+		changed.setAttributeValue("mail", "john@example.com");
+		changed.setAttributeValues("telephoneNumber", new Object[] {"1"});
+		
+		Assert.assertFalse(incremental.equals(digest.getValues(changed)));
+		
+		// the lazy attributes are not digested, so they stay lazy; the digest is the last mapper.
+		CustomAttribute lazy = new CustomAttribute("created", AttributeType.DATETIME, "createTimestamp", true);
+		List<CustomAttributeMapper> withLazy = CustomAttributeMapper.createList(Lists.newArrayList(
+				new CustomAttribute("mail", AttributeType.STRING, "mail"), 
+				lazy,
+				new CustomAttribute("phone", AttributeType.STRING, "telephoneNumber")));
+		List<AttributeMapper> appended = DigestAttributeMapper.append("_digest", withLazy);
+		Assert.assertEquals(4, appended.size());
+		Assert.assertTrue(appended.get(3) instanceof DigestAttributeMapper);
+		
+		dca.setAttributeValue("createTimestamp", "20120102030405Z");
+		for (AttributeMapper mapper : appended) {
+			mapper.getValues(dca);
+		}
+		Assert.assertEquals(incremental, appended.get(3).getValues(dca));
+		Assert.assertEquals(0, lazy.getLazyStatistics().getRealised());
+	}
+	
+	
+	@Test
+	public void testTransforms() throws Exception {
+		
+		CustomAttribute attribute = loadAttribute("managerName");
+		
+		Assert.assertEquals(2, attribute.getTransformers().size());
+		Assert.assertEquals("John Doe", readValue("cn=John   Doe,ou=People,dc=example,dc=com", attribute));
+		
+		CustomAttribute guarded = new CustomAttribute("a", AttributeType.STRING, "test", new Transform("^(?:(a)+\\1)+$", "x", 0));
+		
+		Assert.assertEquals("x", readValue("aaaa", guarded));
+		Assert.assertNull(readValue("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!", guarded)); // stopped and skipped
+	}
+	
+	
+	/** Reads the attribute with the specified key from the test configuration 
+	 *  <code>ldap.custom-attributes-3.xml</code>. */
+	static CustomAttribute loadAttribute(String key) throws URISyntaxException {
+		
+		URI testConfig = CustomAttributeMapperTest.class.getResource("/ldap.custom-attributes-3.xml").toURI();
+		
+		ConfigurationReader configuration = new ConfigurationReader(new File(testConfig));
+		
+		Collection<CustomAttribute> attrs = new ArrayList<CustomAttribute>();
+		attrs.addAll(configuration.readUserAttributes(3, null));
+		attrs.addAll(configuration.readGroupAttributes(3, null));
+		
+		CustomAttribute result = CustomAttribute.findByKey(key, attrs);
+		Assert.assertNotNull("Attribute [" + key + "] not found in the test configuration.", result);
+		return result;
+	}
+	
+	
+	private static String readValue(Object value, CustomAttribute attribute) throws InvalidNameException {
+		
+		DirContextAdapter dca = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+
+		doReturn(new LdapName("cn=test-dn")).when(dca).getDn();
+		doReturn(new Object[] {value}).when(dca).getObjectAttributes(attribute.getLdapName());
+		
+		Set<String> result = new CustomAttributeMapper(attribute).getValues(dca);
+		
+		return result.isEmpty() ? null : result.iterator().next(); 
+	}
+	
+	
 	private static String readValue(Object value, AttributeType type, Format... ff) throws InvalidNameException {
 		
 		DirContextAdapter dca = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
@@ -181,6 +783,72 @@ public class CustomAttributeMapperTest {
 	}
 	
 	
+	@Test
+	public void testLazy() throws Exception {
+		
+		DirContextAdapter dca = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+		
+		doReturn(new Object[] {"20120102030405Z"}).when(dca).getObjectAttributes("created");
+		doReturn(null).when(dca).getObjectAttributes("missing");
+		
+		CustomAttribute attr = new CustomAttribute("a", AttributeType.DATETIME, "created", true);
+		CustomAttributeMapper m1 = new CustomAttributeMapper(attr);
+		CustomAttributeMapper m2 = new CustomAttributeMapper(new CustomAttribute("b", AttributeType.DATETIME, "missing", true));
+		
+		Set<String> lazy = m1.getValues(dca);
+		Set<String> ignored = m1.getValues(dca);
+		
+		Assert.assertTrue(lazy instanceof LazyValueSet);
+		Assert.assertFalse(((LazyValueSet)lazy).isRealised());
+		Assert.assertEquals(2, attr.getLazyStatistics().getCreated());
+		Assert.assertEquals(0, attr.getLazyStatistics().getRealised());
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("2012-01-02T03:04:05.000Z"), lazy);
+		Assert.assertTrue(((LazyValueSet)lazy).isRealised());
+		Assert.assertFalse(((LazyValueSet)ignored).isRealised());
+		Assert.assertEquals(1, attr.getLazyStatistics().getRealised());
+		
+		// nothing to convert, no lazy set needed.
+		Assert.assertTrue(m2.getValues(dca).isEmpty());
+	}
+	
+	
+	@Test
+	public void testSpecialisedMappers() throws Exception {
+		
+		DirContextAdapter dca = mock(DirContextAdapter.class, new ThrowsException(new RuntimeException("Unexpected invocation")));		
+		
+		doReturn(new LdapName("cn=test-dn")).when(dca).getDn();
+		doReturn(new Object[] {"abc", null, 123}).when(dca).getObjectAttributes("string");
+		doReturn(new Object[] {new byte[] {1, 2, 3}, "not binary"}).when(dca).getObjectAttributes("binary");
+		doReturn(new Object[] {123, "456", "junk", "99999999999"}).when(dca).getObjectAttributes("int");
+		doReturn(new Object[] {1.5, "2.5", "junk"}).when(dca).getObjectAttributes("double");
+		doReturn(new Object[] {"20120102030405Z", "junk"}).when(dca).getObjectAttributes("datetime");
+		doReturn(new Object[] {"20120102030405", "junk"}).when(dca).getObjectAttributes("local");
+		
+		List<CustomAttribute> attrs = Lists.newArrayList(
+				new CustomAttribute("a", AttributeType.STRING, "string"),
+				new CustomAttribute("b", AttributeType.BINARY, "binary"),
+				new CustomAttribute("c", AttributeType.INTEGER, "int"),
+				new CustomAttribute("d", AttributeType.DOUBLE, "double"),
+				new CustomAttribute("e", AttributeType.DATETIME, "datetime"),
+				new CustomAttribute("f", AttributeType.LOCAL_DATETIME, "local"),
+				new CustomAttribute("g", AttributeType.LONG, "int"));
+		
+		List<CustomAttributeMapper> mappers = CustomAttributeMapper.createList(attrs);
+		
+		Assert.assertEquals(StringAttributeMapper.class, mappers.get(0).getClass());
+		Assert.assertEquals(LocalDateTimeAttributeMapper.class, mappers.get(5).getClass());
+		Assert.assertEquals(CustomAttributeMapper.class, mappers.get(6).getClass());
+		
+		for (int i = 0; i < attrs.size(); i++) {
+			Set<String> expected = new CustomAttributeMapper(attrs.get(i)).getValues(dca);
+			Assert.assertFalse(expected.isEmpty());
+			Assert.assertEquals(Lists.newArrayList(expected), Lists.newArrayList(mappers.get(i).getValues(dca)));
+		}
+	}
+	
+	
 	@Test
 	public void testTimeZones() {
 		
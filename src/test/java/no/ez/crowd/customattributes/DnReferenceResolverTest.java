@@ -0,0 +1,118 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.DistinguishedName;
+
+
+
+/** Tests for {@link DnReferenceResolver} class.
+ */
+public class DnReferenceResolverTest {
+	
+	
+	/** Knows a single entry and records the requested batches. */
+	private static class TestLookup implements DnReferenceResolver.Lookup {
+		
+		final List<Collection<String>> batches = new ArrayList<Collection<String>>();
+		
+		@Override
+		public String getDefaultNamingAttribute() {
+			return "uid";
+		}
+		
+		@Override
+		public Map<String, String> lookup(Collection<String> dns, String namingAttribute) throws NamingException {
+			batches.add(new ArrayList<String>(dns));
+			Map<String, String> result = new HashMap<String, String>();
+			for (String dn : dns) {
+				if (dn.startsWith("cn=Jane Roe")) {
+					result.put(dn, "jroe");
+				}
+			}
+			return result;
+		}
+	}
+	
+	
+	@Test
+	public void testResolve() {
+		
+		TestLookup lookup = new TestLookup();
+		DnReferenceResolver resolver = new DnReferenceResolver(lookup);
+		
+		DirContextAdapter seen = new DirContextAdapter(new DistinguishedName("cn=John Doe,ou=People,dc=example,dc=com"));
+		seen.setAttributeValue("uid", "jdoe");
+		resolver.remember(seen, "uid");
+		
+		List<String> dns = Arrays.asList(
+				"CN=John Doe, ou=People,dc=example,dc=com", // remembered, other spelling
+				"uid=asmith,ou=People,dc=example,dc=com",   // RDN
+				"cn=Jane Roe,ou=People,dc=example,dc=com",  // looked up
+				"cn=Gone,ou=People,dc=example,dc=com",      // not found
+				"not a DN");
+		
+		Map<String, String> result = resolver.resolve(dns, "uid");
+		
+		Assert.assertEquals(Arrays.asList("jdoe", "asmith", "jroe"), new ArrayList<String>(result.values()));
+		Assert.assertEquals(1, lookup.batches.size());
+		Assert.assertEquals(2, lookup.batches.get(0).size());
+		
+		// everything is cached now, including the missing entry.
+		result = resolver.resolve(dns, "uid");
+		
+		Assert.assertEquals(3, result.size());
+		Assert.assertEquals(1, lookup.batches.size());
+		
+		// the names are cached per naming attribute.
+		resolver.resolve(Arrays.asList("cn=Jane Roe,ou=People,dc=example,dc=com"), "mail");
+		Assert.assertEquals(2, lookup.batches.size());
+	}
+	
+	
+	@Test
+	public void testExpiry() throws InterruptedException {
+		
+		TestLookup lookup = new TestLookup();
+		DnReferenceResolver resolver = new DnReferenceResolver(lookup, 60000, 1);
+		
+		List<String> dns = Arrays.asList("cn=Jane Roe,ou=People,dc=example,dc=com", "cn=Gone,ou=People,dc=example,dc=com");
+		
+		resolver.resolve(dns, "uid");
+		Assert.assertEquals(1, lookup.batches.size());
+		
+		Thread.sleep(10);
+		
+		// the missing entry is looked up again, the found one is still cached.
+		Map<String, String> result = resolver.resolve(dns, "uid");
+		
+		Assert.assertEquals("jroe", result.get(dns.get(0)));
+		Assert.assertEquals(2, lookup.batches.size());
+		Assert.assertEquals(Arrays.asList(dns.get(1)), new ArrayList<String>(lookup.batches.get(1)));
+	}
+	
+	
+	@Test
+	public void testWithoutLookup() {
+		
+		DnReferenceResolver resolver = new DnReferenceResolver(null);
+		
+		Assert.assertEquals(DnReferenceResolver.DEFAULT_NAMING_ATTRIBUTE, resolver.getDefaultNamingAttribute());
+		
+		Map<String, String> result = resolver.resolve(Arrays.asList("uid=jdoe,ou=People", "cn=John Doe,ou=People"), "uid");
+		
+		Assert.assertEquals(1, result.size());
+		Assert.assertEquals("jdoe", result.get("uid=jdoe,ou=People"));
+	}
+	
+}
@@ -0,0 +1,188 @@
+package no.ez.crowd.customattributes;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.DistinguishedName;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+
+
+/** Tests for {@link EntryStore} class.
+ */
+public class EntryStoreTest {
+	
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	
+	/** Collects the replayed records as "dn|marker|key|values". */
+	private static class Records implements EntryStore.Loader {
+		
+		final List<String> records = new ArrayList<String>();
+		
+		@Override
+		public void restore(String dn, String marker, String key, Set<String> values) {
+			records.add(dn + "|" + marker + "|" + key + "|" + values);
+		}
+	}
+	
+	
+	private static List<String> load(File dir, String fingerprint) {
+		Records result = new Records();
+		EntryStore store = new EntryStore(dir, fingerprint);
+		store.load(result);
+		store.close();
+		return result.records;
+	}
+	
+	
+	private static int segments(File dir) {
+		return dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File parent, String name) {
+				return name.startsWith("segment-");
+			}
+		}).length;
+	}
+	
+	
+	@Test
+	public void testAppendAndLoad() throws Exception {
+		
+		File dir = new File(folder.getRoot(), "3");
+		
+		EntryStore store = new EntryStore(dir, "v1");
+		store.load(new Records()); // nothing yet
+		store.append("cn=a", "1", "mail", Arrays.asList("a@example.com"));
+		store.append("cn=b", "7", "phones", Arrays.asList("+47 1", "+47 \u00e6\u00f8\u00e5"));
+		store.close();
+		
+		Assert.assertEquals(
+				Arrays.asList("cn=a|1|mail|[a@example.com]", "cn=b|7|phones|[+47 1, +47 \u00e6\u00f8\u00e5]"), 
+				load(dir, "v1"));
+		
+		// truncated tail of a crashed write is ignored.
+		File segment = new File(dir, "segment-00000001.dat");
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			raf.setLength(raf.length() - 3);
+		} finally {
+			raf.close();
+		}
+		Assert.assertEquals(Arrays.asList("cn=a|1|mail|[a@example.com]"), load(dir, "v1"));
+		
+		// another configuration discards the segments.
+		Assert.assertTrue(load(dir, "v2").isEmpty());
+		Assert.assertEquals(0, segments(dir));
+	}
+	
+	
+	@Test
+	public void testMerge() throws Exception {
+		
+		File dir = new File(folder.getRoot(), "3");
+		
+		for (int i = 0; i < 10; i++) {
+			EntryStore store = new EntryStore(dir, "v1");
+			store.append("cn=a", String.valueOf(i), "mail", Arrays.asList("a" + i + "@example.com"));
+			store.append("cn=b", "1", "mail", Arrays.asList("b@example.com"));
+			store.close();
+		}
+		Assert.assertEquals(10, segments(dir));
+		Assert.assertEquals(20, load(dir, "v1").size());
+		
+		// merged by the previous load, only the last record of every DN and key is kept.
+		Assert.assertEquals(1, segments(dir));
+		Assert.assertEquals(Arrays.asList("cn=a|9|mail|[a9@example.com]", "cn=b|1|mail|[b@example.com]"), load(dir, "v1"));
+		
+		// the DNs not retained are pruned by the merge.
+		for (int i = 0; i < 10; i++) {
+			EntryStore store = new EntryStore(dir, "v1");
+			store.append("cn=c", "1", "mail", Arrays.asList("c@example.com"));
+			store.close();
+		}
+		EntryStore store = new EntryStore(dir, "v1");
+		store.load(new Records(), new EntryStore.Retention() {
+			@Override
+			public boolean retain(String dn) {
+				return ! dn.equals("cn=b");
+			}
+		});
+		store.close();
+		Assert.assertEquals(1, segments(dir));
+		Assert.assertEquals(Arrays.asList("cn=a|9|mail|[a9@example.com]", "cn=c|1|mail|[c@example.com]"), load(dir, "v1"));
+	}
+	
+	
+	@Test
+	public void testLock() throws Exception {
+		
+		File dir = new File(folder.getRoot(), "3");
+		
+		EntryStore first = new EntryStore(dir, "v1");
+		first.load(new Records());
+		first.append("cn=a", "1", "mail", Arrays.asList("a@example.com"));
+		
+		// the second store only reads, while the first one writes.
+		EntryStore second = new EntryStore(dir, "v2");
+		second.load(new Records());
+		second.append("cn=b", "1", "mail", Arrays.asList("b@example.com"));
+		second.close();
+		Assert.assertEquals(1, segments(dir));
+		
+		first.close();
+		Assert.assertEquals(Arrays.asList("cn=a|1|mail|[a@example.com]"), load(dir, "v1"));
+		
+		// a segment is never overwritten, even if the directory listing is outdated.
+		Assert.assertTrue(new File(dir, "segment-00000002.dat").createNewFile());
+		first.append("cn=a", "2", "mail", Arrays.asList("a2@example.com"));
+		first.close();
+		Assert.assertTrue(new File(dir, "segment-00000003.dat").isFile());
+	}
+	
+	
+	@Test
+	public void testRestart() throws Exception {
+		
+		File dir = new File(folder.getRoot(), "3");
+		CustomAttribute attribute = new CustomAttribute("name", AttributeType.STRING, "cn");
+		
+		DirContextAdapter dca = new DirContextAdapter(new DistinguishedName("cn=John Doe,ou=People"));
+		dca.setAttributeValue("modifyTimestamp", "20140101000000Z");
+		dca.setAttributeValue("cn", "John Doe");
+		
+		EntryCache config = new EntryCache(100, "modifyTimestamp", true);
+		config.setFingerprint("v1");
+		
+		MapperContext context = new MapperContext(new DnReferenceResolver(null));
+		context.updateChangeMarkerCache(config, dir);
+		CustomAttributeMapper mapper = CustomAttributeMapper.createList(Lists.newArrayList(attribute), context).get(0);
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("John Doe"), mapper.getValues(dca));
+		context.getChangeMarkerCache().close();
+		
+		// after the restart the unchanged entry is served from the store.
+		dca.setAttributeValue("cn", "Changed without a new marker");
+		
+		context = new MapperContext(new DnReferenceResolver(null));
+		context.updateChangeMarkerCache(config, dir);
+		mapper = CustomAttributeMapper.createList(Lists.newArrayList(attribute), context).get(0);
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("John Doe"), mapper.getValues(dca));
+	}
+	
+}
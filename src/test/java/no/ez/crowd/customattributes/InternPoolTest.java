@@ -0,0 +1,105 @@
+package no.ez.crowd.customattributes;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import no.ez.crowd.customattributes.InternPool.Eviction;
+
+
+
+/** Tests for {@link InternPool} class.
+ */
+public class InternPoolTest {
+	
+	
+	@Test
+	public void testIntern() {
+		
+		InternPool pool = new InternPool(10, Eviction.LRU, false);
+		
+		String a1 = new String("a");
+		String a2 = new String("a");
+		
+		Assert.assertSame(a1, pool.intern(a1));
+		Assert.assertSame(a1, pool.intern(a2));
+		
+		Assert.assertEquals(1, pool.getHits());
+		Assert.assertEquals(1, pool.getMisses());
+		Assert.assertEquals(0.5, pool.getHitRate(), 0.0001);
+		Assert.assertEquals(1, pool.size());
+	}
+	
+	
+	@Test
+	public void testLruEviction() {
+		
+		InternPool pool = new InternPool(2, Eviction.LRU, false);
+		
+		String a = new String("a");
+		String b = new String("b");
+		
+		pool.intern(a);
+		pool.intern(b);
+		pool.intern(new String("a")); // "b" is the least recently used now
+		pool.intern("c");
+		
+		Assert.assertEquals(2, pool.size());
+		Assert.assertEquals(1, pool.getEvictions());
+		Assert.assertSame(a, pool.intern(new String("a")));
+		Assert.assertNotSame(b, pool.intern(new String("b")));
+	}
+	
+	
+	@Test
+	public void testFrequencyEviction() {
+		
+		InternPool pool = new InternPool(2, Eviction.FREQUENCY, false);
+		
+		String a = new String("a");
+		
+		pool.intern(a);
+		pool.intern(new String("a"));
+		pool.intern(new String("a"));
+		pool.intern("b");
+		pool.intern("c"); // "b" is used least
+		
+		Assert.assertEquals(2, pool.size());
+		Assert.assertEquals(1, pool.getEvictions());
+		Assert.assertSame(a, pool.intern(new String("a")));
+	}
+	
+	
+	@Test
+	public void testFrequencyEvictionSingleVictim() {
+		
+		InternPool pool = new InternPool(100, Eviction.FREQUENCY, false);
+		
+		for (int i = 0; i < 100; i++) {
+			pool.intern("value" + i); // all used once
+		}
+		pool.intern("new");
+		
+		Assert.assertEquals(100, pool.size());
+		Assert.assertEquals(1, pool.getEvictions());
+		
+		for (int i = 0; i < 1000; i++) {
+			pool.intern("more" + i);
+		}
+		Assert.assertEquals(100, pool.size());
+		Assert.assertEquals(1001, pool.getEvictions());
+	}
+	
+	
+	@Test
+	public void testWeakReferences() {
+		
+		InternPool pool = new InternPool(10, Eviction.LRU, true);
+		
+		String a = new String("a");
+		
+		Assert.assertSame(a, pool.intern(a));
+		Assert.assertSame(a, pool.intern(new String("a")));
+		Assert.assertEquals(1, pool.size());
+	}
+
+}
@@ -0,0 +1,61 @@
+package no.ez.crowd.customattributes;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.ldap.core.DirContextAdapter;
+
+import com.google.common.collect.Sets;
+
+
+
+/** Tests for {@link LdapFilter} class.
+ */
+public class LdapFilterTest {
+	
+	
+	@Test
+	public void testMatches() {
+		
+		DirContextAdapter dca = new DirContextAdapter();
+		dca.setAttributeValues("objectClass", new Object[] {"top", "person", "inetOrgPerson"});
+		dca.setAttributeValues("cn", new Object[] {"John Doe"});
+		dca.setAttributeValues("description", new Object[] {"a (b) c*"});
+		
+		Assert.assertTrue(LdapFilter.parse("(objectClass=inetorgperson)").matches(dca));
+		Assert.assertFalse(LdapFilter.parse("(objectClass=group)").matches(dca));
+		Assert.assertTrue(LdapFilter.parse("(cn=*)").matches(dca));
+		Assert.assertFalse(LdapFilter.parse("(mail=*)").matches(dca));
+		Assert.assertTrue(LdapFilter.parse("(cn=john*)").matches(dca));
+		Assert.assertTrue(LdapFilter.parse("(cn=*doe)").matches(dca));
+		Assert.assertTrue(LdapFilter.parse("(cn=j*n*d*e)").matches(dca));
+		Assert.assertFalse(LdapFilter.parse("(cn=john*n doe)").matches(dca));
+		Assert.assertTrue(LdapFilter.parse("(description=a \\28b\\29 c\\2a)").matches(dca));
+		dca.setAttributeValues("sn", new Object[] {"Andr\u00e9"});
+		Assert.assertTrue(LdapFilter.parse("(sn=andr\\c3\\a9)").matches(dca));
+		Assert.assertTrue(LdapFilter.parse("(sn=*\\C3\\A9)").matches(dca));
+		Assert.assertTrue(LdapFilter.parse(" (&(objectClass=person)(|(cn=x)(cn=John Doe))(!(cn=svc-*))) ").matches(dca));
+		Assert.assertFalse(LdapFilter.parse("(&(objectClass=person)(!(cn=John*)))").matches(dca));
+		
+		Set<String> attrs = new HashSet<String>();
+		LdapFilter.parse("(&(objectClass=person)(|(cn=x)(!(mail=*))))").collectAttributes(attrs);
+		Assert.assertEquals(Sets.newHashSet("objectClass", "cn", "mail"), attrs);
+	}
+	
+	
+	@Test
+	public void testInvalid() {
+		String[] invalid = {"", "cn=x", "(cn=x", "(cn=x))", "(&)", "(=x)", "(cn>=x)", "(cn=)", "(cn=\\2)", "(cn=\\c3)", "(cn=\\c3x)", "(cn=a(b)"};
+		for (String filter : invalid) {
+			try {
+				LdapFilter.parse(filter);
+				Assert.fail("Filter [" + filter + "] must be rejected.");
+			} catch (IllegalArgumentException e) {
+				// fine
+			}
+		}
+	}
+
+}
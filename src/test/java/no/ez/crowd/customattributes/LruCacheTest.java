@@ -0,0 +1,47 @@
+package no.ez.crowd.customattributes;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+/** Tests for {@link LruCache} class.
+ */
+public class LruCacheTest {
+	
+	
+	@Test
+	public void testEviction() {
+		
+		LruCache<String, String> cache = new LruCache<String, String>(2);
+		
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("a"); // "b" is the least recently used now
+		cache.put("c", "3");
+		
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals("1", cache.get("a"));
+		Assert.assertNull(cache.get("b"));
+		Assert.assertEquals("3", cache.get("c"));
+	}
+	
+	
+	@Test
+	public void testSegments() {
+		
+		LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(100, 8);
+		
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, i);
+		}
+		
+		Assert.assertEquals(100, cache.getMaxSize());
+		Assert.assertTrue(cache.size() <= 100);
+		Assert.assertEquals(Integer.valueOf(999), cache.get(999));
+		
+		cache.clear();
+		Assert.assertEquals(0, cache.size());
+	}
+
+}
@@ -0,0 +1,127 @@
+package no.ez.crowd.customattributes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.naming.NamingException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.DistinguishedName;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+
+
+/** Tests for {@link RangedAttributeReader} class.
+ */
+public class RangedAttributeReaderTest {
+	
+	
+	/** Serves the values in ranges of two, like AD with <code>MaxValRange=2</code>. */
+	private static class TestLookup implements RangedAttributeReader.Lookup {
+		
+		final List<Integer> requests = new ArrayList<Integer>();
+		
+		final List<String> values;
+		
+		boolean failing;
+		
+		TestLookup(String... values) {
+			this.values = Arrays.asList(values);
+		}
+		
+		@Override
+		public int readRanges(String dn, String ldapName, int from, List<Object> result) throws NamingException {
+			requests.add(from);
+			if (failing) {
+				throw new NamingException("Server is down");
+			}
+			int ranges = 0;
+			for (int i = from; i < values.size(); i += 2) {
+				result.addAll(values.subList(i, Math.min(i + 2, values.size())));
+				ranges++;
+			}
+			return ranges;
+		}
+	}
+	
+	
+	@Test
+	public void testParseRangeEnd() {
+		Assert.assertEquals(1499, RangedAttributeReader.parseRangeEnd("member;range=0-1499", "member"));
+		Assert.assertEquals(1499, RangedAttributeReader.parseRangeEnd("Member;Range=0-1499", "member"));
+		Assert.assertEquals(RangedAttributeReader.LAST, RangedAttributeReader.parseRangeEnd("member;range=1500-*", "member"));
+		Assert.assertEquals(RangedAttributeReader.NOT_RANGED, RangedAttributeReader.parseRangeEnd("member", "member"));
+		Assert.assertEquals(RangedAttributeReader.NOT_RANGED, RangedAttributeReader.parseRangeEnd("memberOf;range=0-1499", "member"));
+		Assert.assertEquals(RangedAttributeReader.NOT_RANGED, RangedAttributeReader.parseRangeEnd("member;range=x-1499", "member"));
+		Assert.assertEquals(RangedAttributeReader.NOT_RANGED, RangedAttributeReader.parseRangeEnd("member;range=0-", "member"));
+	}
+	
+	
+	@Test
+	public void testRead() {
+		
+		TestLookup lookup = new TestLookup("a", "b", "c", "d", "e");
+		RangedAttributeReader reader = new RangedAttributeReader(lookup);
+		
+		DirContextAdapter ctx = new DirContextAdapter(new DistinguishedName("cn=Large,ou=Groups"));
+		ctx.setAttributeValues("member;range=0-1", new Object[] {"a", "b"});
+		
+		Assert.assertNull(ctx.getObjectAttributes("member"));
+		Assert.assertEquals(Arrays.asList("a", "b", "c", "d", "e"), Arrays.asList(reader.read(ctx, "member")));
+		Assert.assertEquals(Arrays.asList(2), lookup.requests);
+		
+		// completed in the entry, so the other mappers see all the values.
+		Assert.assertEquals(5, ctx.getObjectAttributes("member").length);
+		
+		Assert.assertNull(reader.read(ctx, "memberOf"));
+	}
+	
+	
+	@Test
+	public void testLastRangeInEntry() {
+		
+		TestLookup lookup = new TestLookup();
+		RangedAttributeReader reader = new RangedAttributeReader(lookup);
+		
+		DirContextAdapter ctx = new DirContextAdapter(new DistinguishedName("cn=Small,ou=Groups"));
+		ctx.setAttributeValues("member;range=0-*", new Object[] {"a"});
+		
+		Assert.assertEquals(Arrays.asList("a"), Arrays.asList(reader.read(ctx, "member")));
+		Assert.assertTrue(lookup.requests.isEmpty());
+	}
+	
+	
+	@Test
+	public void testLookupFailure() {
+		
+		TestLookup lookup = new TestLookup("a", "b", "c");
+		lookup.failing = true;
+		RangedAttributeReader reader = new RangedAttributeReader(lookup);
+		
+		DirContextAdapter ctx = new DirContextAdapter(new DistinguishedName("cn=Large,ou=Groups"));
+		ctx.setAttributeValues("member;range=0-1", new Object[] {"a", "b"});
+		
+		// the values read so far.
+		Assert.assertEquals(Arrays.asList("a", "b"), Arrays.asList(reader.read(ctx, "member")));
+	}
+	
+	
+	@Test
+	public void testMapper() throws Exception {
+		
+		MapperContext context = new MapperContext(new DnReferenceResolver(null), null, new RangedAttributeReader(new TestLookup("a", "b", "c")));
+		CustomAttributeMapper mapper = CustomAttributeMapper.createList(
+				Lists.newArrayList(new CustomAttribute("members", AttributeType.STRING, "member")), context).get(0);
+		
+		DirContextAdapter ctx = new DirContextAdapter(new DistinguishedName("cn=Large,ou=Groups"));
+		ctx.setAttributeValues("member;range=0-1", new Object[] {"a", "b"});
+		
+		CustomAttributeMapperCreaterTest.compareSets(Sets.newHashSet("a", "b", "c"), mapper.getValues(ctx));
+	}
+	
+}
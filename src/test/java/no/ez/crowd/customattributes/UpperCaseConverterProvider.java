@@ -0,0 +1,39 @@
+package no.ez.crowd.customattributes;
+
+import java.util.Map;
+
+
+
+/** Test converter registered in <code>META-INF/services</code>. Converts the values
+ *  to upper case and adds the optional <code>prefix</code> parameter.
+ */
+public class UpperCaseConverterProvider implements AttributeConverterProvider {
+	
+	
+	@Override
+	public String getName() {
+		return "upper-case";
+	}
+	
+	
+	@Override
+	public AttributeConverter create(Map<String, String> parameters) {
+		
+		for (String name : parameters.keySet()) {
+			if ( ! name.equals("prefix")) {
+				throw new IllegalArgumentException("Unknown parameter [" + name + "].");
+			}
+		}
+		
+		final String prefix = parameters.containsKey("prefix") ? parameters.get("prefix") : "";
+		
+		return new AttributeConverter() {
+			@Override
+			public String convert(Object value) {
+				String str = value.toString();
+				return str.isEmpty() ? null : prefix + str.toUpperCase();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,66 @@
+package no.ez.crowd.customattributes;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+/** Tests for {@link ValueParser} class.
+ */
+public class ValueParserTest {
+	
+	
+	@Test
+	public void testParseLong() {
+		
+		Assert.assertEquals(Long.valueOf(0), ValueParser.parseLong("0"));
+		Assert.assertEquals(Long.valueOf(123), ValueParser.parseLong("+123"));
+		Assert.assertEquals(Long.valueOf(-123), ValueParser.parseLong("-123"));
+		Assert.assertEquals(Long.valueOf(Long.MAX_VALUE), ValueParser.parseLong("9223372036854775807"));
+		Assert.assertEquals(Long.valueOf(Long.MIN_VALUE), ValueParser.parseLong("-9223372036854775808"));
+		Assert.assertEquals(Long.valueOf(255), ValueParser.parseLong("ff", 16));
+	}
+	
+	
+	@Test
+	public void testParseLongErrors() {
+		
+		Assert.assertNull(ValueParser.parseLong(null));
+		Assert.assertNull(ValueParser.parseLong(""));
+		Assert.assertNull(ValueParser.parseLong("-"));
+		Assert.assertNull(ValueParser.parseLong("12a"));
+		Assert.assertNull(ValueParser.parseLong(" 12"));
+		Assert.assertNull(ValueParser.parseLong("1.5"));
+		Assert.assertNull(ValueParser.parseLong("9223372036854775808"));
+		Assert.assertNull(ValueParser.parseLong("-9223372036854775809"));
+		Assert.assertNull(ValueParser.parseLong("99999999999999999999999"));
+	}
+	
+	
+	@Test
+	public void testParseDecimalOrHex() {
+		
+		Assert.assertEquals(Long.valueOf(2), ValueParser.parseDecimalOrHex("0x0002"));
+		Assert.assertEquals(Long.valueOf(0x10000), ValueParser.parseDecimalOrHex("0X10000"));
+		Assert.assertEquals(Long.valueOf(16), ValueParser.parseDecimalOrHex("16"));
+		Assert.assertNull(ValueParser.parseDecimalOrHex("0x"));
+		Assert.assertNull(ValueParser.parseDecimalOrHex("0xZZ"));
+	}
+	
+	
+	@Test
+	public void testParseBoolean() {
+		
+		Assert.assertEquals(Boolean.TRUE, ValueParser.parseBoolean("TRUE"));
+		Assert.assertEquals(Boolean.TRUE, ValueParser.parseBoolean("true"));
+		Assert.assertEquals(Boolean.TRUE, ValueParser.parseBoolean("1"));
+		Assert.assertEquals(Boolean.FALSE, ValueParser.parseBoolean("False"));
+		Assert.assertEquals(Boolean.FALSE, ValueParser.parseBoolean("0"));
+		
+		Assert.assertNull(ValueParser.parseBoolean(null));
+		Assert.assertNull(ValueParser.parseBoolean(""));
+		Assert.assertNull(ValueParser.parseBoolean("TRUEX"));
+		Assert.assertNull(ValueParser.parseBoolean("yes"));
+	}
+
+}
@@ -0,0 +1,51 @@
+package no.ez.crowd.customattributes;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.ldap.core.DirContextAdapter;
+
+import com.google.common.collect.Sets;
+
+
+
+/** Tests for {@link ValueTemplate} class.
+ */
+public class ValueTemplateTest {
+	
+	
+	@Test
+	public void testEvaluate() {
+		
+		DirContextAdapter dca = new DirContextAdapter();
+		dca.setAttributeValue("department", "Sales");
+		dca.setAttributeValue("costCenter", "4711");
+		dca.setAttributeValue("jpegPhoto", new byte[] {1, 2, 3});
+		
+		Assert.assertEquals("Sales/4711", ValueTemplate.parse("{department}/{costCenter}").evaluate(dca));
+		Assert.assertEquals("{Sales} 4711", ValueTemplate.parse("{{{ department }}} {costCenter}").evaluate(dca));
+		Assert.assertNull(ValueTemplate.parse("[{department}]{mail}").evaluate(new DirContextAdapter()));
+		Assert.assertNull(ValueTemplate.parse("[{jpegPhoto}]").evaluate(dca)); // binary values are not supported
+		
+		Set<String> attrs = new LinkedHashSet<String>();
+		ValueTemplate.parse("{givenName} {sn} <{mail}>").collectAttributes(attrs);
+		Assert.assertEquals(Sets.newHashSet("givenName", "sn", "mail"), attrs);
+	}
+	
+	
+	@Test
+	public void testInvalid() {
+		String[] invalid = {"", "no references", "{", "{mail", "{}", "{mail}}", "}{mail}", "{a b}"};
+		for (String template : invalid) {
+			try {
+				ValueTemplate.parse(template);
+				Assert.fail("Template [" + template + "] must be rejected.");
+			} catch (IllegalArgumentException e) {
+				// fine
+			}
+		}
+	}
+	
+}
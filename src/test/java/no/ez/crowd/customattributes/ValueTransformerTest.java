@@ -0,0 +1,76 @@
+package no.ez.crowd.customattributes;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+/** Tests for {@link ValueTransformer} class.
+ */
+public class ValueTransformerTest {
+	
+	
+	@Test
+	public void testExtractAndReplace() {
+		
+		ValueTransformer cn = new Transform("^(?i)cn=((?:[^,\\\\]|\\\\.)+)", null, 1).compile();
+		
+		Assert.assertEquals("John Doe", cn.apply("cn=John Doe,ou=People,dc=example,dc=com"));
+		Assert.assertEquals("Doe\\, John", cn.apply("CN=Doe\\, John,ou=People"));
+		Assert.assertEquals("uid=jdoe,ou=People", cn.apply("uid=jdoe,ou=People")); // no match, unchanged
+		
+		ValueTransformer digits = new Transform("[^0-9+]", "", 0).compile();
+		
+		Assert.assertEquals("+4712345678", digits.apply("+47 (123) 45-678"));
+		
+		ValueTransformer whole = new Transform("[0-9]+", null, 0).compile();
+		
+		Assert.assertEquals("42", whole.apply("room 42b"));
+	}
+	
+	
+	@Test
+	public void testInvalid() {
+		try {
+			new Transform("([a-z]", null, 0).compile();
+			Assert.fail("Invalid pattern must be rejected.");
+		} catch (IllegalArgumentException e) {
+			// fine
+		}
+		try {
+			new Transform("([a-z])", null, 2).compile();
+			Assert.fail("Missing group must be rejected.");
+		} catch (IllegalArgumentException e) {
+			// fine
+		}
+	}
+	
+	
+	@Test
+	public void testGuards() {
+		
+		ValueTransformer catastrophic = new Transform("^(?:(a)+\\1)+$", null, 0).compile();
+		
+		Assert.assertEquals("aaaa", catastrophic.apply("aaaa"));
+		
+		long start = System.currentTimeMillis();
+		try {
+			catastrophic.apply("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!");
+			Assert.fail("Catastrophic backtracking must be stopped.");
+		} catch (ValueTransformer.LimitExceededException e) {
+			Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+		}
+		
+		StringBuilder longValue = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			longValue.append('x');
+		}
+		try {
+			new Transform("x", "y", 0).compile().apply(longValue.toString());
+			Assert.fail("Too long values must be rejected.");
+		} catch (ValueTransformer.LimitExceededException e) {
+			// fine
+		}
+	}
+
+}